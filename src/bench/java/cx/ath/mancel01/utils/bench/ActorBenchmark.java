@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Tell throughput, ping-pong latency and ask round-trip on the default
+ * dispatcher.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ActorBenchmark {
+
+    private static final int BATCH = 10000;
+
+    private ActorContext context;
+    private Actor counter;
+    private Actor pinger;
+    private Actor ponger;
+    private volatile CountDownLatch latch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        context = Actors.newContext("bench");
+        counter = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                latch.countDown();
+                return Actors.CONTINUE;
+            }
+        }, "counter");
+        ponger = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                ctx.from.tell("pong", ctx.me);
+                return Actors.CONTINUE;
+            }
+        }, "ponger");
+        pinger = context.create(new Behavior() {
+            private Promise<String> pending;
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                if (message instanceof Promise) {
+                    pending = (Promise<String>) message;
+                    ponger.tell("ping", ctx.me);
+                } else {
+                    pending.apply((String) message);
+                }
+                return Actors.CONTINUE;
+            }
+        }, "pinger");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void tell() throws Exception {
+        latch = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            counter.tell(i);
+        }
+        latch.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String pingPong() throws Exception {
+        Promise<String> pong = new Promise<String>();
+        pinger.tell(pong);
+        return pong.get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object ask() throws Exception {
+        return ponger.ask("ping").get();
+    }
+}
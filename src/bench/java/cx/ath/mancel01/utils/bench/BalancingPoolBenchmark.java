@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.LoadBalancerActor;
+import cx.ath.mancel01.utils.actors.Dispatchers;
+import cx.ath.mancel01.utils.actors.Routers;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Skewed jobs : one job out of 50 takes 10 ms, the others are immediate.
+ * Time to drain a batch of jobs through a balancing pool, where idle workers
+ * steal the queue of a slow one, against the load balancer and round robin
+ * routers, where jobs queue up behind a slow one.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BalancingPoolBenchmark {
+
+    private static final int WORKERS = 4;
+    private static final int JOBS = 500;
+    private static final int SLOW_EVERY = 50;
+    private static final long SLOW_MILLIS = 10L;
+
+    @Param({"balancing", "loadBalancer", "roundRobin"})
+    public String pool;
+
+    private ExecutorService executor;
+    private ActorContext context;
+    private Actor target;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        executor = Executors.newFixedThreadPool(WORKERS + 1);
+        context = Actors.newContext();
+        context.defaults().withExecutor(Dispatchers.fromExecutor("skewed", executor));
+        Function<Unit, Behavior> worker = new Function<Unit, Behavior>() {
+            @Override
+            public Behavior apply(Unit t) {
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        Job job = (Job) message;
+                        if (job.slow) {
+                            try {
+                                Thread.sleep(SLOW_MILLIS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        job.done.countDown();
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        };
+        if ("balancing".equals(pool)) {
+            target = Routers.balancingPool(context, "pool", WORKERS, worker);
+        } else if ("loadBalancer".equals(pool)) {
+            target = context.create(LoadBalancerActor.apply(context, WORKERS, worker), "router");
+        } else {
+            target = context.create(Routers.apply(context, WORKERS, worker, Routers.roundRobin()), "router");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.clear();
+        executor.shutdown();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void skewedJobs() throws Exception {
+        CountDownLatch done = new CountDownLatch(JOBS);
+        for (int i = 0; i < JOBS; i++) {
+            target.tell(new Job(i % SLOW_EVERY == 0, done));
+        }
+        done.await();
+    }
+
+    private static class Job {
+
+        private final boolean slow;
+        private final CountDownLatch done;
+
+        Job(boolean slow, CountDownLatch done) {
+            this.slow = slow;
+            this.done = done;
+        }
+    }
+}
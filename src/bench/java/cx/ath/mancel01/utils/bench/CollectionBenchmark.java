@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.C;
+import cx.ath.mancel01.utils.C.EnhancedList;
+import cx.ath.mancel01.utils.F.Function;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * EnhancedList map, filter and parMap over lists of growing size.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CollectionBenchmark {
+
+    @Param({ "100", "10000" })
+    public int size;
+
+    private EnhancedList<Integer> list;
+
+    private static final Function<Integer, Integer> SQUARE = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer t) {
+            return t * t;
+        }
+    };
+
+    private static final Function<Integer, Boolean> EVEN = new Function<Integer, Boolean>() {
+        @Override
+        public Boolean apply(Integer t) {
+            return t % 2 == 0;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        list = C.eList();
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+        }
+    }
+
+    @Benchmark
+    public EnhancedList<Integer> map() {
+        return list.map(SQUARE);
+    }
+
+    @Benchmark
+    public EnhancedList<Integer> filter() {
+        return list.filter(EVEN);
+    }
+
+    @Benchmark
+    public EnhancedList<Integer> parMap() {
+        return list.parMap(SQUARE);
+    }
+}
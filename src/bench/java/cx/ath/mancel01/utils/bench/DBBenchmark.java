@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.DB;
+import static cx.ath.mancel01.utils.DB.*;
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.h2.Driver;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SQLStatement parsing, binding and result extraction against an in-memory
+ * H2 database.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DBBenchmark {
+
+    private static final int ROWS = 1000;
+
+    private final AtomicLong ids = new AtomicLong(ROWS);
+
+    private DB db;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        db = DB(provider(new Driver(), "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1", "sa", ""));
+        db.withConnection(new Function<Connection, Unit>() {
+            @Override
+            public Unit apply(Connection connection) {
+                SQL("drop table if exists persons;").executeUpdate();
+                SQL("create table persons (id bigint not null, name varchar(1000) not null, "
+                        + "age bigint not null, constraint pk_person primary key (id));").executeUpdate();
+                for (int i = 0; i < ROWS; i++) {
+                    SQL("insert into persons values ( {id}, {name}, {age} );")
+                        .on(pair("id", i), pair("name", "John " + i), pair("age", i % 100)).executeUpdate();
+                }
+                return Unit.unit();
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    public List<Long> selectMany() {
+        return db.withConnection(new Function<Connection, List<Long>>() {
+            @Override
+            public List<Long> apply(Connection connection) {
+                return SQL("select age from persons where age between {min} and {max};")
+                    .on(pair("min", 18), pair("max", 80)).asList(longParser("age"));
+            }
+        });
+    }
+
+    @Benchmark
+    public int insert() {
+        return db.withConnection(new Function<Connection, Integer>() {
+            @Override
+            public Integer apply(Connection connection) {
+                return SQL("insert into persons values ( {id}, {name}, {age} );")
+                    .on(pair("id", ids.incrementAndGet()), pair("name", "Jane"), pair("age", 42)).executeUpdate();
+            }
+        });
+    }
+}
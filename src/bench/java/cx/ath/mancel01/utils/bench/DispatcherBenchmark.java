@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Dispatchers;
+import cx.ath.mancel01.utils.actors.Dispatchers.Dispatcher;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Ping-pong latency of a chatty pair of actors, 100 round trips per
+ * operation, on the fork-join, pinned and affinity dispatchers.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DispatcherBenchmark {
+
+    private static final int ROUND_TRIPS = 100;
+
+    @Param({"forkJoin", "pinned", "affinity"})
+    public String dispatcher;
+
+    private Dispatcher executor;
+    private ActorContext context;
+    private Actor pinger;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        if ("pinned".equals(dispatcher)) {
+            executor = Dispatchers.pinned("bench", Dispatchers.DEFAULT_PARALLELISM);
+        } else if ("affinity".equals(dispatcher)) {
+            executor = Dispatchers.affinity("bench", Dispatchers.DEFAULT_PARALLELISM);
+        } else {
+            executor = Dispatchers.forkJoin("bench", Dispatchers.DEFAULT_PARALLELISM);
+        }
+        context = Actors.newContext(executor);
+        final Actor ponger = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                ctx.from.tell(message, ctx.me);
+                return Actors.CONTINUE;
+            }
+        }, "ponger");
+        pinger = context.create(new Behavior() {
+            private Promise<Integer> pending;
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                if (message instanceof Promise) {
+                    pending = (Promise<Integer>) message;
+                    ponger.tell(1, ctx.me);
+                } else if ((Integer) message < ROUND_TRIPS) {
+                    ponger.tell((Integer) message + 1, ctx.me);
+                } else {
+                    pending.apply((Integer) message);
+                }
+                return Actors.CONTINUE;
+            }
+        }, "pinger");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.clear();
+        executor.shutdown();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer pingPong() throws Exception {
+        Promise<Integer> done = new Promise<Integer>();
+        pinger.tell(done);
+        return done.get();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.F.Action;
+import cx.ath.mancel01.utils.F.Tuple;
+import cx.ath.mancel01.utils.Http;
+import cx.ath.mancel01.utils.Http.Request;
+import cx.ath.mancel01.utils.Http.Response;
+import cx.ath.mancel01.utils.SimpleLogger;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Requests per second against a local Http server. The JMH worker threads
+ * act as the load generator, each reusing a keep-alive connection.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HttpBenchmark {
+
+    private Http server;
+    private URL url;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        server = Http.createServer(new Action<Tuple<Request, Response>>() {
+            @Override
+            public void apply(Tuple<Request, Response> reqResp) {
+                reqResp._2.write("<html><body><h1>Hello World!</h1></body></html>");
+            }
+        }).listen(port, "127.0.0.1");
+        url = new URL("http://127.0.0.1:" + port + "/");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    public int get() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        InputStream in = connection.getInputStream();
+        int read = 0;
+        try {
+            int n;
+            byte[] sink = new byte[8192];
+            while ((n = in.read(sink)) != -1) {
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return connection.getResponseCode() + read;
+    }
+}
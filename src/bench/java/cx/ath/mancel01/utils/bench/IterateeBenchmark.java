@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.Iteratees.Enumeratee;
+import cx.ath.mancel01.utils.Iteratees.Enumerator;
+import cx.ath.mancel01.utils.Iteratees.Iteratee;
+import cx.ath.mancel01.utils.SimpleLogger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Enumerator through an Enumeratee into a foreach Iteratee, end to end.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IterateeBenchmark {
+
+    @Param({ "1000" })
+    public int size;
+
+    private List<Integer> elements;
+
+    private final AtomicLong sum = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        elements = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            elements.add(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    public Unit pipeline() throws Exception {
+        return Enumerator.of(elements).through(Enumeratee.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer t) {
+                return t * 2;
+            }
+        })).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer t) {
+                sum.addAndGet(t);
+                return Unit.unit();
+            }
+        })).get();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Props;
+import cx.ath.mancel01.utils.actors.Mailboxes;
+import cx.ath.mancel01.utils.actors.Mailboxes.OverflowPolicy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One producer telling one actor with at most WINDOW messages in flight,
+ * on the unbounded linked mailbox and on the ring buffer. Run with
+ * -prof gc for the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MailboxBenchmark {
+
+    private static final int WINDOW = 1000;
+
+    private static final Object PAYLOAD = new Object();
+
+    @Param({ "linked", "ring" })
+    public String mailbox;
+
+    private ExecutorService consumer;
+    private ActorContext context;
+    private Actor actor;
+    private final Semaphore credits = new Semaphore(WINDOW);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        consumer = Executors.newSingleThreadExecutor();
+        context = Actors.newContext();
+        Props props = context.defaults().copy().withExecutor(consumer).withThroughput(WINDOW);
+        if ("ring".equals(mailbox)) {
+            props.withMailbox(Mailboxes.ringBuffer(2 * WINDOW, OverflowPolicy.BLOCK));
+        }
+        actor = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                credits.release();
+                return Actors.CONTINUE;
+            }
+        }, "consumer", props);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.clear();
+        consumer.shutdownNow();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    public void tell() {
+        credits.acquireUninterruptibly();
+        actor.tell(PAYLOAD);
+    }
+}
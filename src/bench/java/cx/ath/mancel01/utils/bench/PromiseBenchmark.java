@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F;
+import cx.ath.mancel01.utils.F.Function;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of building and redeeming map / flatMap chains, and of registering
+ * callbacks from several threads, against the latch based promise that
+ * Concurrent.Promise replaced.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PromiseBenchmark {
+
+    @Param({ "1", "10" })
+    public int depth;
+
+    private static final Function<Integer, Integer> INCREMENT = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer t) {
+            return t + 1;
+        }
+    };
+
+    private static final Function<Integer, Promise<Integer>> PURE_INCREMENT = new Function<Integer, Promise<Integer>>() {
+        @Override
+        public Promise<Integer> apply(Integer t) {
+            return Promise.pure(t + 1);
+        }
+    };
+
+    @Benchmark
+    public Integer mapChain() {
+        Promise<Integer> root = new Promise<Integer>();
+        Promise<Integer> current = root;
+        for (int i = 0; i < depth; i++) {
+            current = current.map(INCREMENT);
+        }
+        root.apply(0);
+        return current.getOrNull();
+    }
+
+    @Benchmark
+    public Integer flatMapChain() {
+        Promise<Integer> root = new Promise<Integer>();
+        Promise<Integer> current = root;
+        for (int i = 0; i < depth; i++) {
+            current = current.flatMap(PURE_INCREMENT);
+        }
+        root.apply(0);
+        return current.getOrNull();
+    }
+
+    @Benchmark
+    public Integer latchMapChain() {
+        LatchPromise<Integer> root = new LatchPromise<Integer>();
+        LatchPromise<Integer> current = root;
+        for (int i = 0; i < depth; i++) {
+            current = current.map(INCREMENT);
+        }
+        root.apply(0);
+        return current.getOrNull();
+    }
+
+    /**
+     * Pending promises shared by the benchmark threads, redeemed and
+     * replaced every 1024 callbacks so they don't grow for a whole
+     * iteration.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        private final AtomicLong registered = new AtomicLong(0L);
+        volatile Promise<Integer> promise = new Promise<Integer>();
+        volatile LatchPromise<Integer> latch = new LatchPromise<Integer>();
+
+        void registered() {
+            if ((registered.incrementAndGet() & 1023) == 0) {
+                Promise<Integer> full = promise;
+                LatchPromise<Integer> fullLatch = latch;
+                promise = new Promise<Integer>();
+                latch = new LatchPromise<Integer>();
+                full.apply(1);
+                fullLatch.apply(1);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Promise<Integer> contendedMap(Shared shared) {
+        Promise<Integer> mapped = shared.promise.map(INCREMENT);
+        shared.registered();
+        return mapped;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public LatchPromise<Integer> contendedLatchMap(Shared shared) {
+        LatchPromise<Integer> mapped = shared.latch.map(INCREMENT);
+        shared.registered();
+        return mapped;
+    }
+
+    /**
+     * The latch / synchronized / ArrayList promise that Concurrent.Promise
+     * replaced, kept here as a baseline.
+     */
+    public static class LatchPromise<V> implements F.Action<V> {
+
+        private final CountDownLatch taskLock = new CountDownLatch(1);
+        private List<F.Action<LatchPromise<V>>> callbacks = new ArrayList<F.Action<LatchPromise<V>>>();
+        private boolean invoked = false;
+        private V result = null;
+
+        public V getOrNull() {
+            return result;
+        }
+
+        public V get() throws InterruptedException {
+            taskLock.await();
+            return result;
+        }
+
+        @Override
+        public void apply(V result) {
+            synchronized (this) {
+                if (!invoked) {
+                    invoked = true;
+                    this.result = result;
+                    taskLock.countDown();
+                } else {
+                    return;
+                }
+            }
+            for (F.Action<LatchPromise<V>> callback : callbacks) {
+                callback.apply(this);
+            }
+        }
+
+        public void onRedeem(F.Action<LatchPromise<V>> callback) {
+            synchronized (this) {
+                if (!invoked) {
+                    callbacks.add(callback);
+                }
+            }
+            if (invoked) {
+                callback.apply(this);
+            }
+        }
+
+        public <B> LatchPromise<B> map(final Function<V, B> map) {
+            final LatchPromise<B> promise = new LatchPromise<B>();
+            this.onRedeem(new F.Action<LatchPromise<V>>() {
+                @Override
+                public void apply(LatchPromise<V> t) {
+                    try {
+                        promise.apply(map.apply(t.get()));
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            });
+            return promise;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Churn of short-lived actors (create, one message, poison) and lookups of
+ * top level and nested paths. Several millions of actors go through the
+ * registry during a run.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RegistryBenchmark {
+
+    private static final int BATCH = 10000;
+
+    private final AtomicLong ids = new AtomicLong(0L);
+    private ActorContext context;
+    private Behavior countDown;
+    private volatile CountDownLatch latch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SimpleLogger.enableTrace(false);
+        context = Actors.newContext("registry");
+        countDown = new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                latch.countDown();
+                return Actors.CONTINUE;
+            }
+        };
+        latch = new CountDownLatch(1);
+        context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                ctx.spawn(countDown, "worker-3").tell(message);
+                return Actors.CONTINUE;
+            }
+        }, "router").tell("spawn");
+        latch.await();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void shortLived() throws Exception {
+        latch = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            Actor actor = context.create(countDown, "short-" + ids.incrementAndGet());
+            actor.tell(i);
+            actor.tell(Poison.PILL);
+        }
+        latch.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Actor lookup() {
+        return context.lookup("router");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Actor lookupPath() {
+        return context.lookup("/user/router/worker-3");
+    }
+}
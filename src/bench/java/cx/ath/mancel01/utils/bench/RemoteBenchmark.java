@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Mailboxes.OverflowPolicy;
+import cx.ath.mancel01.utils.actors.RemoteActors;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActorContext;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Ask round-trip and one way throughput between two remote contexts over
+ * loopback, writing one message per frame or batches of 256. Percentiles
+ * are in the SampleTime report.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RemoteBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({"1", "256"})
+    public int batch;
+
+    private final Semaphore received = new Semaphore(0);
+    private RemoteActorContext client;
+    private RemoteActorContext server;
+    private Actor echo;
+    private Actor counter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        String serverId = UUID.randomUUID().toString();
+        Properties conf = new Properties();
+        conf.setProperty("echo", "remoteactor://127.0.0.1:9911/" + serverId + "/echo");
+        conf.setProperty("counter", "remoteactor://127.0.0.1:9911/" + serverId + "/counter");
+        client = RemoteActors.newContext(conf);
+        server = RemoteActors.newContext(serverId, new Properties());
+        client.withWriteBatching(batch, 0L, TimeUnit.MILLISECONDS);
+        server.withWriteBatching(batch, 0L, TimeUnit.MILLISECONDS);
+        client.withFlowControl(65536, OverflowPolicy.BLOCK);
+        client.startRemoting("127.0.0.1", 9910);
+        server.startRemoting("127.0.0.1", 9911);
+        server.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                ctx.from.tell(message, ctx.me);
+                return Actors.CONTINUE;
+            }
+        }, "echo");
+        server.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                received.release();
+                return Actors.CONTINUE;
+            }
+        }, "counter");
+        echo = client.lookup("echo");
+        counter = client.lookup("counter");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.stopRemoting();
+        server.stopRemoting();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object ask() throws Exception {
+        return echo.ask("ping").get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(MESSAGES)
+    public void oneWay() throws Exception {
+        for (int i = 0; i < MESSAGES; i++) {
+            counter.tell("Job Id " + i);
+        }
+        received.acquire(MESSAGES);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.LoadBalancerActor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Jobs going through a load balancer of 10 workers reporting to one
+ * controller, for several mailbox batch sizes, 0 standing for a 1 ms
+ * time budget per run instead.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ThroughputBenchmark {
+
+    private static final int JOBS = 10000;
+
+    @Param({ "1", "5", "20", "100", "0" })
+    public int throughput;
+
+    private ActorContext context;
+    private Actor router;
+    private volatile CountDownLatch latch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleLogger.enableTrace(false);
+        context = Actors.newContext();
+        if (throughput > 0) {
+            context.defaults().withThroughput(throughput);
+        } else {
+            context.defaults().withThroughput(Integer.MAX_VALUE).withThroughputDeadline(1L, TimeUnit.MILLISECONDS);
+        }
+        final Actor controller = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                latch.countDown();
+                return Actors.CONTINUE;
+            }
+        }, "jobController");
+        router = context.create(LoadBalancerActor.apply(context, 10L, new Function<Unit, Behavior>() {
+            @Override
+            public Behavior apply(Unit t) {
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        controller.tell("Done");
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        }), "router");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public void jobs() throws Exception {
+        latch = new CountDownLatch(JOBS);
+        for (int i = 0; i < JOBS; i++) {
+            router.tell("Job Id " + i + "# send");
+        }
+        latch.await();
+    }
+}
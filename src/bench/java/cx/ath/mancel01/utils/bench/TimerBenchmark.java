@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.bench;
+
+import cx.ath.mancel01.utils.actors.HashedWheelTimer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Creating and cancelling a timeout, the common case of ask and state
+ * timeouts, on the timing wheel and on a scheduled executor.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerBenchmark {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    private HashedWheelTimer timer;
+    private ScheduledThreadPoolExecutor executor;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        timer = new HashedWheelTimer("bench");
+        executor = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void purge() {
+        executor.purge();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        timer.stop();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean wheel() {
+        return timer.newTimeout(NOOP, 30 + (next++ % 30), TimeUnit.SECONDS).cancel(false);
+    }
+
+    @Benchmark
+    public boolean scheduledExecutor() {
+        return executor.schedule(NOOP, 30 + (next++ % 30), TimeUnit.SECONDS).cancel(false);
+    }
+}
@@ -17,7 +17,6 @@
 
 package cx.ath.mancel01.utils;
 
-import cx.ath.mancel01.utils.F.ExceptionWrapper;
 import cx.ath.mancel01.utils.F.Function;
 import cx.ath.mancel01.utils.F.Unit;
 import cx.ath.mancel01.utils.actors.Actors;
@@ -27,7 +26,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Concurrent {
     
@@ -85,86 +87,242 @@ public class Concurrent {
 
     public static class Promise<V> implements Future<V>, F.Action<V> {
 
-        private final CountDownLatch taskLock = new CountDownLatch(1);
-        
-        private boolean cancelled = false;
-        
-        private List<F.Action<Promise<V>>> callbacks = new ArrayList<F.Action<Promise<V>>>();
-        
-        private boolean invoked = false;
-        
-        private V result = null;
-        
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Promise, Object> STATE =
+                AtomicReferenceFieldUpdater.newUpdater(Promise.class, Object.class, "state");
+
+        private static final Object NULL = new Object();
+
+        private static final class Failed {
+            private final Throwable cause;
+            private Failed(Throwable cause) {
+                this.cause = cause;
+            }
+        }
+
+        private static final class Callback<T> {
+            private final F.Action<? super Promise<T>> action;
+            private final Executor executor;
+            private Callback<T> next;
+            private Callback(F.Action<? super Promise<T>> action, Executor executor) {
+                this.action = action;
+                this.executor = executor;
+            }
+        }
+
+        private volatile Object state = null;
+
+        private static boolean isCompleted(Object state) {
+            return state != null && !(state instanceof Callback);
+        }
+
+        private boolean complete(Object outcome) {
+            while (true) {
+                Object current = state;
+                if (isCompleted(current)) {
+                    return false;
+                }
+                if (STATE.compareAndSet(this, current, outcome)) {
+                    Callback<V> reversed = null;
+                    Callback<V> callback = callbacks(current);
+                    while (callback != null) {
+                        Callback<V> next = callback.next;
+                        callback.next = reversed;
+                        reversed = callback;
+                        callback = next;
+                    }
+                    while (reversed != null) {
+                        dispatch(reversed);
+                        reversed = reversed.next;
+                    }
+                    return true;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Callback<T> callbacks(Object state) {
+            return (Callback<T>) state;
+        }
+
+        private void dispatch(final Callback<V> callback) {
+            if (callback.executor == null) {
+                run(callback.action);
+            } else {
+                callback.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Promise.this.run(callback.action);
+                    }
+                });
+            }
+        }
+
+        private void run(F.Action<? super Promise<V>> action) {
+            try {
+                action.apply(this);
+            } catch (Throwable t) {
+                SimpleLogger.error("Error while running promise callback : {}", t);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V value(Object state) {
+            return state == NULL ? null : (V) state;
+        }
+
+        private V report(Object state) throws ExecutionException {
+            if (state instanceof Failed) {
+                Throwable cause = ((Failed) state).cause;
+                if (cause instanceof CancellationException) {
+                    throw (CancellationException) cause;
+                }
+                throw new ExecutionException(cause);
+            }
+            return value(state);
+        }
+
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
-            return cancelled;
+            return complete(new Failed(new CancellationException("Promise cancelled")));
         }
 
         @Override
         public boolean isCancelled() {
-            return false;
+            Object current = state;
+            return current instanceof Failed && ((Failed) current).cause instanceof CancellationException;
         }
 
         @Override
         public boolean isDone() {
-            return invoked;
+            return isCompleted(state);
+        }
+
+        public boolean isFailure() {
+            return state instanceof Failed;
+        }
+
+        public boolean isSuccess() {
+            Object current = state;
+            return isCompleted(current) && !(current instanceof Failed);
         }
 
         public V getOrNull() {
-            return result;
+            Object current = state;
+            if (isCompleted(current) && !(current instanceof Failed)) {
+                return value(current);
+            }
+            return null;
+        }
+
+        public Throwable failureOrNull() {
+            Object current = state;
+            if (current instanceof Failed) {
+                return ((Failed) current).cause;
+            }
+            return null;
         }
 
         @Override
         public V get() throws InterruptedException, ExecutionException {
-            taskLock.await();
-            return result;
+            if (!isDone()) {
+                awaiter().await();
+            }
+            return report(state);
         }
 
         @Override
         public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            taskLock.await(timeout, unit);
-            return result;
+            if (!isDone() && !awaiter().await(timeout, unit)) {
+                throw new TimeoutException("Promise not redeemed after " + timeout + " " + unit);
+            }
+            return report(state);
+        }
+
+        private CountDownLatch awaiter() {
+            final CountDownLatch latch = new CountDownLatch(1);
+            onRedeem(new F.Action<Promise<V>>() {
+                @Override
+                public void apply(Promise<V> t) {
+                    latch.countDown();
+                }
+            });
+            return latch;
         }
 
         @Override
         public void apply(V result) {
-            synchronized (this) {
-                if (!invoked) {
-                    invoked = true;
-                    this.result = result;
-                    taskLock.countDown();
-                } else {
+            complete(result == null ? NULL : result);
+        }
+
+        public void fail(Throwable failure) {
+            complete(new Failed(failure));
+        }
+
+        public void onRedeem(F.Action<? super Promise<V>> callback) {
+            onRedeem(callback, null);
+        }
+
+        public void onRedeem(F.Action<? super Promise<V>> callback, Executor executor) {
+            Callback<V> node = new Callback<V>(callback, executor);
+            while (true) {
+                Object current = state;
+                if (isCompleted(current)) {
+                    dispatch(node);
+                    return;
+                }
+                node.next = callbacks(current);
+                if (STATE.compareAndSet(this, current, node)) {
                     return;
                 }
-            }
-            for (F.Action<Promise<V>> callback : callbacks) {
-                callback.apply(this);
             }
         }
 
-        public void onRedeem(F.Action<Promise<V>> callback) {
-            synchronized (this) {
-                if (!invoked) {
-                    callbacks.add(callback);
+        public void onSuccess(final F.Action<V> callback) {
+            onRedeem(new F.Action<Promise<V>>() {
+                @Override
+                public void apply(Promise<V> t) {
+                    Object current = t.state;
+                    if (!(current instanceof Failed)) {
+                        callback.apply(t.value(current));
+                    }
                 }
-            }
-            if (invoked) {
-                callback.apply(this);
-            }
+            });
+        }
+
+        public void onFailure(final F.Action<Throwable> callback) {
+            onRedeem(new F.Action<Promise<V>>() {
+                @Override
+                public void apply(Promise<V> t) {
+                    Object current = t.state;
+                    if (current instanceof Failed) {
+                        callback.apply(((Failed) current).cause);
+                    }
+                }
+            });
         }
         
         public <B> Promise<B> map(final Function<V, B> map) {
+            return map(map, null);
+        }
+        
+        public <B> Promise<B> map(final Function<V, B> map, Executor executor) {
             final Promise<B> promise = new Promise<B>();
             this.onRedeem(new F.Action<Promise<V>>() {
                 @Override
                 public void apply(Promise<V> t) {
+                    Object current = t.state;
+                    if (current instanceof Failed) {
+                        promise.complete(current);
+                        return;
+                    }
                     try {
-                        promise.apply(map.apply(t.get()));
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+                        promise.apply(map.apply(t.value(current)));
+                    } catch (Throwable e) {
+                        promise.fail(e);
                     }
                 }
-            });
+            }, executor);
             return promise;
         }
         
@@ -173,12 +331,19 @@ public class Concurrent {
             this.onRedeem(new F.Action<Promise<V>>() {
                 @Override
                 public void apply(Promise<V> t) {
+                    Object current = t.state;
+                    if (current instanceof Failed) {
+                        promise.complete(current);
+                        return;
+                    }
                     try {
-                        if (predicate.apply(t.get())) {
-                            promise.apply(t.get());
+                        if (predicate.apply(t.value(current))) {
+                            promise.complete(current);
+                        } else {
+                            promise.fail(new NoSuchElementException("Promise value filtered out"));
                         }
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+                    } catch (Throwable e) {
+                        promise.fail(e);
                     }
                 }
             });
@@ -186,117 +351,194 @@ public class Concurrent {
         }
         
         public Promise<V> filterNot(final Function<V, Boolean> predicate) {
-            final Promise<V> promise = new Promise<V>();
+            return filter(new Function<V, Boolean>() {
+                @Override
+                public Boolean apply(V t) {
+                    return !predicate.apply(t);
+                }
+            });
+        }
+        
+        public <B> Promise<B> flatMap(final Function<V, Promise<B>> map) {
+            return flatMap(map, null);
+        }
+        
+        public <B> Promise<B> flatMap(final Function<V, Promise<B>> map, Executor executor) {
+            final Promise<B> promise = new Promise<B>();
             this.onRedeem(new F.Action<Promise<V>>() {
                 @Override
                 public void apply(Promise<V> t) {
+                    Object current = t.state;
+                    if (current instanceof Failed) {
+                        promise.complete(current);
+                        return;
+                    }
                     try {
-                        if (!predicate.apply(t.get())) {
-                            promise.apply(t.get());
-                        }
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+                        map.apply(t.value(current)).onRedeem(new F.Action<Promise<B>>() {
+                            @Override
+                            public void apply(Promise<B> inner) {
+                                promise.complete(inner.state);
+                            }
+                        });
+                    } catch (Throwable e) {
+                        promise.fail(e);
                     }
                 }
-            });
+            }, executor);
             return promise;
         }
         
-        public <B> Promise<B> flatMap(final Function<V, Promise<B>> map) {
-            final Promise<B> promise = new Promise<B>();
+        public Promise<V> recover(final Function<Throwable, V> recover) {
+            final Promise<V> promise = new Promise<V>();
             this.onRedeem(new F.Action<Promise<V>>() {
                 @Override
                 public void apply(Promise<V> t) {
+                    Object current = t.state;
+                    if (!(current instanceof Failed)) {
+                        promise.complete(current);
+                        return;
+                    }
                     try {
-                        promise.apply(map.apply(t.get()).get());
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+                        promise.apply(recover.apply(((Failed) current).cause));
+                    } catch (Throwable e) {
+                        promise.fail(e);
                     }
                 }
             });
             return promise;
         }
-        public static <T> Promise<List<T>> waitAll(final Promise<T>... promises) {
-            return waitAll(Arrays.asList(promises));
-        }
-
-        public static <T> Promise<List<T>> waitAll(final Collection<Promise<T>> promises) {
-            final CountDownLatch waitAllLock = new CountDownLatch(promises.size());
-            final Promise<List<T>> result = new Promise<List<T>>() {
-
+        
+        public <B> Promise<F.Tuple<V, B>> zip(Promise<B> other) {
+            return zipWith(other, new F.F2<V, B, F.Tuple<V, B>>() {
                 @Override
-                public boolean cancel(boolean mayInterruptIfRunning) {
-                    boolean r = true;
-                    for (Promise<T> f : promises) {
-                        r = r & f.cancel(mayInterruptIfRunning);
-                    }
-                    return r;
+                public F.Tuple<V, B> apply(V a, B b) {
+                    return new F.Tuple<V, B>(a, b);
                 }
+            });
+        }
 
+        public <B, C> Promise<C> zipWith(final Promise<B> other, final F.F2<V, B, C> zipper) {
+            final Promise<C> promise = new Promise<C>();
+            final AtomicInteger remaining = new AtomicInteger(2);
+            final F.Action<Promise<?>> action = new F.Action<Promise<?>>() {
                 @Override
-                public boolean isCancelled() {
-                    boolean r = true;
-                    for (Promise<T> f : promises) {
-                        r = r & f.isCancelled();
+                public void apply(Promise<?> t) {
+                    Object current = t.state;
+                    if (current instanceof Failed) {
+                        promise.complete(current);
+                    } else if (remaining.decrementAndGet() == 0) {
+                        try {
+                            promise.apply(zipper.apply(value(state), other.value(other.state)));
+                        } catch (Throwable e) {
+                            promise.fail(e);
+                        }
                     }
-                    return r;
                 }
+            };
+            this.onRedeem(action);
+            other.onRedeem(action);
+            return promise;
+        }
 
-                @Override
-                public boolean isDone() {
-                    boolean r = true;
-                    for (Promise<T> f : promises) {
-                        r = r & f.isDone();
-                    }
-                    return r;
-                }
+        public static <T> Promise<List<T>> waitAll(final Promise<T>... promises) {
+            return sequence(Arrays.asList(promises));
+        }
+
+        public static <T> Promise<List<T>> waitAll(final Collection<Promise<T>> promises) {
+            return sequence(promises);
+        }
 
+        /**
+         * Completes with every value in input order, or with the first
+         * failure. Once the result fails or is cancelled, the pending inputs
+         * are cancelled.
+         */
+        public static <T> Promise<List<T>> sequence(final Collection<Promise<T>> promises) {
+            if (promises.isEmpty()) {
+                return pure(Collections.<T>emptyList());
+            }
+            final Gather<T> gather = new Gather<T>(promises.size());
+            int index = 0;
+            for (Promise<T> promise : promises) {
+                final int position = index++;
+                promise.onRedeem(new F.Action<Promise<T>>() {
+                    @Override
+                    public void apply(Promise<T> t) {
+                        gather.collect(position, t);
+                    }
+                });
+            }
+            gather.result.onRedeem(new F.Action<Promise<List<T>>>() {
                 @Override
-                public List<T> get() throws InterruptedException, ExecutionException {
-                    waitAllLock.await();
-                    List<T> r = new ArrayList<T>();
-                    for (Promise<T> f : promises) {
-                        r.add(f.get());
+                public void apply(Promise<List<T>> t) {
+                    if (t.isFailure()) {
+                        for (Promise<T> promise : promises) {
+                            promise.cancel(false);
+                        }
                     }
-                    return r;
                 }
+            });
+            return gather.result;
+        }
 
-                @Override
-                public List<T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                    waitAllLock.await(timeout, unit);
-                    return get();
-                }
-            };
-            final F.Action<Promise<T>> action = new F.Action<Promise<T>>() {
+        public static <A, B> Promise<List<B>> traverse(Collection<A> inputs, Function<A, Promise<B>> f) {
+            return traverse(inputs, f, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Applies f to every input with at most parallelism promises in
+         * flight at once. Completes with the values in input order, or with
+         * the first failure, after which no new input is started.
+         */
+        public static <A, B> Promise<List<B>> traverse(Collection<A> inputs, Function<A, Promise<B>> f, int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be at least 1");
+            }
+            if (inputs.isEmpty()) {
+                return pure(Collections.<B>emptyList());
+            }
+            Traversal<A, B> traversal = new Traversal<A, B>(inputs, f);
+            for (int i = 0; i < Math.min(parallelism, inputs.size()); i++) {
+                traversal.launch();
+            }
+            return traversal.gather.result;
+        }
+
+        /**
+         * Completes like the first input to complete, then cancels the
+         * others.
+         */
+        public static <T> Promise<T> firstCompletedOf(final Collection<Promise<T>> promises) {
+            final Promise<T> result = new Promise<T>();
+            F.Action<Promise<T>> action = new F.Action<Promise<T>>() {
                 @Override
                 public void apply(Promise<T> completed) {
-                    waitAllLock.countDown();
-                    if (waitAllLock.getCount() == 0) {
-                        try {
-                            result.apply(result.get());
-                        } catch (Exception e) {
-                            throw new ExceptionWrapper(e);
+                    if (result.complete(completed.state)) {
+                        for (Promise<T> promise : promises) {
+                            if (promise != completed) {
+                                promise.cancel(false);
+                            }
                         }
                     }
                 }
             };
-            for (Promise<T> f : promises) {
-                f.onRedeem(action);
+            for (Promise<T> promise : promises) {
+                promise.onRedeem(action);
             }
             return result;
         }
 
+        @SafeVarargs
+        public static <T> Promise<T> firstCompletedOf(final Promise<T>... promises) {
+            return firstCompletedOf(Arrays.asList(promises));
+        }
+
         public static <T> Promise<T> waitAny(final Promise<T>... futures) {
             final Promise<T> result = new Promise<T>();
             final F.Action<Promise<T>> action = new F.Action<Promise<T>>() {
                 @Override
                 public void apply(Promise<T> completed) {
-                    synchronized (this) {
-                        if (result.isDone()) {
-                            return;
-                        }
-                    }
-                    result.apply(completed.getOrNull());
+                    result.complete(completed.state);
                 }
             };
             for (Promise<T> f : futures) {
@@ -304,6 +546,139 @@ public class Concurrent {
             }
             return result;
         }
+
+        /**
+         * Reduces the values in completion order as they arrive, so op
+         * should not depend on the order of the inputs. Completes with the
+         * first failure.
+         */
+        public static <T, R> Promise<R> fold(Collection<Promise<T>> promises, R zero, F.F2<R, T, R> op) {
+            if (promises.isEmpty()) {
+                return pure(zero);
+            }
+            Fold<T, R> fold = new Fold<T, R>(promises.size(), zero, op);
+            for (Promise<T> promise : promises) {
+                promise.onRedeem(fold);
+            }
+            return fold.result;
+        }
+
+        private static final class Gather<T> {
+
+            private final Promise<List<T>> result = new Promise<List<T>>();
+            private final Object[] values;
+            private final AtomicInteger remaining;
+
+            private Gather(int size) {
+                this.values = new Object[size];
+                this.remaining = new AtomicInteger(size);
+            }
+
+            private void collect(int index, Promise<T> completed) {
+                Object current = completed.state;
+                if (current instanceof Failed) {
+                    result.complete(current);
+                    return;
+                }
+                values[index] = completed.value(current);
+                if (remaining.decrementAndGet() == 0) {
+                    @SuppressWarnings("unchecked")
+                    List<T> all = (List<T>) Arrays.asList(values);
+                    result.apply(all);
+                }
+            }
+        }
+
+        private static final class Traversal<A, B> {
+
+            private final List<A> inputs;
+            private final Function<A, Promise<B>> f;
+            private final Gather<B> gather;
+            private final AtomicInteger next = new AtomicInteger();
+
+            private Traversal(Collection<A> inputs, Function<A, Promise<B>> f) {
+                this.inputs = new ArrayList<A>(inputs);
+                this.f = f;
+                this.gather = new Gather<B>(this.inputs.size());
+            }
+
+            private void launch() {
+                while (!gather.result.isDone()) {
+                    final int index = next.getAndIncrement();
+                    if (index >= inputs.size()) {
+                        return;
+                    }
+                    Promise<B> promise;
+                    try {
+                        promise = f.apply(inputs.get(index));
+                    } catch (Throwable e) {
+                        gather.result.fail(e);
+                        return;
+                    }
+                    if (promise.isDone()) {
+                        // already redeemed, keep going on this thread instead of recursing
+                        gather.collect(index, promise);
+                        continue;
+                    }
+                    promise.onRedeem(new F.Action<Promise<B>>() {
+                        @Override
+                        public void apply(Promise<B> t) {
+                            gather.collect(index, t);
+                            launch();
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+
+        private static final class Fold<T, R> implements F.Action<Promise<T>> {
+
+            private final Promise<R> result = new Promise<R>();
+            private final ConcurrentLinkedQueue<Promise<T>> arrived = new ConcurrentLinkedQueue<Promise<T>>();
+            private final AtomicInteger wip = new AtomicInteger();
+            private final F.F2<R, T, R> op;
+            private R accumulator;
+            private int remaining;
+
+            private Fold(int size, R zero, F.F2<R, T, R> op) {
+                this.remaining = size;
+                this.accumulator = zero;
+                this.op = op;
+            }
+
+            @Override
+            public void apply(Promise<T> completed) {
+                arrived.offer(completed);
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+                // only one thread reduces at a time, the others just enqueue
+                do {
+                    reduce(arrived.poll());
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            private void reduce(Promise<T> completed) {
+                if (result.isDone()) {
+                    return;
+                }
+                Object current = completed.state;
+                if (current instanceof Failed) {
+                    result.complete(current);
+                    return;
+                }
+                try {
+                    accumulator = op.apply(accumulator, completed.value(current));
+                } catch (Throwable e) {
+                    result.fail(e);
+                    return;
+                }
+                if (--remaining == 0) {
+                    result.apply(accumulator);
+                }
+            }
+        }
         
         public static <T> Promise<T> pure(T t) {
             Promise<T> promise = new Promise<T>();
@@ -311,6 +686,12 @@ public class Concurrent {
             return promise;
         }
         
+        public static <T> Promise<T> failed(Throwable failure) {
+            Promise<T> promise = new Promise<T>();
+            promise.fail(failure);
+            return promise;
+        }
+        
         public static void now(ExecutorService service, final Runnable callable) {
             service.execute(callable);
         }
@@ -320,23 +701,19 @@ public class Concurrent {
         }
         
         public static void now(final Runnable callable) {
-            final ActorContext context = Actors.newContext();
-            context.now(callable);
+            Actors.defaultContext().now(callable);
         }
         
         public static void scheduleOnce(long in, TimeUnit unit, Runnable callable) {
-            final ActorContext context = Actors.newContext();
-            context.scheduleOnce(in, unit, callable);
+            Actors.defaultContext().scheduleOnce(in, unit, callable);
         }
         
         public static <T> Promise<T> future(final F.Callable<T> callable) {
-            final ActorContext context = Actors.newContext();
-            return context.now(callable);
+            return Actors.defaultContext().now(callable);
         }
         
         public static <T> Promise<T> futureOnce(long in, TimeUnit unit, F.Callable<T> callable) {
-            final ActorContext context = Actors.newContext();
-            return context.scheduleOnce(in, unit, callable);
+            return Actors.defaultContext().scheduleOnce(in, unit, callable);
         }
         
         public static <T> Promise<T> future(ActorContext context, final F.Callable<T> callable) {
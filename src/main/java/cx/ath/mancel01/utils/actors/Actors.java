@@ -24,13 +24,24 @@ import cx.ath.mancel01.utils.F.Function;
 import cx.ath.mancel01.utils.F.Unit;
 import cx.ath.mancel01.utils.M;
 import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Dispatchers.Affine;
+import cx.ath.mancel01.utils.actors.Dispatchers.Affinity;
+import cx.ath.mancel01.utils.actors.Dispatchers.Dispatcher;
+import cx.ath.mancel01.utils.actors.Mailboxes.Envelope;
+import cx.ath.mancel01.utils.actors.Mailboxes.Mailbox;
+import cx.ath.mancel01.utils.actors.Metrics.Instrumentation;
+import cx.ath.mancel01.utils.actors.Metrics.Probe;
+import cx.ath.mancel01.utils.actors.Routers.RoutingLogic;
+import cx.ath.mancel01.utils.actors.Supervision.Directive;
+import cx.ath.mancel01.utils.actors.Supervision.Failed;
+import cx.ath.mancel01.utils.actors.Supervision.Restarts;
+import cx.ath.mancel01.utils.actors.Supervision.Strategy;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Actors {
 
@@ -46,11 +57,15 @@ public class Actors {
         
         Future<Boolean> buzy();
 
+        int mailboxSize();
+
         void tell(Object message);
         
         void tell(Object message, Actor from);
         
         <T> Promise<T> ask(Object message);
+        
+        <T> Promise<T> ask(Object message, long timeout, TimeUnit unit);
     }
     
     public final static Effect CONTINUE = new Effect() {
@@ -96,17 +111,6 @@ public class Actors {
         }
     });
     
-    private static final class InternalMessage {
-        public final Actor from;
-        public final Actor to;
-        public final Object message;
-        public InternalMessage(Actor from, Actor to, Object message) {
-            this.from = from;
-            this.message = message;
-            this.to = to;
-        }
-    }
-    
     public static final class Context {
         public final Actor from;
         public final Actor me;
@@ -124,6 +128,34 @@ public class Actors {
         public ActorContext actorCtx() {
             return ctx;
         }
+
+        /**
+         * Creates a child of this actor, named "parent/name" and supervised
+         * by the strategy of the parent's props.
+         */
+        public Actor spawn(Function<Actor, Behavior> initial, String name, Props props) {
+            if (me instanceof ActorImpl && ctx instanceof CreationnalContextImpl) {
+                return ((CreationnalContextImpl) ctx).create(initial, name, props, (ActorImpl) me);
+            }
+            throw new UnsupportedOperationException("Only local actors can have children");
+        }
+
+        public Actor spawn(Function<Actor, Behavior> initial, String name) {
+            return spawn(initial, name, ctx.defaults());
+        }
+
+        public Actor spawn(final Behavior initial, String name, Props props) {
+            return spawn(new Function<Actor, Behavior>() {
+                @Override
+                public Behavior apply(Actor t) {
+                    return initial;
+                }
+            }, name, props);
+        }
+
+        public Actor spawn(Behavior initial, String name) {
+            return spawn(initial, name, ctx.defaults());
+        }
     }
     
     public static enum Sink implements Actor, Serializable {
@@ -132,6 +164,7 @@ public class Actors {
         
             @Override
             public void tell(Object message) {
+                Metrics.sinkDeadLetter();
                 SimpleLogger.trace("Message received in actor sink : {}", message.toString());
             }
             @Override
@@ -142,30 +175,162 @@ public class Actors {
                 return Promise.pure(new Object());
             }
             @Override
+            public Promise<Object> ask(Object message, long timeout, TimeUnit unit) {
+                return ask(message);
+            }
+            @Override
             public String id() { return "SINK"; }
 
             @Override
             public Future<Boolean> buzy() { return Promise.pure(false); }
+
+            @Override
+            public int mailboxSize() { return 0; }
         }
     };
     
     public static enum Poison { PILL }
     
     public static enum Failure { FAIL }
+    
+    public static final int DEFAULT_THROUGHPUT = 5;
+    
+    public static class Props {
+        
+        private Executor executor;
+        // on Dispatchers.blockingDispatcher(), looked up when needed too
+        private boolean blocking = false;
+        private int throughput = DEFAULT_THROUGHPUT;
+        private long throughputDeadline = 0L;
+        private Function<Unit, Mailbox> mailbox = Mailboxes.unbounded();
+        private Strategy supervisor = Supervision.defaultStrategy();
+
+        /**
+         * Props on Dispatchers.defaultDispatcher(), looked up when needed so
+         * that they outlive Dispatchers.shutdown().
+         */
+        public Props() {
+            this(null);
+        }
+
+        public Props(Executor executor) {
+            this.executor = executor;
+        }
+
+        public Props withExecutor(Executor executor) {
+            this.executor = executor;
+            this.blocking = false;
+            return this;
+        }
+
+        public Props withThroughput(int messages) {
+            if (messages < 1) {
+                throw new IllegalArgumentException("Throughput should be at least 1 message");
+            }
+            this.throughput = messages;
+            return this;
+        }
+
+        public Props withThroughputDeadline(long time, TimeUnit unit) {
+            this.throughputDeadline = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Marks the actor as blocking: it runs on Dispatchers.blockingDispatcher()
+         * and can't starve the actors of the CPU bound executor.
+         */
+        public Props withBlocking() {
+            this.executor = null;
+            this.blocking = true;
+            return this;
+        }
+
+        public Props withMailbox(Function<Unit, Mailbox> mailbox) {
+            this.mailbox = mailbox;
+            return this;
+        }
+
+        /**
+         * Strategy applied to the children of the actor. The one of the
+         * context defaults also applies to top level actors, which stop
+         * instead of escalating.
+         */
+        public Props withSupervisor(Strategy supervisor) {
+            this.supervisor = supervisor;
+            return this;
+        }
+
+        public Executor executor() {
+            if (blocking) {
+                return Dispatchers.blockingDispatcher();
+            }
+            return executor == null ? Dispatchers.defaultDispatcher() : executor;
+        }
+
+        public int throughput() {
+            return throughput;
+        }
+
+        public long throughputDeadlineNanos() {
+            return throughputDeadline;
+        }
+
+        public Function<Unit, Mailbox> mailbox() {
+            return mailbox;
+        }
+
+        public Strategy supervisor() {
+            return supervisor;
+        }
+
+        public Props copy() {
+            Props props = new Props(executor);
+            props.blocking = blocking;
+            props.throughput = throughput;
+            props.throughputDeadline = throughputDeadline;
+            props.mailbox = mailbox;
+            props.supervisor = supervisor;
+            return props;
+        }
+    }
 
-    private static class ActorImpl extends AtomicBoolean implements Actor, Runnable {
+    private static class ActorImpl extends AtomicBoolean implements Actor, Runnable, Affine {
 
         private final String name;
         private final Executor e;
-        private final ConcurrentLinkedQueue<InternalMessage> mbox = new ConcurrentLinkedQueue<InternalMessage>();
+        private final int throughput;
+        private final long throughputDeadline;
+        private final Mailbox mbox;
+        private final Envelope envelope = new Envelope();
         private Behavior behavior;
-        private final ActorContext ctx;
-
-        private ActorImpl(final Function<Actor, Behavior> initial, final String name, final Executor e, final ActorContext ctx) {
-            this.name = name;
-            this.e = e;
+        private final CreationnalContextImpl ctx;
+        private volatile Probe probe;
+        private long scheduledAt;
+        private final String key;
+        private final Function<Actor, Behavior> initial;
+        private final Behavior bootstrap;
+        private final ActorImpl parent;
+        private final Strategy supervisor;
+        private final Restarts restarts = new Restarts();
+        private final ConcurrentHashMap<String, Actor> children = new ConcurrentHashMap<String, Actor>(4);
+        private final ConcurrentLinkedQueue<Object> system = new ConcurrentLinkedQueue<Object>();
+        private volatile boolean suspended;
+        private Affinity affinity;
+
+        private ActorImpl(final Function<Actor, Behavior> initial, final String key, final Props props, final CreationnalContextImpl ctx, final ActorImpl parent) {
+            this.key = key;
+            this.name = parent == null ? key : parent.name + "/" + key;
+            this.initial = initial;
+            this.parent = parent;
+            this.supervisor = props.supervisor();
+            this.e = props.executor();
+            this.throughput = props.throughput();
+            this.throughputDeadline = props.throughputDeadlineNanos();
+            this.mbox = props.mailbox().apply(Unit.unit());
+            Mailboxes.own(mbox, this);
             this.ctx = ctx;
-            this.behavior = new Behavior() {
+            this.bootstrap = new Behavior() {
 
                 @Override
                 public Effect apply(Object message, Context ctx) {
@@ -176,32 +341,19 @@ public class Actors {
                     }
                 }
             };
+            this.behavior = bootstrap;
         }
 
         @Override
         public <T> Promise<T> ask(Object message) {
-            final String promiseActorName =  UUID.randomUUID().toString();
-            final Promise<T> promise = new Promise<T>();
-            promise.onRedeem(new F.Action<Promise<T>>() {
-                @Override
-                public void apply(Promise<T> t) {
-                    ctx.scheduleOnce(1, TimeUnit.SECONDS, new Runnable() {
-                        @Override
-                        public void run() {
-                            ((CreationnalContextImpl) ctx).actors.remove(promiseActorName);
-                        }
-                    });
-                }
-            });
-            Actor promiseActor = ctx.create(new Behavior() {
-                @Override
-                public Effect apply(Object a, Context b) {
-                    promise.apply((T) a);
-                    return Actors.DIE;
-                }
-            }, promiseActorName);
+            return ask(message, 0L, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public <T> Promise<T> ask(Object message, long timeout, TimeUnit unit) {
+            PromiseActor<T> promiseActor = new PromiseActor<T>("promise/", timeout, unit);
             tell(message, promiseActor);
-            return promise;
+            return promiseActor.promise;
         }
 
         @Override
@@ -212,9 +364,12 @@ public class Actors {
         @Override
         public final void tell(Object message, Actor from) {
             if (behavior == DIE.like) {
+                final Probe p = probe;
+                if (p != null) {
+                    p.deadLetter(message, from);
+                }
                 DIE.like.apply(message, new Context(this, from, this.name, ctx));
-            } else {
-                mbox.offer(new InternalMessage(from, this, message));
+            } else if (mbox.offer(message, from)) {
                 trySchedule();
             }
         }
@@ -223,13 +378,54 @@ public class Actors {
         public void run() {
             try {
                 set(true);
-                InternalMessage context = mbox.poll();
-                if (context != null && context.message != null && context.message instanceof Poison) {
-                    behavior = DIE.like;
-                } else {
-                    behavior = behavior.apply(context.message, new Context(this, context.from, context.to.id(), ctx)).getOrElse(behavior);
+                final Probe p = probe;
+                if (p != null && scheduledAt != 0L) {
+                    p.scheduled(System.nanoTime() - scheduledAt);
+                }
+                final long deadline = throughputDeadline > 0L ? System.nanoTime() + throughputDeadline : 0L;
+                for (int processed = 0; processed < throughput; processed++) {
+                    if (!system.isEmpty()) {
+                        processSystem();
+                    }
+                    if (suspended || !mbox.poll(envelope)) {
+                        break;
+                    }
+                    if (behavior == DIE.like) {
+                        // stopped earlier in this batch
+                        if (p != null) {
+                            p.deadLetter(envelope.message, envelope.from);
+                        }
+                        DIE.like.apply(envelope.message, new Context(this, envelope.from, name, ctx));
+                    } else if (envelope.message instanceof Poison) {
+                        stop();
+                    } else {
+                        // a context per message, so that a callback keeping it
+                        // still answers the right sender
+                        final Context context = new Context(this, envelope.from, name, ctx);
+                        try {
+                            if (p == null) {
+                                behavior = behavior.apply(envelope.message, context).getOrElse(behavior);
+                            } else {
+                                final long start = System.nanoTime();
+                                behavior = behavior.apply(envelope.message, context).getOrElse(behavior);
+                                p.processed(System.nanoTime() - start);
+                            }
+                        } catch (Throwable t) {
+                            if (t instanceof VirtualMachineError) {
+                                throw (Error) t;
+                            }
+                            SimpleLogger.trace("Actor {} failed on message {} : {}", name, envelope.message, t);
+                            Sink.INSTANCE.tell(envelope.message, envelope.from);
+                            fail(t);
+                        }
+                    }
+                    if (deadline > 0L && System.nanoTime() - deadline >= 0L) {
+                        break;
+                    }
                 }
             } finally {
+                envelope.message = null;
+                envelope.from = null;
                 set(false);
                 trySchedule();
             }
@@ -240,8 +436,102 @@ public class Actors {
             return "localactor://" + name;
         }
 
+        /**
+         * Applies the directive of the supervisor, runs on the failing actor.
+         */
+        private void fail(Throwable cause) {
+            final Strategy strategy = parent == null ? ctx.defaults().supervisor() : parent.supervisor;
+            Directive directive = strategy.decide(cause);
+            if (directive == Directive.ESCALATE && parent == null) {
+                SimpleLogger.error("Actor {} stopped, nobody to escalate to : {}", name, cause);
+                directive = Directive.STOP;
+            } else if (directive == Directive.RESTART && !strategy.permit(restarts)) {
+                SimpleLogger.error("Actor {} stopped after too many restarts : {}", name, cause);
+                directive = Directive.STOP;
+            }
+            if (directive == Directive.ESCALATE) {
+                suspended = true;
+                parent.signal(new Failed(this, cause));
+                return;
+            }
+            if (parent != null && strategy.allForOne()) {
+                for (Actor sibling : parent.children.values()) {
+                    if (sibling != this) {
+                        ((ActorImpl) sibling).signal(directive);
+                    }
+                }
+            }
+            handle(directive);
+        }
+
+        private void handle(Directive directive) {
+            switch (directive) {
+                case STOP:
+                    stop();
+                    return;
+                case RESTART:
+                    if (behavior != bootstrap) {
+                        try {
+                            behavior = initial.apply(this);
+                        } catch (RuntimeException re) {
+                            SimpleLogger.error("Actor {} stopped, restart failed : {}", name, re);
+                            stop();
+                            return;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            suspended = false;
+            for (Actor child : children.values()) {
+                ((ActorImpl) child).signal(directive);
+            }
+        }
+
+        /**
+         * Dead actors leave the registry, so their name can be reused while
+         * the refs still held answer with dead letters.
+         */
+        private void stop() {
+            behavior = DIE.like;
+            suspended = false;
+            for (Actor child : children.values()) {
+                ((ActorImpl) child).signal(Directive.STOP);
+            }
+            ctx.removed(this, parent == null ? ctx.actors : parent.children);
+        }
+
+        private void signal(Object message) {
+            system.offer(message);
+            trySchedule();
+        }
+
+        private void processSystem() {
+            Object message;
+            while ((message = system.poll()) != null) {
+                if (behavior == DIE.like) {
+                    continue;
+                }
+                if (message instanceof Failed) {
+                    fail(((Failed) message).cause);
+                } else {
+                    handle((Directive) message);
+                }
+            }
+        }
+
+        @Override
+        public Affinity affinity() {
+            if (affinity == null) {
+                affinity = new Affinity();
+            }
+            return affinity;
+        }
+
         private void trySchedule() {
-            if (!mbox.isEmpty() && compareAndSet(false, true)) {
+            if ((!mbox.isEmpty() && !suspended || !system.isEmpty()) && compareAndSet(false, true)) {
+                scheduledAt = probe == null ? 0L : System.nanoTime();
                 try {
                     e.execute(this);
                 } catch (RejectedExecutionException ree) {
@@ -260,6 +550,79 @@ public class Actors {
         public Future<Boolean> buzy() {
             return Promise.pure(get());
         }
+
+        @Override
+        public int mailboxSize() {
+            return mbox.size();
+        }
+    }
+    
+    static final class PromiseActor<T> implements Actor {
+        
+        private static final AtomicLong ids = new AtomicLong(0L);
+
+        final Promise<T> promise = new Promise<T>();
+        private final String id;
+        private final ScheduledFuture<?> timeout;
+
+        PromiseActor(String prefix, long timeout, TimeUnit unit) {
+            this.id = prefix + ids.incrementAndGet();
+            if (timeout > 0L) {
+                this.timeout = Dispatchers.defaultTimer().newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        promise.fail(new TimeoutException("Ask timed out on " + id));
+                    }
+                }, timeout, unit);
+            } else {
+                this.timeout = null;
+            }
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public Future<Boolean> buzy() {
+            return Promise.pure(false);
+        }
+
+        @Override
+        public int mailboxSize() {
+            return 0;
+        }
+
+        @Override
+        public void tell(Object message) {
+            tell(message, Sink.INSTANCE);
+        }
+
+        @Override
+        public void tell(Object message, Actor from) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            promise.apply((T) message);
+        }
+
+        @Override
+        public <B> Promise<B> ask(Object message) {
+            Promise<B> failed = new Promise<B>();
+            failed.fail(new UnsupportedOperationException("Can't ask a temporary actor"));
+            return failed;
+        }
+
+        @Override
+        public <B> Promise<B> ask(Object message, long timeout, TimeUnit unit) {
+            return ask(message);
+        }
+
+        @Override
+        public String toString() {
+            return "promiseactor://" + id;
+        }
     }
     
     public static class LoadBalancerActor implements Behavior {
@@ -268,12 +631,7 @@ public class Actors {
         
         public static LoadBalancerActor apply(ActorContext system, long number, Function<Unit, ? extends Behavior> of) {
             if (number > 0) {
-                List<Actor> workers = new ArrayList<Actor>();
-                for (long i = 0; i < number; i++) {
-                    Behavior b = of.apply(Unit.unit());
-                    workers.add(system.create(b, b.getClass().getSimpleName() + "__" + i));
-                } 
-                return new Actors.LoadBalancerActor(workers);
+                return new Actors.LoadBalancerActor(Routers.pool(system, number, of));
             } else {
                 throw new RuntimeException("You can't submit 0");
             }
@@ -294,14 +652,22 @@ public class Actors {
         }
     }
     
+    /**
+     * Sends to the worker with the smallest mailbox, without blocking. See
+     * Routers for other routing logics.
+     */
     public static class LoadBalancer implements Serializable {
 
         private final List<Actor> actors;
-        private Iterator<Actor> it;
+        private final RoutingLogic logic;
 
         public LoadBalancer(List<Actor> actors) {
+            this(actors, Routers.smallestMailbox());
+        }
+
+        public LoadBalancer(List<Actor> actors, RoutingLogic logic) {
             this.actors = actors;
-            this.it = actors.iterator();
+            this.logic = logic;
         }
 
         public final void tell(Broadcast msg) {
@@ -309,7 +675,7 @@ public class Actors {
         }
         
         public final void tell(Object msg) {
-            chooseAndSend(msg, null);
+            chooseAndSend(msg, Sink.INSTANCE);
         }
 
         public final void tell(Object msg, Actor from) {
@@ -317,26 +683,7 @@ public class Actors {
         }
 
         private void chooseAndSend(Object msg, Actor from) {
-            if (!it.hasNext()) {
-                it = actors.iterator();
-            }
-            try {
-            Actor a = it.next();
-            if (!a.buzy().get()) {
-                a.tell(msg, from);
-            } else {
-                boolean sent = false;
-                for (Actor bis : actors) {
-                    if (!bis.buzy().get()) {
-                        a.tell(msg, from);
-                        sent = true;
-                    }
-                }
-                if (!sent) {
-                    a.tell(msg, from);
-                }
-            }
-            } catch (Exception e) { e.printStackTrace(); }
+            logic.select(msg, actors).tell(msg, from);
         }
 
         private void broadcast(Object message, Actor from) {
@@ -410,12 +757,28 @@ public class Actors {
 
         public Actor create(final Behavior initial, final String name, final Executor e);
 
+        public Actor create(final Function<Actor, Behavior> initial, final String name, final Props props);
+
+        public Actor create(final Behavior initial, final String name, final Props props);
+
+        public Props defaults();
+
+        /**
+         * Attaches the instrumentation to every actor of the context, current
+         * and future ones. null detaches it.
+         */
+        public void instrument(Instrumentation instrumentation);
+
         public void clear();
         
         void now(Runnable runnable);
         
         <T> Promise<T> now(F.Callable<T> callable);
 
+        /**
+         * Runs now, then every period. A run lasting longer than the period
+         * delays the next one instead of being caught up (fixed delay).
+         */
         ScheduledFuture<?> schedule(long every, TimeUnit unit, Runnable runnable);
 
         ScheduledFuture<?> schedule(long every, TimeUnit unit, final Actor actor, final Object message);
@@ -428,76 +791,252 @@ public class Actors {
     }
     
     static class CreationnalContextImpl implements ActorContext {
+
+        static final String ROOT = "/user/";
+
+        /**
+         * Map of the top level actors counting its changes, so that the names
+         * advertised to a cluster are only collected again when they may
+         * have changed.
+         */
+        static final class Registry extends ConcurrentHashMap<String, Actor> {
+
+            private static final long serialVersionUID = 1L;
+
+            private final AtomicLong changes = new AtomicLong(0L);
+
+            @Override
+            public Actor put(String name, Actor actor) {
+                Actor previous = super.put(name, actor);
+                changes.incrementAndGet();
+                return previous;
+            }
+
+            @Override
+            public Actor putIfAbsent(String name, Actor actor) {
+                Actor previous = super.putIfAbsent(name, actor);
+                if (previous == null) {
+                    changes.incrementAndGet();
+                }
+                return previous;
+            }
+
+            @Override
+            public Actor remove(Object name) {
+                Actor previous = super.remove(name);
+                if (previous != null) {
+                    changes.incrementAndGet();
+                }
+                return previous;
+            }
+
+            @Override
+            public boolean remove(Object name, Object actor) {
+                boolean removed = super.remove(name, actor);
+                if (removed) {
+                    changes.incrementAndGet();
+                }
+                return removed;
+            }
+
+            @Override
+            public void clear() {
+                super.clear();
+                changes.incrementAndGet();
+            }
+        }
         
-        private final ConcurrentHashMap<String, Actor> actors = new ConcurrentHashMap<String, Actor>();
+        private final Registry actors = new Registry();
     
-        private final ExecutorService defaultExec = Executors.newCachedThreadPool();
-        
-        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-        
-        private ExecutorService service;
+        private final Props defaults;
+
+        private volatile Instrumentation instrumentation;
+
+        /**
+         * Stopped actors keep their stats, dead letters included, until the
+         * context is cleared or the instrumentation replaced.
+         */
+        private final ConcurrentLinkedQueue<Actor> stopped = new ConcurrentLinkedQueue<Actor>();
 
         protected final String id;
 
         public CreationnalContextImpl(String id) {
             this.id = id;
-            this.service = defaultExec;
+            this.defaults = new Props();
         }
         
-        public CreationnalContextImpl(String id, ExecutorService service) {
+        public CreationnalContextImpl(String id, Executor service) {
             this.id = id;
-            this.service = service;
+            this.defaults = new Props(service);
         }
 
+        /**
+         * Top level actors, children live in the map of their parent.
+         */
         ConcurrentHashMap<String, Actor> getActors() {
             return actors;
         }
+
+        /**
+         * Bumped whenever a top level actor is registered or removed.
+         */
+        long registryChanges() {
+            return actors.changes.get();
+        }
         
         @Override
         public Actor lookup(String name) {
-            if (actors.containsKey(name)) {
-                return actors.get(name);
+            final Actor actor = find(name);
+            if (actor != null) {
+                return actor;
             }
             throw new RuntimeException("Actor \"" + name + "\" don't exist in context \"" + id + "\". Please create it.");
         }
 
+        /**
+         * Resolves "name", "parent/child" or "/user/parent/child" one map per
+         * level, null when nothing is registered at that path.
+         */
+        Actor find(String path) {
+            Actor actor = actors.get(path);
+            if (actor != null) {
+                return actor;
+            }
+            int start = path.startsWith(ROOT) ? ROOT.length() : 0;
+            int slash = path.indexOf('/', start);
+            if (slash < 0) {
+                return start == 0 ? null : actors.get(path.substring(start));
+            }
+            actor = actors.get(path.substring(start, slash));
+            while (actor instanceof ActorImpl) {
+                start = slash + 1;
+                slash = path.indexOf('/', start);
+                if (slash < 0) {
+                    return ((ActorImpl) actor).children.get(path.substring(start));
+                }
+                actor = ((ActorImpl) actor).children.get(path.substring(start, slash));
+            }
+            return null;
+        }
+
+        private void removed(ActorImpl actor, ConcurrentHashMap<String, Actor> siblings) {
+            if (siblings.remove(actor.key, actor) && instrumentation != null) {
+                stopped.offer(actor);
+            }
+        }
+
+        @Override
+        public Props defaults() {
+            return defaults;
+        }
+
         @Override
         public Actor create(final Function<Actor, Behavior> initial, final String name) {
-            return create(initial, name, service);
+            return create(initial, name, defaults);
         }
 
         @Override
         public Actor create(final Function<Actor, Behavior> initial, final String name, final Executor e) {
-            if (!actors.containsKey(name)) {
-                final Actor a = new ActorImpl(initial, name, e, this);
-                a.tell(a);
-                actors.putIfAbsent(name, a);
-                return a;
-            } else {
-                return actors.get(name);
+            return create(initial, name, defaults.copy().withExecutor(e));
+        }
+
+        @Override
+        public Actor create(final Function<Actor, Behavior> initial, final String name, final Props props) {
+            return create(initial, name, props, null);
+        }
+
+        /**
+         * The actor is registered before its first message, the loser of a
+         * concurrent creation gets the registered one.
+         */
+        Actor create(final Function<Actor, Behavior> initial, final String name, final Props props, final ActorImpl parent) {
+            final ConcurrentHashMap<String, Actor> siblings = parent == null ? actors : parent.children;
+            final Actor existing = siblings.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            final ActorImpl a = new ActorImpl(initial, name, props, this, parent);
+            final Actor raced = siblings.putIfAbsent(name, a);
+            if (raced != null) {
+                return raced;
             }
+            final Instrumentation i = instrumentation;
+            if (i != null) {
+                a.probe = i.actorCreated(id, a);
+            }
+            a.tell(a);
+            return a;
         }
 
         @Override
         public Actor create(final Behavior initial, final String name) {
-            return create(initial, name, service);
+            return create(initial, name, defaults);
         }
 
         @Override
         public Actor create(final Behavior initial, final String name, final Executor e) {
+            return create(initial, name, defaults.copy().withExecutor(e));
+        }
+
+        @Override
+        public Actor create(final Behavior initial, final String name, final Props props) {
             return create(new Function<Actor, Behavior>() {
                 @Override
                 public Behavior apply(Actor t) {
                     return initial;
                 }
-            }, name, e);
+            }, name, props);
+        }
+
+        @Override
+        public void instrument(Instrumentation instrumentation) {
+            final Instrumentation previous = this.instrumentation;
+            this.instrumentation = instrumentation;
+            instrument(actors, previous, instrumentation);
+        }
+
+        private void instrument(ConcurrentHashMap<String, Actor> level, Instrumentation previous, Instrumentation instrumentation) {
+            if (level == actors) {
+                Actor actor;
+                while ((actor = stopped.poll()) != null) {
+                    if (previous != null) {
+                        previous.actorRemoved(id, actor);
+                    }
+                }
+            }
+            for (Actor actor : level.values()) {
+                if (previous != null) {
+                    previous.actorRemoved(id, actor);
+                }
+                if (actor instanceof ActorImpl) {
+                    ((ActorImpl) actor).probe = instrumentation == null ? null : instrumentation.actorCreated(id, actor);
+                    instrument(((ActorImpl) actor).children, previous, instrumentation);
+                }
+            }
         }
 
         @Override
         public void clear() {
+            final Instrumentation i = instrumentation;
+            if (i != null) {
+                removed(actors, i);
+                Actor actor;
+                while ((actor = stopped.poll()) != null) {
+                    i.actorRemoved(id, actor);
+                }
+            }
             actors.clear();
         }
 
+        private void removed(ConcurrentHashMap<String, Actor> level, Instrumentation instrumentation) {
+            for (Actor actor : level.values()) {
+                instrumentation.actorRemoved(id, actor);
+                if (actor instanceof ActorImpl) {
+                    removed(((ActorImpl) actor).children, instrumentation);
+                }
+            }
+        }
+
         @Override
         public String toString() {
             return "Actor context : " + id;
@@ -505,7 +1044,7 @@ public class Actors {
         
         @Override
         public ScheduledFuture<?> scheduleOnce(long in, TimeUnit unit, final Actor actor, final Object message) {
-            return scheduler.schedule(new Runnable() {
+            return Dispatchers.defaultTimer().newTimeout(new Runnable() {
                 @Override
                 public void run() {
                     actor.tell(message);
@@ -514,28 +1053,38 @@ public class Actors {
         }
         
         @Override
-        public ScheduledFuture<?> scheduleOnce(long in, TimeUnit unit, Runnable runnable) {
-            return scheduler.schedule(runnable, in, unit);
+        public ScheduledFuture<?> scheduleOnce(long in, TimeUnit unit, final Runnable runnable) {
+            return Dispatchers.defaultTimer().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    now(runnable);
+                }
+            }, in, unit);
         }
         
         @Override
         public ScheduledFuture<?> schedule(long every, TimeUnit unit, final Actor actor, final Object message) {
-            return scheduler.scheduleWithFixedDelay(new Runnable() {
+            return Dispatchers.defaultTimer().newFixedDelayTimeout(new Runnable() {
                 @Override
                 public void run() {
                     actor.tell(message);
                 }
-            }, 0L, every, unit);
+            }, 0L, every, unit, null);
         }
         
         @Override
-        public ScheduledFuture<?> schedule(long every, TimeUnit unit, Runnable runnable) {
-            return scheduler.scheduleWithFixedDelay(runnable, 0L, every, unit);
+        public ScheduledFuture<?> schedule(long every, TimeUnit unit, final Runnable runnable) {
+            return Dispatchers.defaultTimer().newFixedDelayTimeout(runnable, 0L, every, unit, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    now(command);
+                }
+            });
         }
 
         @Override
         public void now(Runnable runnable) {
-            scheduleOnce(0, TimeUnit.MILLISECONDS, runnable);
+            defaults.executor().execute(runnable);
         }
 
         @Override
@@ -543,8 +1092,8 @@ public class Actors {
             final Promise<T> promise = new Promise<T>();
             now(new Runnable() {
                 @Override
-                public void run() {                    
-                    promise.apply(callable.apply());
+                public void run() {
+                    complete(promise, callable);
                 }
             });
             return promise;
@@ -556,19 +1105,38 @@ public class Actors {
             scheduleOnce(in, unit, new Runnable() {
                 @Override
                 public void run() {
-                    promise.apply(callable.apply());
+                    complete(promise, callable);
                 }
             });
             return promise;
         }
+
+        private static <T> void complete(Promise<T> promise, F.Callable<T> callable) {
+            T value;
+            try {
+                value = callable.apply();
+            } catch (Throwable t) {
+                promise.fail(t);
+                return;
+            }
+            promise.apply(value);
+        }
     }
     
     private final static ConcurrentHashMap<String, ActorContext> CTXS = new ConcurrentHashMap<String, ActorContext>();
 
+    public static ActorContext defaultContext() {
+        return newContext("default");
+    }
+
     public static ActorContext newContext() {
         return newContext(UUID.randomUUID().toString());        
     } 
     
+    public static ActorContext newContext(Dispatcher dispatcher) {
+        return newContext(UUID.randomUUID().toString(), dispatcher);
+    }
+    
     public static ActorContext newContext(ExecutorService service) {
         return newContext(UUID.randomUUID().toString(), service);        
     } 
@@ -588,4 +1156,12 @@ public class Actors {
         }
         return CTXS.get(id);
     } 
+    
+    public static ActorContext newContext(String id, Dispatcher dispatcher) {
+        if (!CTXS.containsKey(id)) {
+            CreationnalContextImpl c = new CreationnalContextImpl(id, dispatcher);
+            CTXS.putIfAbsent(id, c);
+        }
+        return CTXS.get(id);
+    } 
 }
\ No newline at end of file
@@ -0,0 +1,523 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.M;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Broadcast;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActor;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteCreationnalContextImpl;
+import cx.ath.mancel01.utils.actors.Routers.ConsistentHashable;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Membership of remote actor contexts. Every gossip interval a node bumps
+ * its heartbeat and pushes its view of the cluster to one random member,
+ * or to the seeds while it knows nobody. A member whose heartbeat did not
+ * move for the failure timeout is dropped. A restarted node comes back with
+ * a new incarnation, its start time, and its heartbeat starting over.
+ * Each member also advertises the
+ * names of its actors, which makes up the directory used by lookup.
+ * 
+ * Gossip only carries (incarnation, heartbeat, version) digests. A node
+ * seeing a newer version of a member than the one it knows asks the sender
+ * for its names, so they only travel when they changed, or all at once to
+ * a newcomer.
+ */
+public class Cluster {
+
+    public static final String SYSTEM_ACTOR = "$cluster";
+
+    static final class Member implements Serializable {
+        final String host;
+        final int port;
+        final String context;
+        final long incarnation;
+        final long heartbeat;
+        final long version;
+        // null in a digest, -1 version while the names are not known yet
+        final Set<String> names;
+        final boolean leaving;
+        transient long seenAt;
+
+        Member(String host, int port, String context, long incarnation, long heartbeat, long version, Set<String> names, boolean leaving) {
+            this.host = host;
+            this.port = port;
+            this.context = context;
+            this.incarnation = incarnation;
+            this.heartbeat = heartbeat;
+            this.version = version;
+            this.names = names;
+            this.leaving = leaving;
+            this.seenAt = System.nanoTime();
+        }
+
+        String address() {
+            return host + ":" + port;
+        }
+
+        Member digest() {
+            return new Member(host, port, context, incarnation, heartbeat, version, null, leaving);
+        }
+
+        boolean newerThan(Member other) {
+            if (incarnation != other.incarnation) {
+                return incarnation > other.incarnation;
+            }
+            return heartbeat > other.heartbeat;
+        }
+    }
+
+    static final class Gossip implements Serializable {
+        final String from;
+        final List<Member> members;
+        // members whose names the sender asks for
+        final Set<String> wanted;
+
+        Gossip(String from, List<Member> members) {
+            this(from, members, Collections.<String>emptySet());
+        }
+
+        Gossip(String from, List<Member> members, Set<String> wanted) {
+            this.from = from;
+            this.members = members;
+            this.wanted = wanted;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the alive members and of the directory, rebuilt
+     * when the membership or an advertised name changes.
+     */
+    private static final class View {
+        final List<Member> alive;
+        final Map<String, List<Member>> directory;
+        final NodeRing ring;
+        final ConcurrentHashMap<String, NodeRing> rings = new ConcurrentHashMap<String, NodeRing>();
+
+        View(Collection<Member> members, int virtualNodes) {
+            List<Member> sorted = new ArrayList<Member>(members);
+            Collections.sort(sorted, new Comparator<Member>() {
+                @Override
+                public int compare(Member a, Member b) {
+                    return a.address().compareTo(b.address());
+                }
+            });
+            this.alive = Collections.unmodifiableList(sorted);
+            Map<String, List<Member>> names = new HashMap<String, List<Member>>();
+            for (Member member : sorted) {
+                for (String name : member.names) {
+                    List<Member> hosts = names.get(name);
+                    if (hosts == null) {
+                        hosts = new ArrayList<Member>(1);
+                        names.put(name, hosts);
+                    }
+                    hosts.add(member);
+                }
+            }
+            this.directory = names;
+            this.ring = new NodeRing(sorted, virtualNodes);
+        }
+
+        NodeRing ring(String name, int virtualNodes) {
+            NodeRing ring = rings.get(name);
+            if (ring == null) {
+                List<Member> hosts = directory.get(name);
+                ring = new NodeRing(hosts == null ? Collections.<Member>emptyList() : hosts, virtualNodes);
+                rings.putIfAbsent(name, ring);
+            }
+            return ring;
+        }
+    }
+
+    /**
+     * Consistent hash ring of nodes, positions only depend on the node
+     * addresses so every member computes the same ring.
+     */
+    private static final class NodeRing {
+        private final TreeMap<Integer, Member> nodes = new TreeMap<Integer, Member>();
+
+        NodeRing(List<Member> members, int virtualNodes) {
+            for (Member member : members) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    nodes.put(Routers.hash((member.address() + "#" + i).hashCode()), member);
+                }
+            }
+        }
+
+        Member lookup(Object key) {
+            if (nodes.isEmpty()) {
+                return null;
+            }
+            Map.Entry<Integer, Member> entry = nodes.ceilingEntry(Routers.hashOf(key));
+            if (entry == null) {
+                entry = nodes.firstEntry();
+            }
+            return entry.getValue();
+        }
+    }
+
+    private static final int VIRTUAL_NODES = 32;
+
+    private static final Set<String> NONE = Collections.<String>emptySet();
+
+    // failure timeouts a dropped member is remembered, well past the time
+    // the others need to drop it too
+    private static final int TOMBSTONE_TIMEOUTS = 10;
+
+    private final RemoteCreationnalContextImpl ctx;
+    private final List<String> seeds;
+    private final Map<String, Member> members = new HashMap<String, Member>();
+    // members as they were dropped, seenAt being the drop time : older
+    // gossip can't bring them back
+    private final Map<String, Member> removed = new HashMap<String, Member>();
+    private final Random random = new Random();
+    private final String address;
+    private Member self;
+    private long registryChanges = -1L;
+    private volatile View view;
+    private volatile boolean running = true;
+    private volatile long interval = TimeUnit.MILLISECONDS.toNanos(100);
+    private volatile long failureTimeout = TimeUnit.SECONDS.toNanos(1);
+
+    Cluster(RemoteCreationnalContextImpl ctx, String host, int port, String... seeds) {
+        this.ctx = ctx;
+        this.address = host + ":" + port;
+        this.seeds = new ArrayList<String>(Arrays.asList(seeds));
+        this.seeds.remove(address);
+        this.self = new Member(host, port, ctx.id, System.currentTimeMillis(), 0L, 0L, Collections.<String>emptySet(), false);
+        this.view = new View(Collections.singletonList(self), VIRTUAL_NODES);
+        ctx.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context context) {
+                for (Gossip gossip : M.caseClassOf(Gossip.class, message)) {
+                    merge(gossip);
+                }
+                return Actors.CONTINUE;
+            }
+        }, SYSTEM_ACTOR);
+        schedule();
+    }
+
+    public Cluster withGossipInterval(long interval, TimeUnit unit) {
+        this.interval = unit.toNanos(interval);
+        return this;
+    }
+
+    public Cluster withFailureTimeout(long timeout, TimeUnit unit) {
+        this.failureTimeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * host:port of the alive members, this node included.
+     */
+    public List<String> members() {
+        List<String> addresses = new ArrayList<String>();
+        for (Member member : view.alive) {
+            addresses.add(member.address());
+        }
+        return addresses;
+    }
+
+    /**
+     * host:port of a node hosting an actor with this name, this node first,
+     * null if nobody advertises it.
+     */
+    public String nodeOf(String name) {
+        Member member = host(name);
+        return member == null ? null : member.address();
+    }
+
+    /**
+     * host:port of the node owning the key on the consistent hash ring of the
+     * alive members. Every member gives the same answer once their views
+     * agree. Null keys all belong to the same node.
+     */
+    public String nodeFor(Object key) {
+        Member member = view.ring.lookup(key);
+        return member == null ? null : member.address();
+    }
+
+    Actor lookup(String name) {
+        Member member = host(name);
+        if (member == null) {
+            return null;
+        }
+        return actor(member, name);
+    }
+
+    private Member host(String name) {
+        List<Member> hosts = view.directory.get(name);
+        if (hosts == null || hosts.isEmpty()) {
+            return null;
+        }
+        for (Member member : hosts) {
+            if (member.address().equals(address)) {
+                return member;
+            }
+        }
+        return hosts.get(0);
+    }
+
+    private Actor actor(Member member, String name) {
+        if (member.address().equals(address)) {
+            return ctx.find(name);
+        }
+        return RemoteActor.ref(member.context, name, member.host, member.port, ctx);
+    }
+
+    /**
+     * Router sending each message to the actor called name on the node owning
+     * its key, among the nodes hosting such an actor. The key is given by
+     * ConsistentHashable messages, or by the key function, or is the message
+     * itself.
+     */
+    public Behavior router(final String name, final Function<Object, Object> key) {
+        return new Behavior() {
+            @Override
+            public Effect apply(Object message, Context context) {
+                for (Broadcast b : M.caseClassOf(Broadcast.class, message)) {
+                    List<Member> hosts = view.directory.get(name);
+                    if (hosts != null) {
+                        for (Member member : hosts) {
+                            actor(member, name).tell(b.message, b.from);
+                        }
+                    }
+                    return Actors.CONTINUE;
+                }
+                Object k = message instanceof ConsistentHashable 
+                        ? ((ConsistentHashable) message).consistentHashKey() 
+                        : key == null ? message : key.apply(message);
+                Member member = view.ring(name, VIRTUAL_NODES).lookup(k);
+                Actor target = member == null ? null : actor(member, name);
+                if (target == null) {
+                    Actors.Sink.INSTANCE.tell(message, context.from);
+                } else {
+                    target.tell(message, context.from);
+                }
+                return Actors.CONTINUE;
+            }
+        };
+    }
+
+    public Behavior router(String name) {
+        return router(name, null);
+    }
+
+    /**
+     * Tells the other members this node goes away and stops gossiping.
+     */
+    public void leave() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        List<Member> targets;
+        Gossip gossip;
+        synchronized (this) {
+            self = new Member(self.host, self.port, self.context, self.incarnation, self.heartbeat + 1, self.version, self.names, true);
+            gossip = gossip(NONE, NONE);
+            targets = new ArrayList<Member>(members.values());
+        }
+        for (Member member : targets) {
+            RemoteActor.ref(member.context, SYSTEM_ACTOR, member.host, member.port, ctx).tell(gossip);
+        }
+        Actor system = ctx.getActors().remove(SYSTEM_ACTOR);
+        if (system != null) {
+            system.tell(Actors.Poison.PILL);
+        }
+    }
+
+    private void schedule() {
+        if (running) {
+            ctx.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        tick();
+                    } finally {
+                        schedule();
+                    }
+                }
+            }, interval, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void tick() {
+        if (!running) {
+            return;
+        }
+        List<String> targets = new ArrayList<String>();
+        Gossip gossip;
+        synchronized (this) {
+            Set<String> names = self.names;
+            boolean changed = false;
+            long changes = ctx.registryChanges();
+            if (changes != registryChanges) {
+                registryChanges = changes;
+                names = advertised();
+                changed = !names.equals(self.names);
+            }
+            self = new Member(self.host, self.port, self.context, self.incarnation, self.heartbeat + 1, 
+                    changed ? self.version + 1 : self.version, changed ? names : self.names, false);
+            long now = System.nanoTime();
+            for (Iterator<Member> it = members.values().iterator(); it.hasNext();) {
+                Member member = it.next();
+                if (now - member.seenAt > failureTimeout) {
+                    it.remove();
+                    member.seenAt = now;
+                    removed.put(member.address(), member);
+                    changed = true;
+                }
+            }
+            for (Iterator<Member> it = removed.values().iterator(); it.hasNext();) {
+                if (now - it.next().seenAt > TOMBSTONE_TIMEOUTS * failureTimeout) {
+                    it.remove();
+                }
+            }
+            if (changed) {
+                rebuild();
+            }
+            if (members.isEmpty()) {
+                targets.addAll(seeds);
+            } else {
+                List<Member> others = new ArrayList<Member>(members.values());
+                targets.add(others.get(random.nextInt(others.size())).address());
+            }
+            gossip = gossip(NONE, NONE);
+        }
+        for (String target : targets) {
+            send(target, gossip);
+        }
+    }
+
+    private void merge(Gossip gossip) {
+        boolean unknownSender;
+        Gossip answer = null;
+        synchronized (this) {
+            unknownSender = !members.containsKey(gossip.from);
+            boolean changed = false;
+            Set<String> wanted = new HashSet<String>();
+            for (Member member : gossip.members) {
+                String key = member.address();
+                if (key.equals(address)) {
+                    continue;
+                }
+                Member known = members.get(key);
+                boolean sameIncarnation = known != null && known.incarnation == member.incarnation;
+                // names asked for, possibly along with a heartbeat already seen
+                boolean fills = sameIncarnation && member.names != null && member.version > known.version;
+                if (known != null && !member.newerThan(known) && !fills) {
+                    continue;
+                }
+                Member dropped = removed.get(key);
+                if (dropped != null && !member.newerThan(dropped)) {
+                    continue;
+                }
+                member.seenAt = System.nanoTime();
+                if (member.leaving) {
+                    if (members.remove(key) != null) {
+                        changed = true;
+                    }
+                    removed.put(key, member);
+                    continue;
+                }
+                long heartbeat = sameIncarnation ? Math.max(member.heartbeat, known.heartbeat) : member.heartbeat;
+                Member stored;
+                if (member.names != null) {
+                    stored = new Member(member.host, member.port, member.context, member.incarnation, 
+                            heartbeat, member.version, member.names, false);
+                } else {
+                    if (!sameIncarnation || known.version < member.version) {
+                        wanted.add(key);
+                    }
+                    // keeps the names known so far, and their version
+                    stored = new Member(member.host, member.port, member.context, member.incarnation, heartbeat, 
+                            sameIncarnation ? known.version : -1L, 
+                            sameIncarnation ? known.names : Collections.<String>emptySet(), false);
+                }
+                members.put(key, stored);
+                removed.remove(key);
+                if (known == null || known.version != stored.version || known.incarnation != stored.incarnation) {
+                    changed = true;
+                }
+            }
+            if (changed) {
+                rebuild();
+            }
+            if (running) {
+                if (unknownSender && members.containsKey(gossip.from)) {
+                    // speeds up joins : a newcomer learns everybody at once
+                    answer = gossip(null, wanted);
+                } else if (!gossip.wanted.isEmpty() || !wanted.isEmpty()) {
+                    answer = gossip(gossip.wanted, wanted);
+                }
+            }
+        }
+        if (answer != null) {
+            send(gossip.from, answer);
+        }
+    }
+
+    private void send(String target, Gossip gossip) {
+        int colon = target.lastIndexOf(':');
+        Member known;
+        synchronized (this) {
+            known = members.get(target);
+        }
+        String context = known == null ? "" : known.context;
+        RemoteActor.ref(context, SYSTEM_ACTOR, target.substring(0, colon), 
+                Integer.parseInt(target.substring(colon + 1)), ctx).tell(gossip);
+    }
+
+    // callers hold the lock. Digests of every member, with the names of the
+    // named ones, or of all of them when named is null
+    private Gossip gossip(Set<String> named, Set<String> wanted) {
+        List<Member> all = new ArrayList<Member>(members.size() + 1);
+        for (Member member : members.values()) {
+            all.add(named == null || named.contains(member.address()) ? member : member.digest());
+        }
+        all.add(named == null || named.contains(address) ? self : self.digest());
+        return new Gossip(address, all, wanted);
+    }
+
+    // callers hold the lock
+    private void rebuild() {
+        List<Member> alive = new ArrayList<Member>(members.values());
+        alive.add(self);
+        view = new View(alive, VIRTUAL_NODES);
+    }
+
+    private Set<String> advertised() {
+        Set<String> names = new HashSet<String>();
+        for (String name : ctx.getActors().keySet()) {
+            if (!name.startsWith("$")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Dispatchers {
+
+    public static interface Dispatcher extends Executor {
+
+        String id();
+
+        void shutdown();
+
+        boolean isShutdown();
+
+        boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+    }
+
+    public static final int DEFAULT_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Threads of the blocking dispatcher when virtual threads are not available.
+     */
+    public static final int DEFAULT_BLOCKING_THREADS = Math.max(16, 4 * DEFAULT_PARALLELISM);
+
+    // volatile : contexts look them up on every use, see shutdown()
+    private static volatile Dispatcher defaultDispatcher;
+
+    private static volatile Dispatcher blockingDispatcher;
+
+    private static volatile HashedWheelTimer defaultTimer;
+
+    public static Dispatcher defaultDispatcher() {
+        Dispatcher dispatcher = defaultDispatcher;
+        if (dispatcher != null && !dispatcher.isShutdown()) {
+            return dispatcher;
+        }
+        synchronized (Dispatchers.class) {
+            if (defaultDispatcher == null || defaultDispatcher.isShutdown()) {
+                defaultDispatcher = forkJoin("default", DEFAULT_PARALLELISM);
+            }
+            return defaultDispatcher;
+        }
+    }
+
+    /**
+     * Shared dispatcher of the actors created with Props.withBlocking(), for
+     * JDBC, HTTP and other blocking calls. Virtual threads when the runtime
+     * has them, a bounded pool otherwise.
+     */
+    public static Dispatcher blockingDispatcher() {
+        Dispatcher dispatcher = blockingDispatcher;
+        if (dispatcher != null && !dispatcher.isShutdown()) {
+            return dispatcher;
+        }
+        synchronized (Dispatchers.class) {
+            if (blockingDispatcher == null || blockingDispatcher.isShutdown()) {
+                blockingDispatcher = virtual("blocking", DEFAULT_BLOCKING_THREADS);
+            }
+            return blockingDispatcher;
+        }
+    }
+
+    public static HashedWheelTimer defaultTimer() {
+        HashedWheelTimer timer = defaultTimer;
+        if (timer != null && !timer.isStopped()) {
+            return timer;
+        }
+        synchronized (Dispatchers.class) {
+            if (defaultTimer == null || defaultTimer.isStopped()) {
+                defaultTimer = new HashedWheelTimer("default");
+            }
+            return defaultTimer;
+        }
+    }
+
+    /**
+     * Stops the shared dispatchers and timer. Contexts using the defaults,
+     * Actors.defaultContext() included, get new ones on their next use, but
+     * the actors already created stay on the stopped dispatcher.
+     */
+    public static synchronized void shutdown() {
+        if (defaultDispatcher != null) {
+            defaultDispatcher.shutdown();
+            defaultDispatcher = null;
+        }
+        if (blockingDispatcher != null) {
+            blockingDispatcher.shutdown();
+            blockingDispatcher = null;
+        }
+        if (defaultTimer != null) {
+            defaultTimer.stop();
+            defaultTimer = null;
+        }
+    }
+
+    public static Dispatcher forkJoin(String id, int parallelism) {
+        return new ForkJoinDispatcher(id, parallelism);
+    }
+
+    public static Dispatcher pinned(String id, int threads) {
+        return new PinnedDispatcher(id, threads);
+    }
+
+    /**
+     * Keeps each actor on one worker thread, pulls actors woken up by
+     * another lane onto it and only migrates them when their lane is
+     * overloaded. Made for chatty actors exchanging small messages.
+     */
+    public static Dispatcher affinity(String id, int threads) {
+        return new AffinityDispatcher(id, threads);
+    }
+
+    public static Dispatcher callingThread() {
+        return new CallingThreadDispatcher();
+    }
+
+    public static Dispatcher fromExecutor(String id, ExecutorService service) {
+        return new ExecutorServiceDispatcher(id, service);
+    }
+
+    /**
+     * At most threads threads, idle ones die after a minute. Tasks queue up
+     * once they are all busy.
+     */
+    public static Dispatcher bounded(String id, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A bounded dispatcher needs at least one thread");
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(id));
+        pool.allowCoreThreadTimeOut(true);
+        return new ExecutorServiceDispatcher(id, pool);
+    }
+
+    /**
+     * One virtual thread per drain loop, or bounded(id, fallbackThreads) when
+     * the runtime has no virtual threads.
+     */
+    public static Dispatcher virtual(String id, int fallbackThreads) {
+        ExecutorService service = VirtualThreads.newExecutor(id);
+        if (service == null) {
+            return bounded(id, fallbackThreads);
+        }
+        return new ExecutorServiceDispatcher(id, service);
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return VirtualThreads.PER_TASK != null && VirtualThreads.NAME != null;
+    }
+
+    /**
+     * Looked up by reflection, the library still targets runtimes without
+     * virtual threads.
+     */
+    private static class VirtualThreads {
+
+        private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+        private static final Method FACTORY = OF_VIRTUAL == null ? null : method(OF_VIRTUAL.getReturnType(), "factory");
+        private static final Method NAME = FACTORY == null ? null : method(OF_VIRTUAL.getReturnType(), "name", String.class, long.class);
+        private static final Method PER_TASK = FACTORY == null ? null : method(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+        private static Method method(Class<?> type, String name, Class<?>... parameters) {
+            try {
+                return type.getMethod(name, parameters);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        static ExecutorService newExecutor(String id) {
+            if (PER_TASK == null || NAME == null) {
+                return null;
+            }
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), "actors-" + id + "-", 1L);
+                return (ExecutorService) PER_TASK.invoke(null, FACTORY.invoke(builder));
+            } catch (Exception e) {
+                // preview feature not enabled
+                SimpleLogger.trace("Virtual threads unavailable for dispatcher {} : {}", id, e);
+                return null;
+            }
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String id) {
+            this.prefix = "actors-" + id + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class ForkJoinDispatcher implements Dispatcher {
+
+        private final String id;
+        private final ForkJoinPool pool;
+
+        public ForkJoinDispatcher(final String id, int parallelism) {
+            this.id = id;
+            this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("actors-" + id + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, null, true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            pool.execute(command);
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        public String toString() {
+            return "ForkJoinDispatcher : " + id;
+        }
+    }
+
+    private static class PinnedDispatcher implements Dispatcher {
+
+        private final String id;
+        private final ExecutorService[] lanes;
+
+        public PinnedDispatcher(String id, int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("A pinned dispatcher needs at least one thread");
+            }
+            this.id = id;
+            this.lanes = new ExecutorService[threads];
+            ThreadFactory factory = new NamedThreadFactory(id);
+            for (int i = 0; i < threads; i++) {
+                lanes[i] = Executors.newSingleThreadExecutor(factory);
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            lanes[(System.identityHashCode(command) & Integer.MAX_VALUE) % lanes.length].execute(command);
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public void shutdown() {
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return lanes[0].isShutdown();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (ExecutorService lane : lanes) {
+                if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "PinnedDispatcher : " + id;
+        }
+    }
+
+    /**
+     * Tasks that keep a lane across executions, only touched by the thread
+     * submitting the task.
+     */
+    static interface Affine {
+
+        Affinity affinity();
+    }
+
+    static final class Affinity {
+        int lane = -1;
+        int strangers;
+    }
+
+    private static class AffinityDispatcher implements Dispatcher {
+
+        /** Consecutive wake ups from the same foreign lane before moving there. */
+        private static final int COLOCATE_AFTER = 4;
+        /** Queued tasks on a lane before its actors look for a less loaded one. */
+        private static final int IMBALANCE = 32;
+
+        private static final Runnable STOP = new Runnable() {
+            @Override
+            public void run() {}
+        };
+
+        private final String id;
+        private final Lane[] lanes;
+        private final AtomicInteger next = new AtomicInteger(0);
+        private volatile boolean shutdown = false;
+
+        public AffinityDispatcher(String id, int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("An affinity dispatcher needs at least one thread");
+            }
+            this.id = id;
+            this.lanes = new Lane[threads];
+            for (int i = 0; i < threads; i++) {
+                lanes[i] = new Lane(this, i);
+            }
+            for (Lane lane : lanes) {
+                lane.start();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Dispatcher " + id + " is shut down");
+            }
+            final Thread thread = Thread.currentThread();
+            final Lane current = thread instanceof Lane && ((Lane) thread).dispatcher == this ? (Lane) thread : null;
+            if (!(command instanceof Affine)) {
+                (current != null ? current : lanes[(next.getAndIncrement() & Integer.MAX_VALUE) % lanes.length]).queue.offer(command);
+                return;
+            }
+            final Affinity affinity = ((Affine) command).affinity();
+            int lane = affinity.lane;
+            if (lane < 0) {
+                lane = current != null ? current.index : (next.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+            } else if (current == null || current.index == lane) {
+                affinity.strangers = 0;
+            } else if (++affinity.strangers >= COLOCATE_AFTER) {
+                affinity.strangers = 0;
+                if (current.queue.size() <= lanes[lane].queue.size()) {
+                    lane = current.index;
+                }
+            }
+            if (lanes[lane].queue.size() > IMBALANCE) {
+                lane = leastLoaded(lane);
+            }
+            affinity.lane = lane;
+            lanes[lane].queue.offer(command);
+        }
+
+        private int leastLoaded(int lane) {
+            int best = lane;
+            int size = lanes[lane].queue.size();
+            for (Lane candidate : lanes) {
+                int candidateSize = candidate.queue.size();
+                if (candidateSize * 2 < size) {
+                    best = candidate.index;
+                    size = candidateSize;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            for (Lane lane : lanes) {
+                lane.queue.offer(STOP);
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (Lane lane : lanes) {
+                lane.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                if (lane.isAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "AffinityDispatcher : " + id;
+        }
+
+        private static final class Lane extends Thread {
+
+            private final AffinityDispatcher dispatcher;
+            private final int index;
+            private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+            Lane(AffinityDispatcher dispatcher, int index) {
+                super("actors-" + dispatcher.id + "-" + (index + 1));
+                this.dispatcher = dispatcher;
+                this.index = index;
+                setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable task;
+                    try {
+                        task = queue.take();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (task == STOP) {
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        SimpleLogger.error("Error while running task on {} : {}", getName(), t);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class CallingThreadDispatcher implements Dispatcher {
+
+        private final ThreadLocal<ArrayDeque<Runnable>> pending = new ThreadLocal<ArrayDeque<Runnable>>();
+        private final AtomicBoolean shutdown = new AtomicBoolean(false);
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown.get()) {
+                throw new RejectedExecutionException("Dispatcher " + id() + " is shut down");
+            }
+            ArrayDeque<Runnable> queue = pending.get();
+            if (queue != null) {
+                queue.offer(command);
+                return;
+            }
+            queue = new ArrayDeque<Runnable>();
+            pending.set(queue);
+            try {
+                Runnable next = command;
+                while (next != null) {
+                    try {
+                        next.run();
+                    } catch (RuntimeException e) {
+                        SimpleLogger.error("Error while running task on calling thread : {}", e);
+                    }
+                    next = queue.poll();
+                }
+            } finally {
+                pending.remove();
+            }
+        }
+
+        @Override
+        public String id() {
+            return "calling-thread";
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown.set(true);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown.get();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown.get();
+        }
+
+        @Override
+        public String toString() {
+            return "CallingThreadDispatcher";
+        }
+    }
+
+    private static class ExecutorServiceDispatcher implements Dispatcher {
+
+        private final String id;
+        private final ExecutorService service;
+
+        public ExecutorServiceDispatcher(String id, ExecutorService service) {
+            this.id = id;
+            this.service = service;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            service.execute(command);
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public void shutdown() {
+            service.shutdown();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return service.isShutdown();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return service.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        public String toString() {
+            return "ExecutorServiceDispatcher : " + id;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timer based on a hashed timing wheel. Scheduling and cancelling a timeout
+ * are O(1): new and cancelled timeouts are handed to the worker thread through
+ * lock-free queues and the worker is the only one touching the wheel buckets.
+ * Tasks are run on the worker thread, so they should be short (like telling
+ * an actor) and hand off anything heavier to an executor.
+ */
+public class HashedWheelTimer {
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final String name;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> timeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicLong pending = new AtomicLong(0L);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean stopped = false;
+    private final long startTime = System.nanoTime();
+    private volatile Thread workerThread;
+
+    public HashedWheelTimer(String name) {
+        this(name, 10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    public HashedWheelTimer(String name, long tick, TimeUnit unit, int ticksPerWheel) {
+        if (tick <= 0L) {
+            throw new IllegalArgumentException("Tick duration should be positive");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Ticks per wheel should be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if (size == 0) {
+            size = 1;
+        }
+        this.name = name;
+        this.tickDuration = unit.toNanos(tick);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        return schedule(task, unit.toNanos(delay), 0L, null);
+    }
+
+    /**
+     * Fixed rate : a run late because of the previous ones is not skipped.
+     */
+    public Timeout newPeriodicTimeout(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0L) {
+            throw new IllegalArgumentException("Period should be positive");
+        }
+        return schedule(task, unit.toNanos(initialDelay), unit.toNanos(period), null);
+    }
+
+    /**
+     * Fixed delay : the next run is due delay after the previous one was
+     * due, or after it ended when it lasted longer than that, so runs never
+     * overlap nor catch up, and ticks don't add up to a drift. The task runs
+     * on the executor, or on the timer thread when it is null.
+     */
+    public Timeout newFixedDelayTimeout(Runnable task, long initialDelay, long delay, TimeUnit unit, Executor executor) {
+        if (delay <= 0L) {
+            throw new IllegalArgumentException("Delay should be positive");
+        }
+        // a negative period stands for a fixed delay
+        return schedule(task, unit.toNanos(initialDelay), -unit.toNanos(delay), executor);
+    }
+
+    public long pendingTimeouts() {
+        return pending.get();
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Nothing expires once stopped : pending one-shot timeouts run right away
+     * so that nobody waits for them forever (a pending ask fails), periodic
+     * ones are cancelled.
+     */
+    public void stop() {
+        stopped = true;
+        Thread worker = workerThread;
+        if (worker != null && worker != Thread.currentThread()) {
+            worker.interrupt();
+        }
+    }
+
+    private Timeout schedule(Runnable task, long delay, long period, Executor executor) {
+        if (stopped) {
+            throw new IllegalStateException("Timer " + name + " is stopped");
+        }
+        start();
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + Math.max(delay, 0L), period, executor);
+        pending.incrementAndGet();
+        timeouts.offer(timeout);
+        // stopped meanwhile, the worker may already be gone
+        if (stopped && timeouts.remove(timeout)) {
+            timeout.stop();
+        }
+        return timeout;
+    }
+
+    private void start() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            workerThread = new Thread(new Worker(), "actors-timer-" + name);
+            workerThread.setDaemon(true);
+            workerThread.start();
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private long tick;
+
+        @Override
+        public void run() {
+            // ticks are counted from the creation of the timer
+            tick = (System.nanoTime() - startTime) / tickDuration;
+            while (!stopped) {
+                if (!waitForNextTick()) {
+                    break;
+                }
+                processCancelled();
+                transferTimeouts();
+                wheel[(int) (tick & mask)].expire();
+                tick++;
+            }
+            drain();
+        }
+
+        private void drain() {
+            List<Timeout> left = new ArrayList<Timeout>();
+            for (Bucket bucket : wheel) {
+                bucket.drainTo(left);
+            }
+            Timeout timeout;
+            while ((timeout = timeouts.poll()) != null) {
+                left.add(timeout);
+            }
+            cancelledTimeouts.clear();
+            for (Timeout pendingTimeout : left) {
+                pendingTimeout.stop();
+            }
+        }
+
+        private boolean waitForNextTick() {
+            long deadline = tickDuration * (tick + 1);
+            while (true) {
+                long sleepTime = deadline - (System.nanoTime() - startTime);
+                if (sleepTime <= 0L) {
+                    return true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void processCancelled() {
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                    pending.decrementAndGet();
+                }
+            }
+        }
+
+        private void transferTimeouts() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                Timeout timeout = timeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.state != INIT) {
+                    pending.decrementAndGet();
+                    continue;
+                }
+                add(timeout);
+            }
+        }
+
+        private void add(Timeout timeout) {
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = null;
+                    tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        void drainTo(List<Timeout> left) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                left.add(timeout);
+                timeout = remove(timeout);
+            }
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0L) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else if (timeout.state == CANCELLED) {
+                    timeout = remove(timeout);
+                    pending.decrementAndGet();
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    public static final class Timeout implements ScheduledFuture<Object> {
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long period;
+        private final Executor executor;
+        private volatile long deadline;
+        volatile int state = INIT;
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+        private boolean waiters = false;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline, long period, Executor executor) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+            this.executor = executor;
+        }
+
+        private void expire() {
+            if (period < 0L) {
+                if (state != INIT) {
+                    timer.pending.decrementAndGet();
+                } else if (executor == null) {
+                    run();
+                    rearm();
+                } else {
+                    try {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Timeout.this.run();
+                                rearm();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        SimpleLogger.error("Can't run timer task {} : {}", task, e);
+                        rearm();
+                    }
+                }
+            } else if (period > 0L) {
+                if (state == INIT) {
+                    run();
+                    deadline = deadline + period;
+                }
+                if (state == INIT) {
+                    timer.timeouts.offer(this);
+                    if (timer.stopped && timer.timeouts.remove(this)) {
+                        stop();
+                    }
+                } else {
+                    timer.pending.decrementAndGet();
+                }
+            } else {
+                timer.pending.decrementAndGet();
+                if (STATE.compareAndSet(this, INIT, EXPIRED)) {
+                    run();
+                    signal();
+                }
+            }
+        }
+
+        private void rearm() {
+            if (state == INIT && !timer.stopped) {
+                long now = System.nanoTime() - timer.startTime;
+                long next = deadline - period;
+                deadline = next >= now ? next : now - period;
+                timer.timeouts.offer(this);
+                if (timer.stopped && timer.timeouts.remove(this)) {
+                    stop();
+                }
+            } else if (timer.stopped) {
+                stop();
+            } else {
+                timer.pending.decrementAndGet();
+            }
+        }
+
+        private void stop() {
+            timer.pending.decrementAndGet();
+            if (period == 0L && STATE.compareAndSet(this, INIT, EXPIRED)) {
+                run();
+                signal();
+            } else if (STATE.compareAndSet(this, INIT, CANCELLED)) {
+                signal();
+            }
+        }
+
+        private void run() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                SimpleLogger.error("Error while running timer task {} : {}", task, t);
+            }
+        }
+
+        private void signal() {
+            synchronized (this) {
+                if (waiters) {
+                    notifyAll();
+                }
+            }
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+                return false;
+            }
+            timer.cancelledTimeouts.offer(this);
+            signal();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return state != INIT;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            synchronized (this) {
+                waiters = true;
+                while (!isDone()) {
+                    wait();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long end = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                waiters = true;
+                while (!isDone()) {
+                    long remaining = end - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - (System.nanoTime() - timer.startTime), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0L ? -1 : (diff > 0L ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return "Timeout [" + task + "] in " + getDelay(TimeUnit.MILLISECONDS) + " ms";
+        }
+    }
+}
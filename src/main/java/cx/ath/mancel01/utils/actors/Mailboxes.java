@@ -0,0 +1,455 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+public class Mailboxes {
+
+    public static final class Envelope {
+        public Object message;
+        public Actor from;
+
+        public Envelope() {}
+
+        public Envelope(Object message, Actor from) {
+            this.message = message;
+            this.from = from;
+        }
+    }
+
+    public static interface Mailbox {
+
+        boolean offer(Object message, Actor from);
+
+        boolean poll(Envelope into);
+
+        boolean isEmpty();
+
+        int size();
+    }
+
+    /**
+     * What a bounded mailbox does with a message once it is full. With
+     * BLOCK the sender waits for room, except the owning actor itself : a
+     * message it sends to itself (with itself as sender) is dead-lettered,
+     * as nobody else would drain the mailbox. Self-messages sent anonymously
+     * can't be told apart, so actors doing so shouldn't use BLOCK.
+     */
+    public static enum OverflowPolicy { BLOCK, DROP_NEWEST, DROP_OLDEST, DEAD_LETTER }
+
+    public static Function<Unit, Mailbox> unbounded() {
+        return new Function<Unit, Mailbox>() {
+            @Override
+            public Mailbox apply(Unit unit) {
+                return new UnboundedMailbox();
+            }
+        };
+    }
+
+    public static Function<Unit, Mailbox> ringBuffer(final int capacity) {
+        return ringBuffer(capacity, OverflowPolicy.DEAD_LETTER);
+    }
+
+    public static Function<Unit, Mailbox> ringBuffer(final int capacity, final OverflowPolicy policy) {
+        if (policy == OverflowPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("Ring buffer mailboxes can't drop their oldest message");
+        }
+        return new Function<Unit, Mailbox>() {
+            @Override
+            public Mailbox apply(Unit unit) {
+                return new RingBufferMailbox(capacity, policy);
+            }
+        };
+    }
+
+    public static Function<Unit, Mailbox> bounded(final int capacity, final OverflowPolicy policy) {
+        return new Function<Unit, Mailbox>() {
+            @Override
+            public Mailbox apply(Unit unit) {
+                return new BoundedMailbox(capacity, policy);
+            }
+        };
+    }
+
+    /**
+     * Unbounded mailbox several workers can poll concurrently, for
+     * balancing pools.
+     */
+    public static Function<Unit, Mailbox> shared() {
+        return new Function<Unit, Mailbox>() {
+            @Override
+            public Mailbox apply(Unit unit) {
+                return new SharedMailbox();
+            }
+        };
+    }
+
+    public static Function<Unit, Mailbox> priority() {
+        return priority(new Function<Object, Boolean>() {
+            @Override
+            public Boolean apply(Object message) {
+                return false;
+            }
+        });
+    }
+
+    public static Function<Unit, Mailbox> priority(final Function<Object, Boolean> isControl) {
+        return new Function<Unit, Mailbox>() {
+            @Override
+            public Mailbox apply(Unit unit) {
+                return new PriorityMailbox(isControl);
+            }
+        };
+    }
+
+    static void own(Mailbox mailbox, Actor owner) {
+        if (mailbox instanceof RingBufferMailbox) {
+            ((RingBufferMailbox) mailbox).owner = owner;
+        } else if (mailbox instanceof BoundedMailbox) {
+            ((BoundedMailbox) mailbox).owner = owner;
+        }
+    }
+
+    private static void drop(Object message, Actor from, String reason) {
+        SimpleLogger.trace("Dropping message [{}] from [{}] : {}", message, from.id(), reason);
+    }
+
+    private static void deadLetter(Object message, Actor from) {
+        Actors.Sink.INSTANCE.tell(message, from);
+    }
+
+    public static class UnboundedMailbox implements Mailbox {
+
+        private static final class Node {
+            private Object message;
+            private Actor from;
+            volatile Node next;
+        }
+
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        private Node head = new Node();
+        private final AtomicReference<Node> tail = new AtomicReference<Node>(head);
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        @Override
+        public boolean offer(Object message, Actor from) {
+            Node node = new Node();
+            node.message = message;
+            node.from = from;
+            size.incrementAndGet();
+            Node previous = tail.getAndSet(node);
+            NEXT.lazySet(previous, node);
+            return true;
+        }
+
+        @Override
+        public boolean poll(Envelope into) {
+            Node next = head.next;
+            if (next == null) {
+                return false;
+            }
+            into.message = next.message;
+            into.from = next.from;
+            next.message = null;
+            next.from = null;
+            head = next;
+            size.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return tail.get() == head;
+        }
+
+        @Override
+        public int size() {
+            return Math.max(size.get(), 0);
+        }
+    }
+
+    public static class RingBufferMailbox implements Mailbox {
+
+        private final int mask;
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final Object[] messages;
+        private final Actor[] senders;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong(0L);
+        private final AtomicLong head = new AtomicLong(0L);
+        private volatile Actor owner;
+
+        public RingBufferMailbox(int requestedCapacity, OverflowPolicy policy) {
+            if (requestedCapacity < 2) {
+                throw new IllegalArgumentException("Ring buffer capacity should be at least 2");
+            }
+            int c = Integer.highestOneBit(requestedCapacity - 1) << 1;
+            this.capacity = c;
+            this.mask = c - 1;
+            this.policy = policy;
+            this.messages = new Object[c];
+            this.senders = new Actor[c];
+            this.sequences = new AtomicLongArray(c);
+            for (int i = 0; i < c; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        @Override
+        public boolean offer(Object message, Actor from) {
+            long pos = tail.get();
+            while (true) {
+                int index = (int) (pos & mask);
+                long diff = sequences.get(index) - pos;
+                if (diff == 0L) {
+                    if (tail.compareAndSet(pos, pos + 1L)) {
+                        messages[index] = message;
+                        senders[index] = from;
+                        sequences.set(index, pos + 1L);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0L) {
+                    switch (policy) {
+                        case BLOCK:
+                            if (from != null && from == owner) {
+                                deadLetter(message, from);
+                                return false;
+                            }
+                            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+                            pos = tail.get();
+                            break;
+                        case DROP_NEWEST:
+                            drop(message, from, "mailbox full");
+                            return false;
+                        default:
+                            deadLetter(message, from);
+                            return false;
+                    }
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        @Override
+        public boolean poll(Envelope into) {
+            long pos = head.get();
+            int index = (int) (pos & mask);
+            if (sequences.get(index) != pos + 1L) {
+                return false;
+            }
+            into.message = messages[index];
+            into.from = senders[index];
+            messages[index] = null;
+            senders[index] = null;
+            sequences.lazySet(index, pos + capacity);
+            head.lazySet(pos + 1L);
+            return true;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            long pos = head.get();
+            return sequences.get((int) (pos & mask)) != pos + 1L;
+        }
+
+        @Override
+        public int size() {
+            long size = tail.get() - head.get();
+            if (size < 0L) {
+                return 0;
+            }
+            return (int) Math.min(size, capacity);
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+    }
+
+    public static class BoundedMailbox implements Mailbox {
+
+        private final LinkedBlockingQueue<Envelope> queue;
+        private final OverflowPolicy policy;
+        private volatile Actor owner;
+
+        public BoundedMailbox(int capacity, OverflowPolicy policy) {
+            this.queue = new LinkedBlockingQueue<Envelope>(capacity);
+            this.policy = policy;
+        }
+
+        @Override
+        public boolean offer(Object message, Actor from) {
+            Envelope envelope = new Envelope(message, from);
+            if (queue.offer(envelope)) {
+                return true;
+            }
+            switch (policy) {
+                case BLOCK:
+                    if (from != null && from == owner) {
+                        deadLetter(message, from);
+                        return false;
+                    }
+                    try {
+                        queue.put(envelope);
+                        return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        deadLetter(message, from);
+                        return false;
+                    }
+                case DROP_NEWEST:
+                    drop(message, from, "mailbox full");
+                    return false;
+                case DROP_OLDEST:
+                    while (!queue.offer(envelope)) {
+                        Envelope oldest = queue.poll();
+                        if (oldest != null) {
+                            drop(oldest.message, oldest.from, "mailbox full, dropping oldest message");
+                        }
+                    }
+                    return true;
+                default:
+                    deadLetter(message, from);
+                    return false;
+            }
+        }
+
+        @Override
+        public boolean poll(Envelope into) {
+            Envelope envelope = queue.poll();
+            if (envelope == null) {
+                return false;
+            }
+            into.message = envelope.message;
+            into.from = envelope.from;
+            return true;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+    }
+
+    public static class SharedMailbox implements Mailbox {
+
+        private final ConcurrentLinkedQueue<Envelope> queue = new ConcurrentLinkedQueue<Envelope>();
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        @Override
+        public boolean offer(Object message, Actor from) {
+            queue.offer(new Envelope(message, from));
+            size.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean poll(Envelope into) {
+            Envelope envelope = queue.poll();
+            if (envelope == null) {
+                return false;
+            }
+            size.decrementAndGet();
+            into.message = envelope.message;
+            into.from = envelope.from;
+            return true;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        public int size() {
+            return Math.max(size.get(), 0);
+        }
+    }
+
+    public static class PriorityMailbox implements Mailbox {
+
+        private final ConcurrentLinkedQueue<Envelope> control = new ConcurrentLinkedQueue<Envelope>();
+        private final ConcurrentLinkedQueue<Envelope> queue = new ConcurrentLinkedQueue<Envelope>();
+        private final AtomicInteger size = new AtomicInteger(0);
+        private final Function<Object, Boolean> isControl;
+
+        public PriorityMailbox(Function<Object, Boolean> isControl) {
+            this.isControl = isControl;
+        }
+
+        @Override
+        public boolean offer(Object message, Actor from) {
+            if (message instanceof Poison || isControl.apply(message)) {
+                control.offer(new Envelope(message, from));
+            } else {
+                queue.offer(new Envelope(message, from));
+            }
+            size.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean poll(Envelope into) {
+            Envelope envelope = control.poll();
+            if (envelope == null) {
+                envelope = queue.poll();
+            }
+            if (envelope == null) {
+                return false;
+            }
+            size.decrementAndGet();
+            into.message = envelope.message;
+            into.from = envelope.from;
+            return true;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return control.isEmpty() && queue.isEmpty();
+        }
+
+        @Override
+        public int size() {
+            return size.get();
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics {
+
+    /**
+     * Plugged on an ActorContext with instrument(...). Returning a null
+     * probe leaves the actor uninstrumented.
+     */
+    public static interface Instrumentation {
+
+        Probe actorCreated(String context, Actor actor);
+
+        void actorRemoved(String context, Actor actor);
+    }
+
+    /**
+     * Called by the actor while it runs, so implementations must be cheap.
+     */
+    public static interface Probe {
+
+        /** Time between the message that woke the actor up and the start of its batch. */
+        void scheduled(long latencyNanos);
+
+        /** Time spent in one Behavior.apply. */
+        void processed(long durationNanos);
+
+        /** Message dropped because the actor is dead. */
+        void deadLetter(Object message, Actor from);
+    }
+
+    private static final AtomicLong sinkDeadLetters = new AtomicLong(0L);
+
+    static void sinkDeadLetter() {
+        sinkDeadLetters.incrementAndGet();
+    }
+
+    /**
+     * Messages received by Sink.INSTANCE, in every context.
+     */
+    public static long sinkDeadLetters() {
+        return sinkDeadLetters.get();
+    }
+
+    public static Collector collector() {
+        return new Collector(null);
+    }
+
+    public static Collector jmx() {
+        return new Collector(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Log-linear histogram in the spirit of HdrHistogram: 8 sub buckets per
+     * power of two, so values are kept with ~12% precision whatever their
+     * magnitude, in a fixed array of counters.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0L);
+        private final AtomicLong sum = new AtomicLong(0L);
+        private final AtomicLong max = new AtomicLong(0L);
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            long lowest = (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+            return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+        }
+
+        public void record(long value) {
+            if (value < 0L) {
+                value = 0L;
+            }
+            counts.incrementAndGet(indexOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long n = count.get();
+            return n == 0L ? 0.0 : (double) sum.get() / n;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile (0 - 100).
+         */
+        public long percentile(double percentile) {
+            long total = 0L;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0L) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueAt(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public Histogram merge(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long value = other.counts.get(i);
+                if (value != 0L) {
+                    counts.addAndGet(i, value);
+                }
+            }
+            count.addAndGet(other.count.get());
+            sum.addAndGet(other.sum.get());
+            long otherMax = other.max.get();
+            long current = max.get();
+            while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+                current = max.get();
+            }
+            return this;
+        }
+    }
+
+    private static final class Rate {
+
+        private long lastCount = 0L;
+        private long lastTime = System.nanoTime();
+        private double rate = 0.0;
+
+        synchronized double perSecond(long count) {
+            long now = System.nanoTime();
+            long elapsed = now - lastTime;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                rate = (count - lastCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                lastCount = count;
+                lastTime = now;
+            }
+            return rate;
+        }
+    }
+
+    private static double micros(double nanos) {
+        return nanos / 1000.0;
+    }
+
+    public static interface ActorStatsMXBean {
+
+        String getContext();
+
+        String getActor();
+
+        int getMailboxSize();
+
+        long getProcessed();
+
+        double getMessagesPerSecond();
+
+        long getDeadLetters();
+
+        double getProcessingTimeMeanMicros();
+
+        double getProcessingTimeP99Micros();
+
+        double getProcessingTimeMaxMicros();
+
+        double getSchedulingLatencyMeanMicros();
+
+        double getSchedulingLatencyP99Micros();
+
+        double getSchedulingLatencyMaxMicros();
+    }
+
+    public static final class ActorStats implements Probe, ActorStatsMXBean {
+
+        private final String context;
+        private final Actor actor;
+        private final Histogram processingTime = new Histogram();
+        private final Histogram schedulingLatency = new Histogram();
+        private final AtomicLong deadLetters = new AtomicLong(0L);
+        private final Rate rate = new Rate();
+
+        ActorStats(String context, Actor actor) {
+            this.context = context;
+            this.actor = actor;
+        }
+
+        @Override
+        public void scheduled(long latencyNanos) {
+            schedulingLatency.record(latencyNanos);
+        }
+
+        @Override
+        public void processed(long durationNanos) {
+            processingTime.record(durationNanos);
+        }
+
+        @Override
+        public void deadLetter(Object message, Actor from) {
+            deadLetters.incrementAndGet();
+        }
+
+        public Actor actor() {
+            return actor;
+        }
+
+        public Histogram processingTime() {
+            return processingTime;
+        }
+
+        public Histogram schedulingLatency() {
+            return schedulingLatency;
+        }
+
+        @Override
+        public String getContext() {
+            return context;
+        }
+
+        @Override
+        public String getActor() {
+            return actor.id();
+        }
+
+        @Override
+        public int getMailboxSize() {
+            return actor.mailboxSize();
+        }
+
+        @Override
+        public long getProcessed() {
+            return processingTime.count();
+        }
+
+        @Override
+        public double getMessagesPerSecond() {
+            return rate.perSecond(processingTime.count());
+        }
+
+        @Override
+        public long getDeadLetters() {
+            return deadLetters.get();
+        }
+
+        @Override
+        public double getProcessingTimeMeanMicros() {
+            return micros(processingTime.mean());
+        }
+
+        @Override
+        public double getProcessingTimeP99Micros() {
+            return micros(processingTime.percentile(99.0));
+        }
+
+        @Override
+        public double getProcessingTimeMaxMicros() {
+            return micros(processingTime.max());
+        }
+
+        @Override
+        public double getSchedulingLatencyMeanMicros() {
+            return micros(schedulingLatency.mean());
+        }
+
+        @Override
+        public double getSchedulingLatencyP99Micros() {
+            return micros(schedulingLatency.percentile(99.0));
+        }
+
+        @Override
+        public double getSchedulingLatencyMaxMicros() {
+            return micros(schedulingLatency.max());
+        }
+
+        @Override
+        public String toString() {
+            return "ActorStats ( " + context + "/" + actor.id() + ", processed: " + getProcessed()
+                    + ", mailbox: " + getMailboxSize() + ", dead letters: " + getDeadLetters() + " )";
+        }
+    }
+
+    public static interface ContextStatsMXBean {
+
+        String getContext();
+
+        int getActors();
+
+        int getMailboxSize();
+
+        long getProcessed();
+
+        double getMessagesPerSecond();
+
+        long getDeadLetters();
+
+        long getSinkDeadLetters();
+
+        double getProcessingTimeP99Micros();
+
+        double getSchedulingLatencyP99Micros();
+    }
+
+    /**
+     * Aggregates are computed from the actors of the context when read, so
+     * nothing is recorded twice on the hot path.
+     */
+    public static final class ContextStats implements ContextStatsMXBean {
+
+        private final String context;
+        private final ConcurrentMap<String, ActorStats> actors = new ConcurrentHashMap<String, ActorStats>();
+        private final Rate rate = new Rate();
+
+        ContextStats(String context) {
+            this.context = context;
+        }
+
+        public Collection<ActorStats> actors() {
+            return Collections.unmodifiableCollection(actors.values());
+        }
+
+        public Histogram processingTime() {
+            Histogram histogram = new Histogram();
+            for (ActorStats stats : actors.values()) {
+                histogram.merge(stats.processingTime);
+            }
+            return histogram;
+        }
+
+        public Histogram schedulingLatency() {
+            Histogram histogram = new Histogram();
+            for (ActorStats stats : actors.values()) {
+                histogram.merge(stats.schedulingLatency);
+            }
+            return histogram;
+        }
+
+        @Override
+        public String getContext() {
+            return context;
+        }
+
+        @Override
+        public int getActors() {
+            return actors.size();
+        }
+
+        @Override
+        public int getMailboxSize() {
+            int size = 0;
+            for (ActorStats stats : actors.values()) {
+                size += stats.getMailboxSize();
+            }
+            return size;
+        }
+
+        @Override
+        public long getProcessed() {
+            long processed = 0L;
+            for (ActorStats stats : actors.values()) {
+                processed += stats.getProcessed();
+            }
+            return processed;
+        }
+
+        @Override
+        public double getMessagesPerSecond() {
+            return rate.perSecond(getProcessed());
+        }
+
+        @Override
+        public long getDeadLetters() {
+            long dead = 0L;
+            for (ActorStats stats : actors.values()) {
+                dead += stats.getDeadLetters();
+            }
+            return dead;
+        }
+
+        @Override
+        public long getSinkDeadLetters() {
+            return sinkDeadLetters();
+        }
+
+        @Override
+        public double getProcessingTimeP99Micros() {
+            return micros(processingTime().percentile(99.0));
+        }
+
+        @Override
+        public double getSchedulingLatencyP99Micros() {
+            return micros(schedulingLatency().percentile(99.0));
+        }
+
+        @Override
+        public String toString() {
+            return "ContextStats ( " + context + ", actors: " + getActors() + ", processed: " + getProcessed()
+                    + ", mailbox: " + getMailboxSize() + ", dead letters: " + getDeadLetters() + " )";
+        }
+    }
+
+    /**
+     * Default instrumentation : keeps stats per context and per actor,
+     * readable through contexts() / context(id) and, when built with jmx(),
+     * as MXBeans under cx.ath.mancel01.utils.actors.
+     */
+    public static class Collector implements Instrumentation {
+
+        private static final String DOMAIN = "cx.ath.mancel01.utils.actors";
+
+        private final ConcurrentMap<String, ContextStats> contexts = new ConcurrentHashMap<String, ContextStats>();
+        private final MBeanServer server;
+
+        Collector(MBeanServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public Probe actorCreated(String context, Actor actor) {
+            ContextStats ctx = contexts.get(context);
+            if (ctx == null) {
+                ContextStats created = new ContextStats(context);
+                ctx = contexts.putIfAbsent(context, created);
+                if (ctx == null) {
+                    ctx = created;
+                    register(contextName(context), created);
+                }
+            }
+            ActorStats stats = new ActorStats(context, actor);
+            ctx.actors.put(actor.id(), stats);
+            register(actorName(context, actor.id()), stats);
+            return stats;
+        }
+
+        @Override
+        public void actorRemoved(String context, Actor actor) {
+            ContextStats ctx = contexts.get(context);
+            if (ctx != null && ctx.actors.remove(actor.id()) != null) {
+                unregister(actorName(context, actor.id()));
+            }
+        }
+
+        public Collection<ContextStats> contexts() {
+            return Collections.unmodifiableCollection(contexts.values());
+        }
+
+        public ContextStats context(String context) {
+            return contexts.get(context);
+        }
+
+        public ActorStats actor(String context, String actor) {
+            ContextStats ctx = contexts.get(context);
+            return ctx == null ? null : ctx.actors.get(actor);
+        }
+
+        /**
+         * Unregisters every MXBean of this collector.
+         */
+        public void close() {
+            for (ContextStats ctx : new ArrayList<ContextStats>(contexts.values())) {
+                for (String actor : new ArrayList<String>(ctx.actors.keySet())) {
+                    unregister(actorName(ctx.context, actor));
+                }
+                unregister(contextName(ctx.context));
+            }
+            contexts.clear();
+        }
+
+        private ObjectName contextName(String context) {
+            try {
+                return new ObjectName(DOMAIN + ":type=Context,name=" + ObjectName.quote(context));
+            } catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        private ObjectName actorName(String context, String actor) {
+            try {
+                return new ObjectName(DOMAIN + ":type=Actor,context=" + ObjectName.quote(context)
+                        + ",name=" + ObjectName.quote(actor));
+            } catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        private void register(ObjectName name, Object bean) {
+            if (server == null) {
+                return;
+            }
+            try {
+                try {
+                    server.registerMBean(bean, name);
+                } catch (InstanceAlreadyExistsException e) {
+                    server.unregisterMBean(name);
+                    server.registerMBean(bean, name);
+                }
+            } catch (Exception e) {
+                SimpleLogger.error("Can't register metrics {} : {}", name, e);
+            }
+        }
+
+        private void unregister(ObjectName name) {
+            if (server == null) {
+                return;
+            }
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                SimpleLogger.error("Can't unregister metrics {} : {}", name, e);
+            }
+        }
+    }
+}
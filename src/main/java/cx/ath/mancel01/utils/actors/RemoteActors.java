@@ -20,63 +20,556 @@ package cx.ath.mancel01.utils.actors;
 import cx.ath.mancel01.utils.Concurrent;
 import cx.ath.mancel01.utils.Concurrent.Promise;
 import cx.ath.mancel01.utils.F;
-import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.SimpleLogger;
 import cx.ath.mancel01.utils.actors.Actors.Actor;
 import cx.ath.mancel01.utils.actors.Actors.ActorContext;
 import cx.ath.mancel01.utils.actors.Actors.CreationnalContextImpl;
-import java.io.Serializable;
+import cx.ath.mancel01.utils.actors.Mailboxes.OverflowPolicy;
+import cx.ath.mancel01.utils.actors.Wire.RemoteMessage;
+import cx.ath.mancel01.utils.actors.Wire.RemoteSerializer;
+import cx.ath.mancel01.utils.actors.Wire.RemoteStats;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.serialization.ObjectDecoder;
-import org.jboss.netty.handler.codec.serialization.ObjectEncoder;
 
 public class RemoteActors {
     
-    private static class RemoteActorMessage implements Serializable {
-        String toName;
-        String toCtx;
-        String remoteFrom;
-        String remoteCtx;
-        String remoteHost;
-        String remotePort;
-        Object toMsg;
-    }
+    public static final long DEFAULT_ASK_TIMEOUT = 30000L;
     
-    private static class IsActorBusy implements Serializable {
-        String toName;
-        String toCtx;
-        String remoteFrom;
-        String remoteCtx;
-        String remoteHost;
-        String remotePort;
-        Long id;
+    /**
+     * Outbound queue of a connection. Senders never block : messages are
+     * queued, even while connecting, and a flusher encodes up to batchSize of
+     * them (64 KB at most) into one buffer per write. A flush starts after
+     * flushDelay, or right away once batchSize messages are waiting.
+     * 
+     * The load of the local actors the peer talks to goes along with the 
+     * writes, at most once per stats interval.
+     * 
+     * Nothing is handed to Netty while the channel is not writable, so the 
+     * queue grows instead; past maxPending messages the overflow policy of
+     * the context applies to new messages.
+     */
+    private static class Outbound implements Runnable {
+        
+        private static final int MAX_WRITE_BYTES = 64 * 1024;
+        
+        private final ConcurrentLinkedQueue<RemoteMessage> queue = 
+                new ConcurrentLinkedQueue<RemoteMessage>();
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final ReentrantLock lock = new ReentrantLock();
+        private final RemoteCreationnalContextImpl ctx;
+        private final ChannelFuture connected;
+        private final Wire.FrameWriter writer;
+        private final int batchSize;
+        private final long flushDelay;
+        private final int maxPending;
+        private final OverflowPolicy policy;
+        private final AtomicInteger blocked = new AtomicInteger(0);
+        // local actors over their high watermark, their messages wait here
+        private final ConcurrentHashMap<String, Parked> parked = 
+                new ConcurrentHashMap<String, Parked>();
+        // parked queues over the high watermark, reading stops while > 0
+        private int overflowing = 0;
+        private ChannelFuture lastWrite;
+        // pool holding this connection, null until an inbound connection has said hello
+        private volatile AtomicReferenceArray<Outbound> pool;
+        private final boolean inbound;
+        // local actors the peer sent messages to over this connection
+        private final Set<String> interests = 
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private volatile long statsSentAt = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        private final AtomicLong askIds = new AtomicLong(0L);
+        private final ConcurrentHashMap<Long, Actors.PromiseActor<?>> asks = 
+                new ConcurrentHashMap<Long, Actors.PromiseActor<?>>();
+
+        Outbound(ChannelFuture connected, boolean inbound, RemoteCreationnalContextImpl ctx) {
+            this.connected = connected;
+            this.inbound = inbound;
+            this.ctx = ctx;
+            this.writer = new Wire.FrameWriter(ctx.serializer, ctx.host, ctx.port);
+            this.batchSize = ctx.batchSize;
+            this.flushDelay = ctx.flushDelay;
+            this.maxPending = ctx.maxPending;
+            this.policy = ctx.overflowPolicy;
+            this.lastWrite = connected;
+            connected.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    Outbound.this.ctx.flusher.execute(Outbound.this);
+                }
+            });
+        }
+        
+        void offer(RemoteMessage message) {
+            if (pending.get() >= maxPending) {
+                switch (policy) {
+                    case BLOCK:
+                        if (!awaitRoom()) {
+                            reject(message);
+                            return;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        RemoteMessage oldest = queue.poll();
+                        if (oldest != null) {
+                            pending.decrementAndGet();
+                            reject(oldest);
+                        }
+                        break;
+                    default:
+                        reject(message);
+                        return;
+                }
+            }
+            queue.offer(message);
+            int waiting = pending.incrementAndGet();
+            if (scheduled.compareAndSet(false, true)) {
+                if (flushDelay <= 0L) {
+                    ctx.flusher.execute(this);
+                } else {
+                    ctx.flusher.schedule(this, flushDelay, TimeUnit.NANOSECONDS);
+                }
+            } else if (waiting == batchSize) {
+                ctx.flusher.execute(this);
+            }
+        }
+
+        boolean hasRoom() {
+            return pending.get() < maxPending;
+        }
+        
+        private boolean awaitRoom() {
+            blocked.incrementAndGet();
+            try {
+                synchronized (this) {
+                    while (pending.get() >= maxPending) {
+                        if (connected.isDone() && !connected.getChannel().isOpen()) {
+                            return false;
+                        }
+                        wait(10L);
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                blocked.decrementAndGet();
+            }
+        }
+        
+        // rejects everything still queued and wakes up blocked senders
+        private void drain(Throwable cause) {
+            RemoteMessage message;
+            while ((message = queue.poll()) != null) {
+                pending.decrementAndGet();
+                reject(message, cause);
+            }
+            if (blocked.get() > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+        
+        // asks fail right away, anything else is a dead letter
+        private void reject(RemoteMessage message) {
+            reject(message, new RejectedExecutionException("Remote link to " 
+                    + connected.getChannel().getRemoteAddress() + " is saturated"));
+        }
+
+        private void reject(RemoteMessage message, Throwable cause) {
+            if (message.correlation != 0L && !message.reply) {
+                Actors.PromiseActor<?> promiseActor = asks.remove(message.correlation);
+                if (promiseActor != null) {
+                    promiseActor.promise.fail(cause);
+                }
+            } else {
+                Actors.Sink.INSTANCE.tell(message.payload);
+            }
+        }
+        
+        <T> Promise<T> ask(RemoteMessage message, long timeout, TimeUnit unit) {
+            Actors.PromiseActor<T> promiseActor = new Actors.PromiseActor<T>("remote-ask/", timeout, unit);
+            return ask(message, promiseActor);
+        }
+        
+        // the answer goes to promiseActor, which enforces its own timeout
+        <T> Promise<T> ask(RemoteMessage message, Actors.PromiseActor<T> promiseActor) {
+            final long id = askIds.incrementAndGet();
+            asks.put(id, promiseActor);
+            promiseActor.promise.onRedeem(new F.Action<Promise<T>>() {
+                @Override
+                public void apply(Promise<T> t) {
+                    asks.remove(id);
+                }
+            });
+            message.correlation = id;
+            offer(message);
+            return promiseActor.promise;
+        }
+        
+        void reply(long id, Object payload) {
+            RemoteMessage message = new RemoteMessage();
+            message.reply = true;
+            message.correlation = id;
+            message.payload = payload;
+            offer(message);
+        }
+        
+        void replied(long id, Object payload) {
+            Actors.PromiseActor<?> promiseActor = asks.remove(id);
+            if (promiseActor != null) {
+                promiseActor.tell(payload);
+            }
+        }
+        
+        void fail(long id, String reason) {
+            RemoteMessage message = new RemoteMessage();
+            message.reply = true;
+            message.correlation = id;
+            message.failure = reason;
+            offer(message);
+        }
+        
+        void failed(long id, String reason) {
+            Actors.PromiseActor<?> promiseActor = asks.remove(id);
+            if (promiseActor != null) {
+                promiseActor.promise.fail(new RuntimeException(reason));
+            }
+        }
+        
+        void watch(String name) {
+            if (!interests.contains(name)) {
+                interests.add(name);
+            }
+            // one way traffic : nothing to piggy-back on, so flush the stats alone
+            if (System.nanoTime() - statsSentAt >= ctx.statsInterval 
+                    && scheduled.compareAndSet(false, true)) {
+                ctx.flusher.execute(this);
+            }
+        }
+        
+        private boolean statsDue() {
+            return !interests.isEmpty() && System.nanoTime() - statsSentAt >= ctx.statsInterval;
+        }
+
+        @Override
+        public void run() {
+            if (!connected.isDone() || !lock.tryLock()) {
+                return;
+            }
+            try {
+                Channel channel = connected.getChannel();
+                if (!connected.isSuccess()) {
+                    drain(new IllegalStateException("Remote link failed to connect", connected.getCause()));
+                    return;
+                }
+                if (!channel.isOpen()) {
+                    // offered while the link closed, nothing will write them anymore
+                    drain(new IllegalStateException("Remote link to " + channel.getRemoteAddress() + " is closed"));
+                }
+                boolean stats = statsDue();
+                while ((stats || !queue.isEmpty()) && channel.isWritable()) {
+                    ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(1024);
+                    RemoteMessage message;
+                    int count = 0;
+                    while (count++ < batchSize && buffer.writerIndex() < MAX_WRITE_BYTES 
+                            && (message = queue.poll()) != null) {
+                        pending.decrementAndGet();
+                        try {
+                            writer.write(message, buffer);
+                        } catch (Exception e) {
+                            // the frame writer already dropped the partial frame
+                            SimpleLogger.error("Can't encode message for {} : {}", message.toName, e);
+                            reject(message, e);
+                        }
+                    }
+                    if (stats) {
+                        writer.write(ctx.stats(interests), buffer);
+                        statsSentAt = System.nanoTime();
+                        stats = false;
+                    }
+                    if (buffer.readable()) {
+                        lastWrite = channel.write(buffer);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (blocked.get() > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            scheduled.set(false);
+            // an unwritable channel is flushed again by channelInterestChanged, 
+            // a closed one rejects what was offered meanwhile
+            Channel channel = connected.getChannel();
+            if (!queue.isEmpty() && (channel.isWritable() || !channel.isOpen()) 
+                    && scheduled.compareAndSet(false, true)) {
+                ctx.flusher.execute(this);
+            }
+        }
+        
+        void writable() {
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                ctx.flusher.execute(this);
+            }
+        }
+        
+        /**
+         * Delivers a message read from the peer. Once the mailbox of the
+         * target has high messages or more, its next messages are parked
+         * until it is back to low, so replies, stats and the other actors
+         * sharing the connection keep flowing. When high messages are parked
+         * for one actor, the connection stops being read until they are
+         * delivered : the remote senders see it fill up, but everything
+         * else on the connection waits too (head-of-line blocking).
+         */
+        void deliver(String name, Actor target, Object payload, Actor from) {
+            Parked waiting = parked.get(name);
+            if (waiting != null && waiting.target == target && waiting.park(payload, from)) {
+                return;
+            }
+            target.tell(payload, from);
+            ctx.delivered(name, target, connected.getChannel());
+            if (target.mailboxSize() >= ctx.inboundHigh) {
+                waiting = new Parked(name, target, ctx.inboundHigh, ctx.inboundLow);
+                parked.put(name, waiting);
+                ctx.flusher.schedule(waiting, 1L, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void overflow(boolean on) {
+            synchronized (parked) {
+                overflowing += on ? 1 : -1;
+                Channel channel = connected.getChannel();
+                if (overflowing == (on ? 1 : 0) && channel.isOpen()) {
+                    channel.setReadable(!on);
+                }
+            }
+        }
+
+        /**
+         * Messages read for a local actor over its high watermark, handed to
+         * it once it is back to low.
+         */
+        private final class Parked implements Runnable {
+
+            private final String name;
+            private final Actor target;
+            private final int high;
+            private final int low;
+            private final ArrayDeque<Mailboxes.Envelope> messages = new ArrayDeque<Mailboxes.Envelope>();
+            private boolean overflow = false;
+            private boolean done = false;
+
+            Parked(String name, Actor target, int high, int low) {
+                this.name = name;
+                this.target = target;
+                this.high = high;
+                this.low = low;
+            }
+
+            synchronized boolean park(Object payload, Actor from) {
+                if (done) {
+                    return false;
+                }
+                messages.offer(new Mailboxes.Envelope(payload, from));
+                if (messages.size() >= high && !overflow) {
+                    overflow = true;
+                    overflow(true);
+                }
+                return true;
+            }
+
+            @Override
+            public void run() {
+                synchronized (this) {
+                    if (target.mailboxSize() <= low) {
+                        Mailboxes.Envelope envelope;
+                        int room = high - low;
+                        for (int i = 0; i < room && (envelope = messages.poll()) != null; i++) {
+                            target.tell(envelope.message, envelope.from);
+                            ctx.delivered(name, target, connected.getChannel());
+                        }
+                        if (overflow && messages.size() < high) {
+                            overflow = false;
+                            overflow(false);
+                        }
+                        if (messages.isEmpty()) {
+                            done = true;
+                            parked.remove(name, this);
+                            return;
+                        }
+                    }
+                }
+                ctx.flusher.schedule(this, 1L, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        void closed() {
+            AtomicReferenceArray<Outbound> links = pool;
+            if (links != null) {
+                for (int i = 0; i < links.length(); i++) {
+                    links.compareAndSet(i, this, null);
+                }
+            }
+            drain(new IllegalStateException("Remote link to " 
+                    + connected.getChannel().getRemoteAddress() + " is closed"));
+            for (Actors.PromiseActor<?> promiseActor : asks.values()) {
+                promiseActor.promise.fail(new IllegalStateException("Connection closed before the answer of " + promiseActor.id()));
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        
+        void close() {
+            connected.awaitUninterruptibly(1, TimeUnit.SECONDS);
+            lock.lock();
+            try {
+                run();
+            } finally {
+                lock.unlock();
+            }
+            lastWrite.awaitUninterruptibly(1, TimeUnit.SECONDS);
+            connected.getChannel().disconnect();
+        }
     }
     
-    private static class ActorBusy implements Serializable {
-        Long id;
+    /**
+     * Local actor addressed by remote nodes. Its processing rate is estimated
+     * from the remote deliveries and the mailbox depth between two samples.
+     */
+    private static class Watched {
+        
+        private final Actor actor;
+        private final AtomicLong delivered = new AtomicLong(0L);
+        private long sampledAt = System.nanoTime();
+        private long lastDelivered = 0L;
+        private int lastDepth = 0;
+        private RemoteStats last;
+
+        Watched(Actor actor) {
+            this.actor = actor;
+        }
+        
+        // samples are shared by the connections reporting this actor
+        synchronized RemoteStats sample(String ctx, String name, long minAge) {
+            long now = System.nanoTime();
+            long elapsed = now - sampledAt;
+            if (last != null && elapsed < minAge) {
+                return last;
+            }
+            int depth = actor.mailboxSize();
+            long total = delivered.get();
+            long processed = Math.max(0L, (total - lastDelivered) - (depth - lastDepth));
+            // the first window is too short to tell anything
+            int rate = last == null || elapsed <= 0L ? 0 : (int) Math.min(Integer.MAX_VALUE, processed * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            boolean busy = false;
+            try {
+                Future<Boolean> b = actor.buzy();
+                busy = b.isDone() && b.get();
+            } catch (Exception e) {
+            }
+            sampledAt = now;
+            lastDelivered = total;
+            lastDepth = depth;
+            last = new RemoteStats(ctx, name, depth, busy, rate);
+            return last;
+        }
     }
     
-    private static class ActorNotBusy implements Serializable {
-        Long id;
+    /**
+     * Sender of a remote ask, replies go back over the connection the ask 
+     * came from.
+     */
+    private static class Reply implements Actor {
+        
+        private final Outbound outbound;
+        private final long id;
+
+        Reply(Outbound outbound, long id) {
+            this.outbound = outbound;
+            this.id = id;
+        }
+
+        @Override
+        public String id() {
+            return "remote-reply/" + id;
+        }
+
+        @Override
+        public Future<Boolean> buzy() {
+            return Promise.pure(false);
+        }
+
+        @Override
+        public int mailboxSize() {
+            return 0;
+        }
+
+        @Override
+        public void tell(Object message) {
+            outbound.reply(id, message);
+        }
+
+        @Override
+        public void tell(Object message, Actor from) {
+            outbound.reply(id, message);
+        }
+
+        @Override
+        public <T> Promise<T> ask(Object message) {
+            Promise<T> failed = new Promise<T>();
+            failed.fail(new UnsupportedOperationException("Can't ask a temporary actor"));
+            return failed;
+        }
+
+        @Override
+        public <T> Promise<T> ask(Object message, long timeout, TimeUnit unit) {
+            return ask(message);
+        }
+
+        @Override
+        public String toString() {
+            return id();
+        }
     }
     
-    public static class RemoteActor extends SimpleChannelUpstreamHandler implements Actor {
+    public static class RemoteActor implements Actor {
 
         private final String host;
         private final int port;
         private final String name;
         private final String context;
-        private ChannelFuture channel;
-        private ClientBootstrap bootstrap;
         private final RemoteCreationnalContextImpl ctx;
+        private final String statsKey;
+        // messages sent since the last stats seen, they are not in the reported depth yet
+        private final AtomicInteger sent = new AtomicInteger(0);
+        private volatile RemoteStats seen;
         
         public static RemoteActor ref(String context, String name, String host, int port, RemoteCreationnalContextImpl ctx) {
             String key = context + name + host + port;
@@ -92,51 +585,33 @@ public class RemoteActors {
             this.name = name;
             this.ctx = ctx;
             this.context = context;
-            bootstrap = new ClientBootstrap(
-                    new NioClientSocketChannelFactory(
-                    ctx.clientServerExecutor,
-                    ctx.clientBossServerExecutor));
-            final SimpleChannelUpstreamHandler handler = this;
-            bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
-                @Override
-                public ChannelPipeline getPipeline() throws Exception {
-                    return Channels.pipeline(
-                        new ObjectEncoder(),
-                        new ObjectDecoder(), handler);
-                }
-            });
-            channel = bootstrap.connect(new InetSocketAddress(host, port));
+            this.statsKey = context + "/" + name;
         }
         
-        public void close() {
-            channel.awaitUninterruptibly(1, TimeUnit.SECONDS);
-            channel.getChannel().disconnect();
-            //bootstrap.releaseExternalResources();
+        private RemoteMessage message(Object msg, Actor from) {
+            RemoteMessage message = new RemoteMessage();
+            message.toName = name;
+            message.payload = msg;
+            message.toCtx = context;
+            message.fromName = from.id();
+            message.fromCtx = ctx.id;
+            sent.incrementAndGet();
+            return message;
         }
         
         private void sendToRemoteActor(Object msg, Actor from) {
             try {             
-                RemoteActorMessage message = new RemoteActorMessage();
-                message.toName = name;
-                message.toMsg = msg;
-                message.toCtx = context;
-                message.remoteFrom = from.id();
-                message.remoteCtx = ctx.id;
-                message.remoteHost = ctx.host;
-                message.remotePort = ctx.port;
-                channel.awaitUninterruptibly().getChannel().write(message);
+                if (from instanceof Actors.PromiseActor) {
+                    // a local ask forwarded here, the remote node can't address its promise
+                    ctx.link(host, port, name).ask(message(msg, from), (Actors.PromiseActor<?>) from);
+                    return;
+                }
+                ctx.link(host, port, name).offer(message(msg, from));
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
-        @Override
-        public void exceptionCaught(
-                ChannelHandlerContext ctx, ExceptionEvent e) {
-            System.err.println("RemoteActor exception : " + e.getCause());
-            e.getChannel().close();
-        }
-
         @Override
         public String id() {
             return "remoteactor://" + host + ":" + String.valueOf(port) + "/" + context + "/" + name;
@@ -147,68 +622,51 @@ public class RemoteActors {
             return id();
         }
         
-        private static ConcurrentHashMap<Long, Promise<Object>> waitingForResponse = 
-                new ConcurrentHashMap<Long, Promise<Object>>();
+        /**
+         * Load last reported by the remote node, null if it is older than 
+         * three stats intervals or if the actor never got a message from 
+         * this context.
+         */
+        public RemoteStats stats() {
+            RemoteStats stats = ctx.remoteStats.get(statsKey);
+            if (stats == null || stats.ageNanos() > 3 * ctx.statsInterval) {
+                return null;
+            }
+            if (stats != seen) {
+                seen = stats;
+                sent.set(0);
+            }
+            return stats;
+        }
         
-        private static AtomicLong ids = new AtomicLong(0);
+        /**
+         * False while the connection to this actor is full : what is sent 
+         * then is subject to the overflow policy of the context.
+         */
+        public boolean hasRoom() {
+            return ctx.link(host, port, name).hasRoom();
+        }
         
         @Override
         public Future<Boolean> buzy() {
-            try {             
-                IsActorBusy message = new IsActorBusy();
-                message.toName = name;
-                message.toCtx = context;
-                message.remoteCtx = ctx.id;
-                message.remoteHost = ctx.host;
-                message.remotePort = ctx.port;
-                if (ids.get() == Long.MAX_VALUE) {
-                    ids.set(0);
-                }
-                message.id = ids.incrementAndGet();
-                channel.awaitUninterruptibly().getChannel().write(message);
-                Promise<Object> promise = new Promise<Object>();
-                return promise.map(new Function<Object, Boolean>() {
-                    @Override
-                    public Boolean apply(Object t) {
-                        if (t instanceof ActorBusy) {
-                            return true;
-                        }
-                        if (t instanceof ActorNotBusy) {
-                            return false;
-                        }
-                        return false;
-                    }
-                });
-            } catch (Exception e) {
-                e.printStackTrace();
-                return Promise.pure(false);
-            }
+            RemoteStats stats = stats();
+            return Promise.pure(stats != null && stats.busy());
         }
         
+        @Override
+        public int mailboxSize() {
+            RemoteStats stats = stats();
+            return (stats == null ? 0 : stats.depth()) + sent.get();
+        }
+
         @Override
         public <T> Concurrent.Promise<T> ask(Object message) {
-            final String promiseActorName =  UUID.randomUUID().toString();
-            final Concurrent.Promise<T> promise = new Concurrent.Promise<T>();
-            promise.onRedeem(new F.Action<Concurrent.Promise<T>>() {
-                @Override
-                public void apply(Concurrent.Promise<T> t) {
-                    ctx.scheduleOnce(1, TimeUnit.SECONDS, new Runnable() {
-                        @Override
-                        public void run() {
-                            ((CreationnalContextImpl) ctx).getActors().remove(promiseActorName);
-                        }
-                    });
-                }
-            });
-            Actor promiseActor = ctx.create(new Actors.Behavior() {
-                @Override
-                public Actors.Effect apply(Object a, Actors.Context b) {
-                    promise.apply((T) a);
-                    return Actors.DIE;
-                }
-            }, promiseActorName);
-            tell(message, promiseActor);
-            return promise;
+            return ask(message, DEFAULT_ASK_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public <T> Concurrent.Promise<T> ask(Object message, long timeout, TimeUnit unit) {
+            return ctx.link(host, port, name).ask(message(message, Actors.Sink.INSTANCE), timeout, unit);
         }
 
         @Override
@@ -230,50 +688,75 @@ public class RemoteActors {
             this.context = context;
         }
         
+        @Override
+        public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            Outbound outbound = context.channels.get(e.getChannel());
+            if (outbound != null && e.getChannel().isWritable()) {
+                outbound.writable();
+            }
+        }
+        
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            // accepted connections, the ones we dial are registered by link()
+            if (e.getChannel().getParent() != null) {
+                context.register(e.getChannel(), 
+                        new Outbound(Channels.succeededFuture(e.getChannel()), true, context));
+            }
+        }
+        
         @Override
         public void messageReceived(
                 ChannelHandlerContext ctx, MessageEvent e) {
-            if (e.getMessage() instanceof RemoteActorMessage) {
-                RemoteActorMessage message = (RemoteActorMessage) e.getMessage();
-                Actor from = RemoteActor.ref(message.toCtx, message.remoteFrom, 
-                        message.remoteHost, Integer.valueOf(message.remotePort), context);
-                try {
-                    Actor target = context.lookup(message.toName);
-                    if (target != null) {
-                        target.tell(message.toMsg, from);
+            if (e.getMessage() instanceof RemoteMessage) {
+                RemoteMessage message = (RemoteMessage) e.getMessage();
+                Outbound link = context.channels.get(e.getChannel());
+                if (message.reply) {
+                    if (link == null) {
+                        return;
+                    }
+                    if (message.failure != null) {
+                        link.failed(message.correlation, message.failure);
                     } else {
-                        Actors.Sink.INSTANCE.tell(message.toMsg, from);
+                        link.replied(message.correlation, message.payload);
                     }
-                } catch (Exception ex) {
+                    return;
                 }
-            }
-            if (e.getMessage() instanceof IsActorBusy) {
-                IsActorBusy message = (IsActorBusy) e.getMessage();
-                Actor from = RemoteActor.ref(message.toCtx, "buzy", 
-                        message.remoteHost, Integer.valueOf(message.remotePort), context);
-                try {
-                    Actor target = context.lookup(message.toName);
-                    if (target != null) {
-                        boolean b = target.buzy().get();
-                        if (b) {
-                            ActorBusy busy = new ActorBusy();
-                            busy.id = message.id;
-                            from.tell(busy);
-                        }
+                if (link != null && link.pool == null && e.getChannel().getParent() != null) {
+                    context.reuse(message.fromHost, message.fromPort, link);
+                }
+                Actor from;
+                if (message.correlation != 0L && link != null) {
+                    from = new Reply(link, message.correlation);
+                } else {
+                    from = RemoteActor.ref(message.fromCtx, message.fromName, 
+                            message.fromHost, message.fromPort, context);
+                }
+                Actor target = context.find(message.toName);
+                if (target == null) {
+                    Actors.Sink.INSTANCE.tell(message.payload, from);
+                    if (message.correlation != 0L && link != null) {
+                        link.fail(message.correlation, "Actor \"" + message.toName 
+                                + "\" don't exist in context \"" + message.toCtx + "\"");
                     }
-                } catch (Exception ex) {
+                    return;
                 }
-            }
-            if (e.getMessage() instanceof ActorBusy) {
-                Promise<Object> p = RemoteActor.waitingForResponse.get(((ActorBusy) e.getMessage()).id);
-                if (p!=null) {
-                    p.apply(e.getMessage());
+                try {
+                    if (link != null) {
+                        link.deliver(message.toName, target, message.payload, from);
+                    } else {
+                        target.tell(message.payload, from);
+                        context.delivered(message.toName, target, e.getChannel());
+                    }
+                } catch (RuntimeException ex) {
+                    SimpleLogger.error("Can't deliver message to {} : {}", message.toName, ex);
+                    if (message.correlation != 0L && link != null) {
+                        link.fail(message.correlation, "Can't deliver message to " + message.toName + " : " + ex);
+                    }
                 }
-            }
-            if (e.getMessage() instanceof ActorNotBusy) {
-                Promise<Object> p = RemoteActor.waitingForResponse.get(((ActorNotBusy) e.getMessage()).id);
-                if (p!=null) {
-                    p.apply(e.getMessage());
+            } else if (e.getMessage() instanceof List) {
+                for (RemoteStats stats : (List<RemoteStats>) e.getMessage()) {
+                    context.remoteStats.put(stats.ctx + "/" + stats.name, stats);
                 }
             }
         }
@@ -291,6 +774,66 @@ public class RemoteActors {
         void startRemoting(String host, int port);
         
         void stopRemoting();
+        
+        /**
+         * Serializer used for message payloads by the connections opened
+         * afterwards. Defaults to Wire.serializer().
+         */
+        RemoteActorContext withSerializer(RemoteSerializer serializer);
+        
+        /**
+         * Outbound messages are flushed flushDelay after the first one is
+         * queued, or as soon as batchSize of them are waiting. Applies to the
+         * connections opened afterwards. Defaults to 256 messages and no delay.
+         */
+        RemoteActorContext withWriteBatching(int batchSize, long flushDelay, TimeUnit unit);
+        
+        /**
+         * Number of connections opened to each remote node. Every remote actor
+         * always uses the same one, so its messages stay ordered. Defaults to 1.
+         */
+        RemoteActorContext withConnectionsPerNode(int connections);
+        
+        /**
+         * Local actors report their mailbox depth, busy flag and processing 
+         * rate to the nodes sending them messages at most once per interval, 
+         * along with the regular writes. Reports are cached for three 
+         * intervals. Defaults to 50 ms.
+         */
+        RemoteActorContext withStatsInterval(long interval, TimeUnit unit);
+        
+        /**
+         * At most maxPending messages wait for each connection to become 
+         * writable, then the policy applies : BLOCK waits for room, 
+         * DROP_OLDEST and DROP_NEWEST drop the oldest or the new message, 
+         * DEAD_LETTER sends the new message to dead letters. Dropped asks 
+         * fail with a RejectedExecutionException. Applies to the connections
+         * opened afterwards. Defaults to 65536 messages and DEAD_LETTER,
+         * so senders never block unless BLOCK is asked for.
+         */
+        RemoteActorContext withFlowControl(int maxPending, OverflowPolicy policy);
+        
+        /**
+         * Messages for a local actor with high messages or more in its
+         * mailbox wait on their connection until it is back to low, the
+         * other frames keep flowing. Once high of them wait, the connection
+         * stops being read and remote senders see it fill up. A bounded
+         * mailbox on the actor caps what is already in flight. Defaults to
+         * 10000 and 5000.
+         */
+        RemoteActorContext withInboundWatermarks(int high, int low);
+        
+        /**
+         * Joins the cluster reachable through the given host:port seeds, 
+         * remoting must be started. Once joined, lookup also resolves the 
+         * actors advertised by the other members.
+         */
+        Cluster joinCluster(String... seeds);
+        
+        /**
+         * The cluster this context joined, null if none.
+         */
+        Cluster cluster();
     }
     
     static class RemoteCreationnalContextImpl extends CreationnalContextImpl implements RemoteActorContext {
@@ -298,7 +841,17 @@ public class RemoteActors {
         private ServerBootstrap bootstrap;
         private Channel channel;
         private String host;
-        private String port;
+        private int port;
+        private volatile RemoteSerializer serializer = Wire.serializer();
+        private volatile int batchSize = 256;
+        private volatile long flushDelay = 0L;
+        private volatile int connectionsPerNode = 1;
+        private volatile long statsInterval = TimeUnit.MILLISECONDS.toNanos(50);
+        private volatile int maxPending = 65536;
+        private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DEAD_LETTER;
+        private volatile int inboundHigh = 10000;
+        private volatile int inboundLow = 5000;
+        private ClientBootstrap clientBootstrap;
         private ExecutorService remotingServerExecutor = 
                 Executors.newCachedThreadPool();
         private ExecutorService bossServerExecutor = 
@@ -307,10 +860,22 @@ public class RemoteActors {
                 Executors.newCachedThreadPool();
         private ExecutorService clientBossServerExecutor = 
                 Executors.newCachedThreadPool();
+        private ScheduledExecutorService flusher = newFlusher();
         private final Properties props;
         private final RemoteActorHandler rah;
         private final ConcurrentHashMap<String, RemoteActor> refs = 
                 new ConcurrentHashMap<String, RemoteActor>();
+        private final ConcurrentHashMap<String, AtomicReferenceArray<Outbound>> links = 
+                new ConcurrentHashMap<String, AtomicReferenceArray<Outbound>>();
+        private final ConcurrentHashMap<Channel, Outbound> channels = 
+                new ConcurrentHashMap<Channel, Outbound>();
+        private final ConcurrentHashMap<String, Watched> watched = 
+                new ConcurrentHashMap<String, Watched>();
+        private final ConcurrentHashMap<String, RemoteStats> remoteStats = 
+                new ConcurrentHashMap<String, RemoteStats>();
+        private final ConcurrentHashMap<String, Actor> configured = 
+                new ConcurrentHashMap<String, Actor>();
+        private volatile Cluster cluster;
 
         public RemoteCreationnalContextImpl(String id, Properties props) {
             super(id);
@@ -326,6 +891,10 @@ public class RemoteActors {
         
         @Override
         public Actor lookup(String name) {
+            Actor actor = configured.get(name);
+            if (actor != null) {
+                return actor;
+            }
             String value = props.getProperty(name);
             try {
                 if (value != null) {
@@ -336,19 +905,48 @@ public class RemoteActors {
                         String por = rest.split("/")[0];
                         String context = rest.split("/")[1];
                         String nam = rest.split("/")[2];
-                        return RemoteActor.ref(context, nam, hos, Integer.valueOf(por), this);
+                        actor = RemoteActor.ref(context, nam, hos, Integer.valueOf(por), this);
+                        configured.put(name, actor);
+                        return actor;
                     }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            Cluster c = cluster;
+            if (c != null && find(name) == null) {
+                actor = c.lookup(name);
+                if (actor != null) {
+                    return actor;
+                }
+            }
             return super.lookup(name);
         }
 
+        @Override
+        public synchronized Cluster joinCluster(String... seeds) {
+            if (host == null) {
+                throw new IllegalStateException("Remoting must be started before joining a cluster");
+            }
+            if (cluster == null) {
+                cluster = new Cluster(this, host, port, seeds);
+            }
+            return cluster;
+        }
+
+        @Override
+        public Cluster cluster() {
+            return cluster;
+        }
+        
+        ScheduledExecutorService scheduler() {
+            return flusher;
+        }
+
         @Override
         public void startRemoting(String host, int port) {
             this.host = host;
-            this.port = String.valueOf(port);
+            this.port = port;
             System.out.print("Starting remoting of " + " @" + host + ":" + port + " ... ");
             try {
                 bootstrap = new ServerBootstrap(
@@ -359,8 +957,8 @@ public class RemoteActors {
                     @Override
                     public ChannelPipeline getPipeline() throws Exception {
                         return Channels.pipeline(
-                            new ObjectEncoder(),
-                            new ObjectDecoder(),
+                            Wire.framer(),
+                            new Wire.Decoder(serializer),
                             rah);
                     }
                 });
@@ -372,12 +970,210 @@ public class RemoteActors {
             }
         }
 
+        @Override
+        public RemoteActorContext withSerializer(RemoteSerializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        @Override
+        public RemoteActorContext withWriteBatching(int batchSize, long flushDelay, TimeUnit unit) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be at least 1");
+            }
+            this.batchSize = batchSize;
+            this.flushDelay = unit.toNanos(flushDelay);
+            return this;
+        }
+        
+        @Override
+        public RemoteActorContext withConnectionsPerNode(int connections) {
+            if (connections < 1) {
+                throw new IllegalArgumentException("At least one connection per node is needed");
+            }
+            this.connectionsPerNode = connections;
+            return this;
+        }
+        
+        @Override
+        public RemoteActorContext withStatsInterval(long interval, TimeUnit unit) {
+            if (interval <= 0L) {
+                throw new IllegalArgumentException("Stats interval must be positive");
+            }
+            this.statsInterval = unit.toNanos(interval);
+            return this;
+        }
+        
+        @Override
+        public RemoteActorContext withFlowControl(int maxPending, OverflowPolicy policy) {
+            if (maxPending < 1) {
+                throw new IllegalArgumentException("At least one pending message is needed");
+            }
+            this.maxPending = maxPending;
+            this.overflowPolicy = policy;
+            return this;
+        }
+
+        @Override
+        public RemoteActorContext withInboundWatermarks(int high, int low) {
+            if (low < 0 || high <= low) {
+                throw new IllegalArgumentException("Watermarks must verify 0 <= low < high");
+            }
+            this.inboundHigh = high;
+            this.inboundLow = low;
+            return this;
+        }
+        
+        void delivered(String name, Actor target, Channel channel) {
+            Watched w = watched.get(name);
+            if (w == null || w.actor != target) {
+                w = new Watched(target);
+                watched.put(name, w);
+            }
+            w.delivered.incrementAndGet();
+            Outbound outbound = channels.get(channel);
+            if (outbound != null) {
+                outbound.watch(name);
+            }
+        }
+        
+        List<RemoteStats> stats(Set<String> names) {
+            List<RemoteStats> stats = new ArrayList<RemoteStats>(names.size());
+            for (Iterator<String> it = names.iterator(); it.hasNext();) {
+                String name = it.next();
+                Watched w = watched.get(name);
+                if (w == null || find(name) != w.actor) {
+                    watched.remove(name, w);
+                    it.remove();
+                } else {
+                    stats.add(w.sample(id, name, statsInterval / 2));
+                }
+            }
+            return stats;
+        }
+        
+        private AtomicReferenceArray<Outbound> pool(String host, int port) {
+            String key = host + ":" + port;
+            AtomicReferenceArray<Outbound> pool = links.get(key);
+            if (pool == null) {
+                links.putIfAbsent(key, new AtomicReferenceArray<Outbound>(connectionsPerNode));
+                pool = links.get(key);
+            }
+            return pool;
+        }
+        
+        /**
+         * Connection to the node at host:port carrying the messages of the 
+         * given actor. A connection the node opened to us is used if there is
+         * one, otherwise one is dialed on first use.
+         */
+        Outbound link(String host, int port, String name) {
+            AtomicReferenceArray<Outbound> pool = pool(host, port);
+            int slot = (name.hashCode() & Integer.MAX_VALUE) % pool.length();
+            Outbound outbound = pool.get(slot);
+            if (outbound != null) {
+                return outbound;
+            }
+            synchronized (pool) {
+                outbound = pool.get(slot);
+                for (int i = 0; outbound == null && i < pool.length(); i++) {
+                    Outbound other = pool.get(i);
+                    if (other != null && other.inbound) {
+                        outbound = other;
+                        pool.set(slot, outbound);
+                    }
+                }
+                if (outbound == null) {
+                    ChannelFuture connecting = bootstrap().connect(new InetSocketAddress(host, port));
+                    outbound = new Outbound(connecting, false, this);
+                    outbound.pool = pool;
+                    pool.set(slot, outbound);
+                    register(connecting.getChannel(), outbound);
+                }
+            }
+            return outbound;
+        }
+        
+        private void register(final Channel channel, final Outbound outbound) {
+            channels.put(channel, outbound);
+            channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    channels.remove(channel, outbound);
+                    outbound.closed();
+                }
+            });
+        }
+        
+        /**
+         * Lets replies to the node at host:port go through a connection it 
+         * opened, instead of dialing back.
+         */
+        void reuse(String host, int port, Outbound inbound) {
+            AtomicReferenceArray<Outbound> pool = pool(host, port);
+            synchronized (pool) {
+                for (int i = 0; i < pool.length(); i++) {
+                    if (pool.get(i) == null) {
+                        inbound.pool = pool;
+                        pool.set(i, inbound);
+                        break;
+                    }
+                }
+            }
+            // closed before being pooled, its close listener could not release it
+            if (!inbound.connected.getChannel().isOpen()) {
+                inbound.closed();
+            }
+        }
+        
+        int connections() {
+            return channels.size();
+        }
+        
+        private synchronized ClientBootstrap bootstrap() {
+            if (clientBootstrap == null) {
+                clientBootstrap = new ClientBootstrap(
+                        new NioClientSocketChannelFactory(
+                        clientServerExecutor,
+                        clientBossServerExecutor));
+                clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                    @Override
+                    public ChannelPipeline getPipeline() throws Exception {
+                        return Channels.pipeline(
+                            Wire.framer(),
+                            new Wire.Decoder(serializer),
+                            rah);
+                    }
+                });
+            }
+            return clientBootstrap;
+        }
+        
+        private static ScheduledExecutorService newFlusher() {
+            return Executors.newScheduledThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        }
+
         @Override
         public void stopRemoting() {
             System.out.print("Stopping remoting of " + " @" + host + ":" + port + " ... ");
+            synchronized (this) {
+                if (cluster != null) {
+                    cluster.leave();
+                    cluster = null;
+                }
+            }
             try {
-                for (RemoteActor act : refs.values()) {
-                    act.close();
+                for (Outbound outbound : channels.values()) {
+                    outbound.close();
+                }
+                channels.clear();
+                links.clear();
+                watched.clear();
+                remoteStats.clear();
+                refs.clear();
+                configured.clear();
+                synchronized (this) {
+                    clientBootstrap = null;
                 }
             } catch(Throwable t) { t.printStackTrace(); }
             try {
@@ -391,15 +1187,18 @@ public class RemoteActors {
                 bossServerExecutor.shutdown();
                 clientServerExecutor.shutdown();
                 clientBossServerExecutor.shutdown();
+                flusher.shutdown();
                 remotingServerExecutor.shutdownNow();
                 bossServerExecutor.shutdownNow();
                 clientServerExecutor.shutdownNow();
                 clientBossServerExecutor.shutdownNow();
+                flusher.shutdownNow();
             } catch(Throwable t) { t.printStackTrace(); }
             remotingServerExecutor = Executors.newCachedThreadPool();
             bossServerExecutor = Executors.newCachedThreadPool();
             clientServerExecutor = Executors.newCachedThreadPool();
             clientBossServerExecutor = Executors.newCachedThreadPool();
+            flusher = newFlusher();
             System.out.println("DONE !");
         }
 
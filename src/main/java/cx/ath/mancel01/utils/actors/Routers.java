@@ -0,0 +1,782 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F;
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.M;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Broadcast;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import cx.ath.mancel01.utils.actors.Actors.Props;
+import cx.ath.mancel01.utils.actors.Mailboxes.Envelope;
+import cx.ath.mancel01.utils.actors.Mailboxes.Mailbox;
+import cx.ath.mancel01.utils.actors.Supervision.Directive;
+import cx.ath.mancel01.utils.actors.Supervision.Strategy;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Routers {
+
+    /**
+     * Picks the routee of a message. Called on every send, so it must never
+     * block.
+     */
+    public static interface RoutingLogic extends Serializable {
+
+        Actor select(Object message, List<Actor> routees);
+    }
+
+    /**
+     * Messages implementing this are routed on their key by consistent
+     * hashing routers, whatever the key function.
+     */
+    public static interface ConsistentHashable {
+
+        Object consistentHashKey();
+    }
+
+    public static RoutingLogic roundRobin() {
+        return new RoundRobin();
+    }
+
+    public static RoutingLogic random() {
+        return new RandomRouting();
+    }
+
+    public static RoutingLogic smallestMailbox() {
+        return new SmallestMailbox();
+    }
+
+    public static RoutingLogic consistentHashing() {
+        return consistentHashing(null, 10);
+    }
+
+    public static RoutingLogic consistentHashing(Function<Object, Object> key) {
+        return consistentHashing(key, 10);
+    }
+
+    /**
+     * Routes on key.apply(message), or the message itself without a key
+     * function. A null key hashes like 0, so all of them go to one routee.
+     */
+    public static RoutingLogic consistentHashing(Function<Object, Object> key, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("At least one virtual node per routee is needed");
+        }
+        return new ConsistentHashing(key, virtualNodes);
+    }
+
+    /**
+     * Creates number workers in the context, named like LoadBalancerActor
+     * workers.
+     */
+    public static List<Actor> pool(ActorContext system, long number, Function<Unit, ? extends Behavior> of) {
+        if (number <= 0) {
+            throw new IllegalArgumentException("A pool needs at least one worker");
+        }
+        List<Actor> workers = new ArrayList<Actor>();
+        for (long i = 0; i < number; i++) {
+            Behavior b = of.apply(Unit.unit());
+            workers.add(system.create(b, b.getClass().getSimpleName() + "__" + i));
+        }
+        return workers;
+    }
+
+    public static RouterActor apply(ActorContext system, long number, Function<Unit, ? extends Behavior> of, RoutingLogic logic) {
+        return new RouterActor(logic, pool(system, number, of));
+    }
+
+    public static ScatterGatherActor scatterGather(ActorContext system, long number, Function<Unit, ? extends Behavior> of, long timeout, TimeUnit unit) {
+        return new ScatterGatherActor(pool(system, number, of), timeout, unit);
+    }
+
+    /**
+     * Registers a BalancingPool named name in the context, using the context
+     * executor and throughput and a shared mailbox.
+     */
+    public static Actor balancingPool(ActorContext system, String name, int number, Function<Unit, ? extends Behavior> of) {
+        return balancingPool(system, name, number, of, system.defaults().copy().withMailbox(Mailboxes.shared()));
+    }
+
+    /**
+     * props.mailbox() must support concurrent consumers, like
+     * Mailboxes.shared() or Mailboxes.bounded(...).
+     */
+    public static Actor balancingPool(ActorContext system, String name, int number, Function<Unit, ? extends Behavior> of, Props props) {
+        BalancingPool pool = new BalancingPool(system, name, number, of, props);
+        if (system instanceof Actors.CreationnalContextImpl) {
+            Actor existing = ((Actors.CreationnalContextImpl) system).getActors().putIfAbsent(name, pool);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * A router starting with resizer.lowerBound() workers named name__n, then
+     * growing and shrinking the pool as it routes messages.
+     */
+    public static ResizableRouterActor resizable(ActorContext system, String name, Function<Unit, ? extends Behavior> of, RoutingLogic logic, Resizer resizer) {
+        return new ResizableRouterActor(system, name, of, logic, resizer);
+    }
+
+    /**
+     * Sends each message to the routee chosen by its logic, and Broadcast
+     * messages to every routee.
+     */
+    public static class RouterActor implements Behavior {
+
+        private final RoutingLogic logic;
+        private final List<Actor> routees;
+
+        public RouterActor(RoutingLogic logic, List<Actor> routees) {
+            if (routees.isEmpty()) {
+                throw new IllegalArgumentException("A router needs at least one routee");
+            }
+            this.logic = logic;
+            this.routees = Collections.unmodifiableList(new ArrayList<Actor>(routees));
+        }
+
+        public List<Actor> routees() {
+            return routees;
+        }
+
+        @Override
+        public Effect apply(Object evt, Context ctx) {
+            for (Broadcast b : M.caseClassOf(Broadcast.class, evt)) {
+                for (Actor routee : routees) {
+                    routee.tell(b.message, b.from);
+                }
+                return Actors.CONTINUE;
+            }
+            logic.select(evt, routees).tell(evt, ctx.from);
+            return Actors.CONTINUE;
+        }
+    }
+
+    /**
+     * Asks every routee and answers the sender with the first reply. If
+     * nobody replies in time, the sender gets the TimeoutException.
+     */
+    public static class ScatterGatherActor implements Behavior {
+
+        private final List<Actor> routees;
+        private final long timeout;
+        private final TimeUnit unit;
+
+        public ScatterGatherActor(List<Actor> routees, long timeout, TimeUnit unit) {
+            if (routees.isEmpty()) {
+                throw new IllegalArgumentException("A router needs at least one routee");
+            }
+            this.routees = Collections.unmodifiableList(new ArrayList<Actor>(routees));
+            this.timeout = timeout;
+            this.unit = unit;
+        }
+
+        @Override
+        public Effect apply(Object evt, Context ctx) {
+            for (Broadcast b : M.caseClassOf(Broadcast.class, evt)) {
+                for (Actor routee : routees) {
+                    routee.tell(b.message, b.from);
+                }
+                return Actors.CONTINUE;
+            }
+            final Actor from = ctx.from;
+            final Actor me = ctx.me;
+            List<Promise<Object>> replies = new ArrayList<Promise<Object>>(routees.size());
+            for (Actor routee : routees) {
+                replies.add(routee.<Object>ask(evt, timeout, unit));
+            }
+            Promise.firstCompletedOf(replies).onRedeem(new F.Action<Promise<Object>>() {
+                @Override
+                public void apply(Promise<Object> first) {
+                    Throwable failure = first.failureOrNull();
+                    from.tell(failure == null ? first.getOrNull() : failure, me);
+                }
+            });
+            return Actors.CONTINUE;
+        }
+    }
+
+    /**
+     * Decides how many workers to add or remove from the backlog queued in
+     * the routees and from their utilisation, i.e. the share of the elapsed
+     * time spent in Behavior.apply. Grows when the backlog per routee reaches
+     * pressureThreshold or utilisation reaches rampupUtilisation, shrinks when
+     * there is no backlog and utilisation stays under backoffThreshold. Two
+     * resizes are at least backoffPeriod apart.
+     */
+    public static class Resizer implements Serializable {
+
+        private final int lowerBound;
+        private final int upperBound;
+        private int pressureThreshold = 1;
+        private double rampupUtilisation = 0.8;
+        private double rampupRate = 0.2;
+        private double backoffThreshold = 0.3;
+        private double backoffRate = 0.1;
+        private int messagesPerResize = 10;
+        private long backoffPeriod = TimeUnit.MILLISECONDS.toNanos(100L);
+
+        public Resizer(int lowerBound, int upperBound) {
+            if (lowerBound < 1 || upperBound < lowerBound) {
+                throw new IllegalArgumentException("Invalid bounds [" + lowerBound + ", " + upperBound + "]");
+            }
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        public Resizer withPressureThreshold(int queuedPerRoutee) {
+            this.pressureThreshold = queuedPerRoutee;
+            return this;
+        }
+
+        public Resizer withRampup(double utilisation, double rate) {
+            this.rampupUtilisation = utilisation;
+            this.rampupRate = rate;
+            return this;
+        }
+
+        public Resizer withBackoff(double threshold, double rate) {
+            this.backoffThreshold = threshold;
+            this.backoffRate = rate;
+            return this;
+        }
+
+        public Resizer withBackoffPeriod(long time, TimeUnit unit) {
+            this.backoffPeriod = unit.toNanos(time);
+            return this;
+        }
+
+        public Resizer withMessagesPerResize(int messages) {
+            if (messages < 1) {
+                throw new IllegalArgumentException("Resizing needs at least one message between checks");
+            }
+            this.messagesPerResize = messages;
+            return this;
+        }
+
+        public int lowerBound() {
+            return lowerBound;
+        }
+
+        public int upperBound() {
+            return upperBound;
+        }
+
+        public int messagesPerResize() {
+            return messagesPerResize;
+        }
+
+        public long backoffPeriodNanos() {
+            return backoffPeriod;
+        }
+
+        /**
+         * Number of workers to add (positive) or retire (negative).
+         */
+        public int delta(int capacity, int backlog, double utilisation) {
+            int proposed = 0;
+            if (backlog >= pressureThreshold * capacity || utilisation >= rampupUtilisation) {
+                proposed = Math.max(1, (int) Math.ceil(capacity * rampupRate));
+            } else if (backlog == 0 && utilisation < backoffThreshold) {
+                proposed = -Math.max(1, (int) Math.floor(capacity * backoffRate));
+            }
+            return Math.max(lowerBound, Math.min(upperBound, capacity + proposed)) - capacity;
+        }
+    }
+
+    /**
+     * Router owning its workers so it can time them. Retired workers are
+     * taken out of the routees first, then sent a Poison.PILL that queues
+     * behind the messages they already have. Workers therefore need a FIFO
+     * mailbox, not a priority one.
+     */
+    public static class ResizableRouterActor implements Behavior {
+
+        private final ActorContext system;
+        private final String name;
+        private final Function<Unit, ? extends Behavior> of;
+        private final RoutingLogic logic;
+        private final Resizer resizer;
+        private final AtomicLong ids = new AtomicLong(0L);
+        private final AtomicLong busyNanos = new AtomicLong(0L);
+        private volatile List<Actor> routees = Collections.emptyList();
+        private long routed = 0L;
+        private long lastCheck = System.nanoTime();
+        private long lastBusy = 0L;
+        private long lastResize = System.nanoTime();
+
+        ResizableRouterActor(ActorContext system, String name, Function<Unit, ? extends Behavior> of, RoutingLogic logic, Resizer resizer) {
+            this.system = system;
+            this.name = name;
+            this.of = of;
+            this.logic = logic;
+            this.resizer = resizer;
+            grow(resizer.lowerBound());
+        }
+
+        public List<Actor> routees() {
+            return routees;
+        }
+
+        @Override
+        public Effect apply(Object evt, Context ctx) {
+            for (Broadcast b : M.caseClassOf(Broadcast.class, evt)) {
+                for (Actor routee : routees) {
+                    routee.tell(b.message, b.from);
+                }
+                return Actors.CONTINUE;
+            }
+            if (++routed % resizer.messagesPerResize() == 0) {
+                resize();
+            }
+            logic.select(evt, routees).tell(evt, ctx.from);
+            return Actors.CONTINUE;
+        }
+
+        private void resize() {
+            long now = System.nanoTime();
+            if (now - lastResize < resizer.backoffPeriodNanos()) {
+                return;
+            }
+            List<Actor> current = routees;
+            int backlog = 0;
+            for (Actor routee : current) {
+                backlog += routee.mailboxSize();
+            }
+            long busy = busyNanos.get();
+            double utilisation = (double) (busy - lastBusy) / Math.max(1L, (now - lastCheck) * current.size());
+            lastBusy = busy;
+            lastCheck = now;
+            int delta = resizer.delta(current.size(), backlog, utilisation);
+            if (delta > 0) {
+                grow(delta);
+                lastResize = now;
+            } else if (delta < 0) {
+                shrink(-delta);
+                lastResize = now;
+            }
+        }
+
+        private void grow(int count) {
+            List<Actor> next = new ArrayList<Actor>(routees);
+            for (int i = 0; i < count; i++) {
+                next.add(system.create(new Timed(of.apply(Unit.unit())), name + "__" + ids.getAndIncrement()));
+            }
+            routees = Collections.unmodifiableList(next);
+        }
+
+        private void shrink(int count) {
+            List<Actor> next = new ArrayList<Actor>(routees);
+            List<Actor> retired = new ArrayList<Actor>(next.subList(next.size() - count, next.size()));
+            next.removeAll(retired);
+            routees = Collections.unmodifiableList(next);
+            for (Actor actor : retired) {
+                actor.tell(Poison.PILL);
+                if (system instanceof Actors.CreationnalContextImpl) {
+                    ((Actors.CreationnalContextImpl) system).getActors().remove(actor.id(), actor);
+                }
+            }
+        }
+
+        private final class Timed implements Behavior {
+
+            private Behavior behavior;
+
+            private Timed(Behavior behavior) {
+                this.behavior = behavior;
+            }
+
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                final long start = System.nanoTime();
+                try {
+                    behavior = behavior.apply(message, ctx).getOrElse(behavior);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                }
+                return behavior == Actors.DIE.like ? Actors.DIE : Actors.CONTINUE;
+            }
+        }
+    }
+
+    /**
+     * N worker behaviors pulling from one mailbox: a slow message only holds
+     * the worker processing it, the others keep draining the queue. Behaviors
+     * see the pool as ctx.me. Broadcast messages reach every worker, and a
+     * Poison.PILL stops the whole pool. A failing worker is handled by the
+     * supervisor of the props, with nobody to escalate to : STOP and
+     * ESCALATE stop the whole pool too.
+     */
+    public static class BalancingPool implements Actor {
+
+        private static final Object RESTART = new Object();
+
+        private final ActorContext system;
+        private final String name;
+        private final Function<Unit, ? extends Behavior> of;
+        private final Mailbox mbox;
+        private final Executor executor;
+        private final int throughput;
+        private final Strategy supervisor;
+        private final Worker[] workers;
+        private final AtomicLong next = new AtomicLong(0L);
+        private volatile boolean dead = false;
+
+        BalancingPool(ActorContext system, String name, int number, Function<Unit, ? extends Behavior> of, Props props) {
+            if (number <= 0) {
+                throw new IllegalArgumentException("A pool needs at least one worker");
+            }
+            this.system = system;
+            this.name = name;
+            this.of = of;
+            this.mbox = props.mailbox().apply(Unit.unit());
+            Mailboxes.own(mbox, this);
+            this.executor = props.executor();
+            this.throughput = props.throughput();
+            this.supervisor = props.supervisor();
+            this.workers = new Worker[number];
+            for (int i = 0; i < number; i++) {
+                workers[i] = new Worker(of.apply(Unit.unit()));
+            }
+        }
+
+        @Override
+        public String id() {
+            return name;
+        }
+
+        @Override
+        public Future<Boolean> buzy() {
+            for (Worker worker : workers) {
+                if (!worker.get()) {
+                    return Promise.pure(false);
+                }
+            }
+            return Promise.pure(true);
+        }
+
+        @Override
+        public int mailboxSize() {
+            return mbox.size();
+        }
+
+        public int workers() {
+            return workers.length;
+        }
+
+        @Override
+        public void tell(Object message) {
+            tell(message, Actors.Sink.INSTANCE);
+        }
+
+        @Override
+        public void tell(Object message, Actor from) {
+            if (dead) {
+                Actors.DIE.like.apply(message, new Context(this, from, name, system));
+                return;
+            }
+            if (message instanceof Broadcast) {
+                Broadcast b = (Broadcast) message;
+                for (Worker worker : workers) {
+                    worker.own.offer(new Envelope(b.message, b.from));
+                    worker.trySchedule();
+                }
+            } else if (mbox.offer(message, from)) {
+                wakeUp();
+            }
+        }
+
+        @Override
+        public <T> Promise<T> ask(Object message) {
+            return ask(message, 0L, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public <T> Promise<T> ask(Object message, long timeout, TimeUnit unit) {
+            Actors.PromiseActor<T> promiseActor = new Actors.PromiseActor<T>("promise/", timeout, unit);
+            tell(message, promiseActor);
+            return promiseActor.promise;
+        }
+
+        // starts one idle worker, busy ones will look at the mailbox again when they are done
+        private void wakeUp() {
+            int start = (int) ((next.getAndIncrement() & Long.MAX_VALUE) % workers.length);
+            for (int i = 0; i < workers.length; i++) {
+                if (workers[(start + i) % workers.length].trySchedule()) {
+                    return;
+                }
+            }
+        }
+
+        private void stop() {
+            dead = true;
+            if (system instanceof Actors.CreationnalContextImpl) {
+                ((Actors.CreationnalContextImpl) system).getActors().remove(name, this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "balancingpool://" + name;
+        }
+
+        private final class Worker extends AtomicBoolean implements Runnable {
+
+            private final ConcurrentLinkedQueue<Envelope> own = new ConcurrentLinkedQueue<Envelope>();
+            private final Envelope envelope = new Envelope();
+            private final Supervision.Restarts restarts = new Supervision.Restarts();
+            private Behavior behavior;
+
+            private Worker(Behavior behavior) {
+                this.behavior = behavior;
+            }
+
+            private boolean trySchedule() {
+                if (compareAndSet(false, true)) {
+                    try {
+                        executor.execute(this);
+                    } catch (RejectedExecutionException ree) {
+                        set(false);
+                        throw ree;
+                    }
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    for (int processed = 0; processed < throughput; processed++) {
+                        Envelope broadcast = own.poll();
+                        if (broadcast != null) {
+                            process(broadcast);
+                        } else if (mbox.poll(envelope)) {
+                            process(envelope);
+                        } else {
+                            break;
+                        }
+                    }
+                } finally {
+                    envelope.message = null;
+                    envelope.from = null;
+                    set(false);
+                    if (!own.isEmpty()) {
+                        trySchedule();
+                    }
+                    if (!mbox.isEmpty()) {
+                        wakeUp();
+                    }
+                }
+            }
+
+            private void process(Envelope envelope) {
+                if (envelope.message instanceof Poison) {
+                    stop();
+                } else if (dead) {
+                    if (envelope.message != RESTART) {
+                        Actors.DIE.like.apply(envelope.message, new Context(BalancingPool.this, envelope.from, name, system));
+                    }
+                } else if (envelope.message == RESTART) {
+                    restart();
+                } else {
+                    try {
+                        behavior = behavior.apply(envelope.message, new Context(BalancingPool.this, envelope.from, name, system)).getOrElse(behavior);
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }
+
+            private void fail(Throwable cause) {
+                Directive directive = supervisor.decide(cause);
+                if (directive == Directive.RESTART && !supervisor.permit(restarts)) {
+                    SimpleLogger.error("Pool {} stopped after too many restarts : {}", name, cause);
+                    directive = Directive.STOP;
+                } else if (directive == Directive.STOP || directive == Directive.ESCALATE) {
+                    SimpleLogger.error("Pool {} stopped : {}", name, cause);
+                    directive = Directive.STOP;
+                }
+                if (directive == Directive.STOP) {
+                    stop();
+                } else if (directive == Directive.RESTART) {
+                    if (supervisor.allForOne()) {
+                        for (Worker worker : workers) {
+                            if (worker != this) {
+                                worker.own.offer(new Envelope(RESTART, Actors.Sink.INSTANCE));
+                                worker.trySchedule();
+                            }
+                        }
+                    }
+                    restart();
+                }
+            }
+
+            private void restart() {
+                try {
+                    behavior = of.apply(Unit.unit());
+                } catch (RuntimeException re) {
+                    SimpleLogger.error("Pool {} stopped, restart failed : {}", name, re);
+                    stop();
+                }
+            }
+        }
+    }
+
+    private static final class RoundRobin implements RoutingLogic {
+
+        private final AtomicLong next = new AtomicLong(0L);
+
+        @Override
+        public Actor select(Object message, List<Actor> routees) {
+            return routees.get((int) ((next.getAndIncrement() & Long.MAX_VALUE) % routees.size()));
+        }
+    }
+
+    private static final class RandomRouting implements RoutingLogic {
+
+        private final Random random = new Random();
+
+        @Override
+        public Actor select(Object message, List<Actor> routees) {
+            return routees.get(random.nextInt(routees.size()));
+        }
+    }
+
+    /**
+     * Reads the mailbox size every actor maintains. The scan starts at a
+     * rotating offset so ties, and routees that don't know their size, are
+     * served round robin.
+     */
+    private static final class SmallestMailbox implements RoutingLogic {
+
+        private final AtomicLong next = new AtomicLong(0L);
+
+        @Override
+        public Actor select(Object message, List<Actor> routees) {
+            int size = routees.size();
+            int start = (int) ((next.getAndIncrement() & Long.MAX_VALUE) % size);
+            Actor best = null;
+            int smallest = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                Actor routee = routees.get((start + i) % size);
+                int pending = routee.mailboxSize();
+                if (pending < smallest) {
+                    best = routee;
+                    smallest = pending;
+                    if (pending == 0) {
+                        break;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class ConsistentHashing implements RoutingLogic {
+
+        private final Function<Object, Object> key;
+        private final int virtualNodes;
+        private transient volatile Ring ring;
+
+        private ConsistentHashing(Function<Object, Object> key, int virtualNodes) {
+            this.key = key;
+            this.virtualNodes = virtualNodes;
+        }
+
+        @Override
+        public Actor select(Object message, List<Actor> routees) {
+            Ring current = ring;
+            if (current == null || current.routees != routees) {
+                current = new Ring(routees, virtualNodes);
+                ring = current;
+            }
+            return current.lookup(hashOf(keyOf(message)));
+        }
+
+        private Object keyOf(Object message) {
+            if (message instanceof ConsistentHashable) {
+                return ((ConsistentHashable) message).consistentHashKey();
+            }
+            if (key != null) {
+                return key.apply(message);
+            }
+            return message;
+        }
+    }
+
+    private static final class Ring {
+
+        private final List<Actor> routees;
+        private final TreeMap<Integer, Actor> nodes = new TreeMap<Integer, Actor>();
+
+        private Ring(List<Actor> routees, int virtualNodes) {
+            this.routees = routees;
+            for (Actor routee : routees) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    nodes.put(hash((routee.id() + "#" + i).hashCode()), routee);
+                }
+            }
+        }
+
+        private Actor lookup(int hash) {
+            Map.Entry<Integer, Actor> entry = nodes.ceilingEntry(hash);
+            if (entry == null) {
+                entry = nodes.firstEntry();
+            }
+            return entry.getValue();
+        }
+    }
+
+    static int hashOf(Object key) {
+        return hash(key == null ? 0 : key.hashCode());
+    }
+
+    // murmur3 finalizer, spreads poor hashCode() implementations over the ring
+    static int hash(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a parent does when one of its children throws from Behavior.apply.
+ * The failing message is sent to the sink, the rest of the mailbox is kept.
+ */
+public class Supervision {
+
+    public static enum Directive {
+        /** Keeps the current behavior and goes on with the next message. */
+        RESUME,
+        /** Recreates the behavior from the actor's initial function, children included. */
+        RESTART,
+        /** Kills the actor and its children, pending messages become dead letters. */
+        STOP,
+        /** Fails the parent with the same cause, the child waits for its decision. */
+        ESCALATE
+    }
+
+    /**
+     * Escalated failure, sent as a system message to the parent.
+     */
+    public static final class Failed {
+
+        public final Actor child;
+        public final Throwable cause;
+
+        public Failed(Actor child, Throwable cause) {
+            this.child = child;
+            this.cause = cause;
+        }
+    }
+
+    public static final class Strategy {
+
+        private final boolean allForOne;
+        private final int maxRestarts;
+        private final long window;
+        private final Function<Throwable, Directive> decider;
+
+        private Strategy(boolean allForOne, int maxRestarts, long window, Function<Throwable, Directive> decider) {
+            this.allForOne = allForOne;
+            this.maxRestarts = maxRestarts;
+            this.window = window;
+            this.decider = decider;
+        }
+
+        public boolean allForOne() {
+            return allForOne;
+        }
+
+        public Directive decide(Throwable cause) {
+            final Directive directive = decider.apply(cause);
+            return directive == null ? Directive.ESCALATE : directive;
+        }
+
+        /**
+         * Counts a restart of the child owning the counters, false once more
+         * than maxRestarts happened in the window.
+         */
+        boolean permit(Restarts restarts) {
+            if (maxRestarts < 0) {
+                return true;
+            }
+            final long now = System.nanoTime();
+            if (window <= 0L || now - restarts.windowStart > window) {
+                restarts.windowStart = now;
+                restarts.count = 0;
+            }
+            return ++restarts.count <= maxRestarts;
+        }
+    }
+
+    /**
+     * Restart counters of one actor, only touched by the actor itself.
+     */
+    static final class Restarts {
+        int count;
+        long windowStart = System.nanoTime();
+    }
+
+    private static final Strategy DEFAULT = oneForOne(defaultDecider());
+
+    /**
+     * Restarts on exceptions, escalates errors, without restart limit.
+     */
+    public static Strategy defaultStrategy() {
+        return DEFAULT;
+    }
+
+    public static Strategy oneForOne(Function<Throwable, Directive> decider) {
+        return new Strategy(false, -1, 0L, decider);
+    }
+
+    /**
+     * The child is stopped when it would be restarted more than maxRestarts
+     * times within the window.
+     */
+    public static Strategy oneForOne(int maxRestarts, long within, TimeUnit unit, Function<Throwable, Directive> decider) {
+        return new Strategy(false, maxRestarts, unit.toNanos(within), decider);
+    }
+
+    public static Strategy allForOne(Function<Throwable, Directive> decider) {
+        return new Strategy(true, -1, 0L, decider);
+    }
+
+    /**
+     * The directive applies to every sibling of the failing child. Only the
+     * restarts of the failing child count against maxRestarts.
+     */
+    public static Strategy allForOne(int maxRestarts, long within, TimeUnit unit, Function<Throwable, Directive> decider) {
+        return new Strategy(true, maxRestarts, unit.toNanos(within), decider);
+    }
+
+    public static Function<Throwable, Directive> defaultDecider() {
+        return new Function<Throwable, Directive>() {
+            @Override
+            public Directive apply(Throwable cause) {
+                return cause instanceof Exception ? Directive.RESTART : Directive.ESCALATE;
+            }
+        };
+    }
+
+    public static Function<Throwable, Directive> always(final Directive directive) {
+        return new Function<Throwable, Directive>() {
+            @Override
+            public Directive apply(Throwable cause) {
+                return directive;
+            }
+        };
+    }
+}
@@ -0,0 +1,648 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Binary protocol between remote actor contexts. Every frame is an int
+ * length followed by a one byte type :
+ *
+ *   HELLO   host, port of the sending node, once per connection
+ *   DEFINE  id, name : interns a context or actor name for the connection
+ *   MESSAGE to context, to actor, from context, from actor (interned ids) and
+ *           the payload written by the RemoteSerializer
+ *   STATS   context and, for each actor, its name, mailbox depth, busy flag
+ *           and processing rate
+ *   ASK     a MESSAGE followed by a correlation id, local to the connection
+ *   REPLY   correlation id of the ASK and the payload
+ *   FAILURE correlation id of the ASK and why it can't be answered
+ */
+public class Wire {
+
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    static final byte HELLO = 1;
+    static final byte DEFINE = 2;
+    static final byte MESSAGE = 3;
+    static final byte STATS = 4;
+    static final byte ASK = 5;
+    static final byte REPLY = 6;
+    static final byte FAILURE = 7;
+
+    // names beyond this are sent inline, so unique names (like ask promises) can't grow the tables forever
+    static final int MAX_INTERNED = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static interface Codec<T> {
+
+        void encode(T value, ChannelBuffer out);
+
+        T decode(ChannelBuffer in);
+    }
+
+    /**
+     * Writes message payloads. Must be thread safe, one instance is shared by
+     * every connection of a context.
+     */
+    public static interface RemoteSerializer {
+
+        void write(Object payload, ChannelBuffer out) throws IOException;
+
+        Object read(ChannelBuffer in) throws IOException;
+    }
+
+    static final class RemoteMessage {
+        String toCtx;
+        String toName;
+        String fromCtx;
+        String fromName;
+        String fromHost;
+        int fromPort;
+        Object payload;
+        // ask id, 0 for plain messages
+        long correlation;
+        boolean reply;
+        // reason of a reply failing the ask, instead of a payload
+        String failure;
+    }
+
+    /**
+     * Load of an actor as last reported by its node.
+     */
+    public static final class RemoteStats {
+        final String ctx;
+        final String name;
+        final int depth;
+        final boolean busy;
+        final int rate;
+        final long receivedAt;
+
+        RemoteStats(String ctx, String name, int depth, boolean busy, int rate) {
+            this.ctx = ctx;
+            this.name = name;
+            this.depth = depth;
+            this.busy = busy;
+            this.rate = rate;
+            this.receivedAt = System.nanoTime();
+        }
+
+        public int depth() {
+            return depth;
+        }
+
+        public boolean busy() {
+            return busy;
+        }
+
+        /** Messages processed per second. */
+        public int rate() {
+            return rate;
+        }
+
+        public long ageNanos() {
+            return System.nanoTime() - receivedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "RemoteStats{" + ctx + "/" + name + ", depth=" + depth + ", busy=" + busy + ", rate=" + rate + "}";
+        }
+    }
+
+    public static CodecSerializer serializer() {
+        return new CodecSerializer();
+    }
+
+    /**
+     * Dispatches on the exact class of the payload to a registered codec and
+     * falls back to Java serialization. Strings, boxed primitives, byte
+     * arrays and enums have built-in codecs.
+     */
+    public static class CodecSerializer implements RemoteSerializer {
+
+        private static final int NULL = 0;
+        private static final int STRING = 1;
+        private static final int INT = 2;
+        private static final int LONG = 3;
+        private static final int DOUBLE = 4;
+        private static final int BOOLEAN = 5;
+        private static final int BYTES = 6;
+        private static final int ENUM = 7;
+        private static final int JAVA = 255;
+        /** Tags from FIRST_USER_TAG to 254 are free for registered codecs. */
+        public static final int FIRST_USER_TAG = 32;
+
+        private final Map<Class<?>, Integer> tags = new ConcurrentHashMap<Class<?>, Integer>();
+        private final Registered<?>[] codecs = new Registered<?>[256];
+
+        private static final class Registered<T> {
+
+            private final Class<T> type;
+            private final Codec<T> codec;
+
+            Registered(Class<T> type, Codec<T> codec) {
+                this.type = type;
+                this.codec = codec;
+            }
+
+            void encode(Object value, ChannelBuffer out) {
+                codec.encode(type.cast(value), out);
+            }
+        }
+
+        public CodecSerializer() {
+            put(STRING, String.class, new Codec<String>() {
+                @Override
+                public void encode(String value, ChannelBuffer out) {
+                    writeString(value, out);
+                }
+                @Override
+                public String decode(ChannelBuffer in) {
+                    return readString(in);
+                }
+            });
+            put(INT, Integer.class, new Codec<Integer>() {
+                @Override
+                public void encode(Integer value, ChannelBuffer out) {
+                    writeVarLong(zigzag(value), out);
+                }
+                @Override
+                public Integer decode(ChannelBuffer in) {
+                    return (int) unzigzag(readVarLong(in));
+                }
+            });
+            put(LONG, Long.class, new Codec<Long>() {
+                @Override
+                public void encode(Long value, ChannelBuffer out) {
+                    writeVarLong(zigzag(value), out);
+                }
+                @Override
+                public Long decode(ChannelBuffer in) {
+                    return unzigzag(readVarLong(in));
+                }
+            });
+            put(DOUBLE, Double.class, new Codec<Double>() {
+                @Override
+                public void encode(Double value, ChannelBuffer out) {
+                    out.writeDouble(value);
+                }
+                @Override
+                public Double decode(ChannelBuffer in) {
+                    return in.readDouble();
+                }
+            });
+            put(BOOLEAN, Boolean.class, new Codec<Boolean>() {
+                @Override
+                public void encode(Boolean value, ChannelBuffer out) {
+                    out.writeByte(value ? 1 : 0);
+                }
+                @Override
+                public Boolean decode(ChannelBuffer in) {
+                    return in.readByte() != 0;
+                }
+            });
+            put(BYTES, byte[].class, new Codec<byte[]>() {
+                @Override
+                public void encode(byte[] value, ChannelBuffer out) {
+                    writeVarLong(value.length, out);
+                    out.writeBytes(value);
+                }
+                @Override
+                public byte[] decode(ChannelBuffer in) {
+                    byte[] value = new byte[(int) readVarLong(in)];
+                    in.readBytes(value);
+                    return value;
+                }
+            });
+        }
+
+        /**
+         * Both sides of a connection must register the same codecs with the
+         * same tags.
+         */
+        public <T> CodecSerializer register(int tag, Class<T> type, Codec<T> codec) {
+            if (tag < FIRST_USER_TAG || tag >= JAVA) {
+                throw new IllegalArgumentException("Codec tags must be in [" + FIRST_USER_TAG + ", " + (JAVA - 1) + "]");
+            }
+            if (codecs[tag] != null) {
+                throw new IllegalArgumentException("Tag " + tag + " is already used");
+            }
+            put(tag, type, codec);
+            return this;
+        }
+
+        private <T> void put(int tag, Class<T> type, Codec<T> codec) {
+            codecs[tag] = new Registered<T>(type, codec);
+            tags.put(type, tag);
+        }
+
+        @Override
+        public void write(Object payload, ChannelBuffer out) throws IOException {
+            if (payload == null) {
+                out.writeByte(NULL);
+                return;
+            }
+            Integer tag = tags.get(payload.getClass());
+            if (tag != null) {
+                out.writeByte(tag);
+                codecs[tag].encode(payload, out);
+            } else if (payload instanceof Enum) {
+                out.writeByte(ENUM);
+                writeString(((Enum<?>) payload).getDeclaringClass().getName(), out);
+                writeVarLong(((Enum<?>) payload).ordinal(), out);
+            } else {
+                out.writeByte(JAVA);
+                ObjectOutputStream oos = new ObjectOutputStream(new ChannelBufferOutputStream(out));
+                oos.writeObject(payload);
+                oos.flush();
+            }
+        }
+
+        @Override
+        public Object read(ChannelBuffer in) throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case ENUM:
+                    String type = readString(in);
+                    int ordinal = (int) readVarLong(in);
+                    try {
+                        return loadClass(type).getEnumConstants()[ordinal];
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Unknown enum " + type);
+                    }
+                case JAVA:
+                    ObjectInputStream ois = new ContextObjectInputStream(new ChannelBufferInputStream(in));
+                    try {
+                        return ois.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Unknown class " + e.getMessage());
+                    }
+                default:
+                    Registered<?> registered = codecs[tag];
+                    if (registered == null) {
+                        throw new IOException("No codec registered for tag " + tag);
+                    }
+                    return registered.codec.decode(in);
+            }
+        }
+    }
+
+    private static Class<?> loadClass(String name) throws ClassNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = Wire.class.getClassLoader();
+        }
+        return Class.forName(name, false, loader);
+    }
+
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        ContextObjectInputStream(ChannelBufferInputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return loadClass(desc.getName());
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    /**
+     * Encodes the frames of one connection, interning names as it goes. Not
+     * thread safe.
+     */
+    static final class FrameWriter {
+
+        private final Map<String, Integer> interned = new HashMap<String, Integer>();
+        private final RemoteSerializer serializer;
+        private final String host;
+        private final int port;
+        private boolean helloSent = false;
+
+        FrameWriter(RemoteSerializer serializer, String host, int port) {
+            this.serializer = serializer;
+            this.host = host;
+            this.port = port;
+        }
+
+        private void hello(ChannelBuffer out) {
+            if (!helloSent) {
+                int start = begin(HELLO, out);
+                writeString(host == null ? "" : host, out);
+                out.writeInt(port);
+                end(start, out);
+                helloSent = true;
+            }
+        }
+
+        void write(List<RemoteStats> stats, ChannelBuffer out) {
+            if (stats.isEmpty()) {
+                return;
+            }
+            hello(out);
+            String context = stats.get(0).ctx;
+            int ctx = intern(context, out);
+            int[] names = new int[stats.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = intern(stats.get(i).name, out);
+            }
+            int start = begin(STATS, out);
+            writeName(ctx, context, out);
+            writeVarLong(names.length, out);
+            for (int i = 0; i < names.length; i++) {
+                RemoteStats stat = stats.get(i);
+                writeName(names[i], stat.name, out);
+                writeVarLong(stat.depth, out);
+                out.writeByte(stat.busy ? 1 : 0);
+                writeVarLong(stat.rate, out);
+            }
+            end(start, out);
+        }
+
+        /**
+         * A payload that can't be encoded leaves out as it was after the HELLO
+         * and DEFINE frames, which stay valid for the next messages.
+         */
+        void write(RemoteMessage message, ChannelBuffer out) throws IOException {
+            hello(out);
+            if (message.reply && message.failure != null) {
+                int start = begin(FAILURE, out);
+                writeVarLong(message.correlation, out);
+                writeString(message.failure, out);
+                end(start, out);
+                return;
+            }
+            if (message.reply) {
+                int start = begin(REPLY, out);
+                boolean written = false;
+                try {
+                    writeVarLong(message.correlation, out);
+                    serializer.write(message.payload, out);
+                    end(start, out);
+                    written = true;
+                } finally {
+                    if (!written) {
+                        out.writerIndex(start);
+                    }
+                }
+                return;
+            }
+            int toCtx = intern(message.toCtx, out);
+            int toName = intern(message.toName, out);
+            int fromCtx = intern(message.fromCtx, out);
+            int fromName = intern(message.fromName, out);
+            int start = begin(message.correlation == 0L ? MESSAGE : ASK, out);
+            boolean written = false;
+            try {
+                writeName(toCtx, message.toCtx, out);
+                writeName(toName, message.toName, out);
+                writeName(fromCtx, message.fromCtx, out);
+                writeName(fromName, message.fromName, out);
+                if (message.correlation != 0L) {
+                    writeVarLong(message.correlation, out);
+                }
+                serializer.write(message.payload, out);
+                end(start, out);
+                written = true;
+            } finally {
+                if (!written) {
+                    out.writerIndex(start);
+                }
+            }
+        }
+
+        // 0 means not interned, the name is written inline
+        private int intern(String name, ChannelBuffer out) {
+            Integer id = interned.get(name);
+            if (id != null) {
+                return id;
+            }
+            if (interned.size() >= MAX_INTERNED) {
+                return 0;
+            }
+            id = interned.size() + 1;
+            interned.put(name, id);
+            int start = begin(DEFINE, out);
+            writeVarLong(id, out);
+            writeString(name, out);
+            end(start, out);
+            return id;
+        }
+
+        private static void writeName(int id, String name, ChannelBuffer out) {
+            writeVarLong(id, out);
+            if (id == 0) {
+                writeString(name, out);
+            }
+        }
+
+        private static int begin(byte type, ChannelBuffer out) {
+            int start = out.writerIndex();
+            out.writeInt(0);
+            out.writeByte(type);
+            return start;
+        }
+
+        private static void end(int start, ChannelBuffer out) {
+            out.setInt(start, out.writerIndex() - start - 4);
+        }
+    }
+
+    /**
+     * Decodes the frames of one connection into RemoteMessages and
+     * RemoteStats lists. Returns null for frames that only update the
+     * connection state.
+     */
+    static final class FrameReader {
+
+        private final List<String> interned = new ArrayList<String>();
+        private final RemoteSerializer serializer;
+        private String host;
+        private int port;
+
+        FrameReader(RemoteSerializer serializer) {
+            this.serializer = serializer;
+            interned.add(null);
+        }
+
+        String host() {
+            return host;
+        }
+
+        int port() {
+            return port;
+        }
+
+        Object read(ChannelBuffer frame) throws IOException {
+            byte type = frame.readByte();
+            switch (type) {
+                case HELLO:
+                    host = readString(frame);
+                    port = frame.readInt();
+                    return null;
+                case DEFINE:
+                    int id = (int) readVarLong(frame);
+                    String name = readString(frame);
+                    if (id != interned.size()) {
+                        throw new IOException("Out of order name definition " + id);
+                    }
+                    interned.add(name);
+                    return null;
+                case MESSAGE:
+                case ASK:
+                    RemoteMessage message = new RemoteMessage();
+                    message.toCtx = readName(frame);
+                    message.toName = readName(frame);
+                    message.fromCtx = readName(frame);
+                    message.fromName = readName(frame);
+                    if (type == ASK) {
+                        message.correlation = readVarLong(frame);
+                    }
+                    message.fromHost = host;
+                    message.fromPort = port;
+                    message.payload = serializer.read(frame);
+                    return message;
+                case REPLY:
+                    RemoteMessage reply = new RemoteMessage();
+                    reply.reply = true;
+                    reply.correlation = readVarLong(frame);
+                    reply.fromHost = host;
+                    reply.fromPort = port;
+                    reply.payload = serializer.read(frame);
+                    return reply;
+                case FAILURE:
+                    RemoteMessage failure = new RemoteMessage();
+                    failure.reply = true;
+                    failure.correlation = readVarLong(frame);
+                    failure.fromHost = host;
+                    failure.fromPort = port;
+                    failure.failure = readString(frame);
+                    return failure;
+                case STATS:
+                    String ctx = readName(frame);
+                    int count = (int) readVarLong(frame);
+                    List<RemoteStats> stats = new ArrayList<RemoteStats>(count);
+                    for (int i = 0; i < count; i++) {
+                        stats.add(new RemoteStats(ctx, readName(frame), (int) readVarLong(frame), 
+                                frame.readByte() != 0, (int) readVarLong(frame)));
+                    }
+                    return stats;
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+        }
+
+        private String readName(ChannelBuffer in) throws IOException {
+            int id = (int) readVarLong(in);
+            if (id == 0) {
+                return readString(in);
+            }
+            if (id >= interned.size()) {
+                throw new IOException("Undefined name " + id);
+            }
+            return interned.get(id);
+        }
+    }
+
+    static final class Decoder extends OneToOneDecoder {
+
+        private final FrameReader reader;
+
+        Decoder(RemoteSerializer serializer) {
+            this.reader = new FrameReader(serializer);
+        }
+
+        @Override
+        protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+            if (msg instanceof ChannelBuffer) {
+                return reader.read((ChannelBuffer) msg);
+            }
+            return msg;
+        }
+    }
+
+    static LengthFieldBasedFrameDecoder framer() {
+        return new LengthFieldBasedFrameDecoder(MAX_FRAME, 0, 4, 0, 4);
+    }
+
+    static void writeString(String value, ChannelBuffer out) {
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarLong(bytes.length, out);
+        out.writeBytes(bytes);
+    }
+
+    static String readString(ChannelBuffer in) {
+        int length = (int) readVarLong(in);
+        String value = in.toString(in.readerIndex(), length, UTF8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    static void writeVarLong(long value, ChannelBuffer out) {
+        while ((value & ~0x7FL) != 0L) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(ChannelBuffer in) {
+        long value = 0L;
+        int shift = 0;
+        while (true) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
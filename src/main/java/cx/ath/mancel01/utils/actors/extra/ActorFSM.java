@@ -190,14 +190,9 @@ public abstract class ActorFSM<S, D> implements Behavior {
                     this.currentState = (S) move.state;
                     SimpleLogger.trace("Moving from state '{}' to state '{}'", oldState, currentState);
                     SimpleLogger.trace("Running 'onTransition' block");
-                    final ScheduledFuture<?> future = stateHandlers.get(oldState).future;
-                    if (future != null && !future.isDone() && !future.isCancelled()) {
-                        ctx.actorCtx().now(new Runnable() {
-                            @Override
-                            public void run() {
-                                future.cancel(true);
-                            }
-                        });
+                    ScheduledFuture<?> future = stateHandlers.get(oldState).future;
+                    if (future != null) {
+                        future.cancel(false);
                     }
                     Long timeout = stateHandlers.get(currentState).timeout;
                     TimeUnit unit = stateHandlers.get(currentState).unit;
@@ -0,0 +1,494 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors.extra;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F;
+import cx.ath.mancel01.utils.SimpleLogger;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the events of many persistent actors, in segment
+ * files of a local directory. Events are serialized by the appending
+ * thread, then a single writer thread writes everything queued with one
+ * gathering write and one fsync (group commit). Snapshots are one file per
+ * persistence id, replaced atomically.
+ *
+ * Record : int length, int crc32, UTF persistence id, long sequence,
+ * serialized event. A torn record ends its segment.
+ */
+public class Journal {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024L * 1024L;
+
+    public static final int MAX_BATCH = 4096;
+
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    private static final String SEGMENT = "journal-";
+
+    private static final String LOG = ".log";
+
+    public static final class Snapshot {
+
+        public final long sequence;
+        public final Object state;
+
+        Snapshot(long sequence, Object state) {
+            this.sequence = sequence;
+            this.state = state;
+        }
+    }
+
+    private static final class Write {
+
+        final String persistenceId;
+        final ByteBuffer record;
+        final long sequence;
+        final File snapshot;
+        final Promise<Long> promise = new Promise<Long>();
+
+        Write(String persistenceId, ByteBuffer record, long sequence, File snapshot) {
+            this.persistenceId = persistenceId;
+            this.record = record;
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final class Replay {
+
+        final String persistenceId;
+        final F.Action<Object> handler;
+        long last;
+
+        Replay(String persistenceId, long afterSequence, F.Action<Object> handler) {
+            this.persistenceId = persistenceId;
+            this.handler = handler;
+            this.last = afterSequence;
+        }
+    }
+
+    private final File directory;
+    private final File snapshots;
+    private final long segmentBytes;
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+    private final AtomicLong syncs = new AtomicLong(0L);
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile IOException broken;
+    private long segment;
+    private long position;
+    private FileChannel channel;
+    // persistence ids with a failed write, until they replay
+    private final Map<String, IOException> fenced = new HashMap<String, IOException>();
+
+    public static Journal open(File directory) {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static Journal open(File directory, long segmentBytes) {
+        try {
+            return new Journal(directory, segmentBytes);
+        } catch (IOException e) {
+            throw new F.ExceptionWrapper(e);
+        }
+    }
+
+    private Journal(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.snapshots = new File(directory, "snapshots");
+        this.segmentBytes = segmentBytes;
+        if (!snapshots.isDirectory() && !snapshots.mkdirs()) {
+            throw new IOException("Can't create journal directory " + snapshots);
+        }
+        List<File> segments = segments();
+        if (segments.isEmpty()) {
+            segment = 1L;
+            channel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+            position = 0L;
+        } else {
+            File last = segments.get(segments.size() - 1);
+            segment = Long.parseLong(last.getName().substring(SEGMENT.length(), last.getName().length() - LOG.length()));
+            channel = new RandomAccessFile(last, "rw").getChannel();
+            position = scan(last, null, 0L);
+            if (position < channel.size()) {
+                SimpleLogger.error("Truncating torn journal segment {} at {}", last, position);
+                channel.truncate(position);
+            }
+        }
+        channel.position(position);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "journal-" + directory.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Completes with the sequence once the event is on disk. Callbacks run on
+     * the writer thread. Once a write fails, the following events of the
+     * same persistence id fail too, until it replays.
+     */
+    public Promise<Long> append(String persistenceId, long sequence, Serializable event) {
+        try {
+            return enqueue(new Write(persistenceId, record(persistenceId, sequence, event), sequence, null));
+        } catch (IOException e) {
+            Promise<Long> failed = new Promise<Long>();
+            failed.fail(e);
+            return failed;
+        }
+    }
+
+    /**
+     * The state is serialized right away and written after the events
+     * appended before it.
+     */
+    public Promise<Long> saveSnapshot(String persistenceId, long sequence, Serializable state) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(sequence);
+            ObjectOutputStream objects = new ObjectOutputStream(out);
+            objects.writeObject(state);
+            objects.flush();
+            return enqueue(new Write(persistenceId, ByteBuffer.wrap(bytes.toByteArray()), sequence, snapshotFile(persistenceId)));
+        } catch (IOException e) {
+            Promise<Long> failed = new Promise<Long>();
+            failed.fail(e);
+            return failed;
+        }
+    }
+
+    public Snapshot loadSnapshot(String persistenceId) {
+        File file = snapshotFile(persistenceId);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                long sequence = in.readLong();
+                return new Snapshot(sequence, new ObjectInputStream(in).readObject());
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            throw new F.ExceptionWrapper(e);
+        }
+    }
+
+    /**
+     * Applies the events of persistenceId written after afterSequence, once
+     * everything already queued is on disk. Returns the last sequence seen.
+     */
+    public long replay(String persistenceId, long afterSequence, F.Action<Object> handler) {
+        try {
+            enqueue(new Write(persistenceId, null, 0L, null)).get();
+            Replay replay = new Replay(persistenceId, afterSequence, handler);
+            for (File file : segments()) {
+                scan(file, replay, afterSequence);
+            }
+            return replay.last;
+        } catch (Exception e) {
+            throw new F.ExceptionWrapper(e);
+        }
+    }
+
+    /**
+     * Number of fsyncs so far, much lower than the number of events under
+     * load.
+     */
+    public long syncs() {
+        return syncs.get();
+    }
+
+    /**
+     * Writes what is queued, then stops the writer.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Promise<Long> enqueue(Write write) {
+        if (broken != null) {
+            write.promise.fail(broken);
+        } else if (closed) {
+            write.promise.fail(new IllegalStateException("Journal " + directory + " is closed"));
+        } else {
+            queue.offer(write);
+        }
+        return write.promise;
+    }
+
+    private void write() {
+        List<Write> batch = new ArrayList<Write>();
+        List<Write> accepted = new ArrayList<Write>();
+        while (true) {
+            Write first;
+            try {
+                first = queue.poll(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (Write write : batch) {
+                if (write.record == null) {
+                    fenced.remove(write.persistenceId);
+                } else if (fenced.containsKey(write.persistenceId)) {
+                    // follows a lost event, the actor must recover first
+                    write.promise.fail(fenced.get(write.persistenceId));
+                    continue;
+                }
+                accepted.add(write);
+            }
+            IOException failure = broken;
+            if (failure == null) {
+                try {
+                    write(accepted);
+                } catch (IOException e) {
+                    SimpleLogger.error("Journal write failed in {} : {}", directory, e);
+                    failure = e;
+                    rollback(e);
+                    for (Write write : accepted) {
+                        if (write.record != null) {
+                            fenced.put(write.persistenceId, e);
+                        }
+                    }
+                }
+            }
+            for (Write write : accepted) {
+                if (write.snapshot != null && failure == null) {
+                    try {
+                        snapshot(write.snapshot, write.record);
+                    } catch (IOException e) {
+                        SimpleLogger.error("Can't write snapshot {} : {}", write.snapshot, e);
+                        write.promise.fail(e);
+                        continue;
+                    }
+                }
+                if (failure == null) {
+                    write.promise.apply(write.sequence);
+                } else {
+                    write.promise.fail(failure);
+                }
+            }
+            batch.clear();
+            accepted.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            SimpleLogger.error("Can't close journal {} : {}", directory, e);
+        }
+    }
+
+    private void write(List<Write> batch) throws IOException {
+        List<ByteBuffer> records = new ArrayList<ByteBuffer>(batch.size());
+        long bytes = 0L;
+        for (Write write : batch) {
+            if (write.record != null && write.snapshot == null) {
+                records.add(write.record);
+                bytes += write.record.remaining();
+            }
+        }
+        if (!records.isEmpty()) {
+            if (position > 0L && position + bytes > segmentBytes) {
+                channel.force(false);
+                channel.close();
+                segment++;
+                channel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+                position = 0L;
+            }
+            ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+            long written = 0L;
+            while (written < bytes) {
+                written += channel.write(buffers);
+            }
+            channel.force(false);
+            position += bytes;
+            syncs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Cuts what a failed batch left after the last synced record, so that
+     * later batches don't follow a torn one. When even that fails the
+     * journal stops accepting writes.
+     */
+    private void rollback(IOException cause) {
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException e) {
+            SimpleLogger.error("Can't roll back journal {}, closing it : {}", directory, e);
+            broken = cause;
+            closed = true;
+        }
+    }
+
+    private void snapshot(File file, ByteBuffer state) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0L);
+            FileChannel snapshot = out.getChannel();
+            while (state.hasRemaining()) {
+                snapshot.write(state);
+            }
+            snapshot.force(true);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't replace snapshot " + file);
+            }
+        }
+    }
+
+    private static ByteBuffer record(String persistenceId, long sequence, Serializable event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeUTF(persistenceId);
+        out.writeLong(sequence);
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(event);
+        objects.flush();
+        byte[] array = bytes.toByteArray();
+        if (array.length - 8 > MAX_RECORD) {
+            throw new IOException("Event of " + persistenceId + " is too big : " + array.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(array, 8, array.length - 8);
+        ByteBuffer record = ByteBuffer.wrap(array);
+        record.putInt(0, array.length - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Walks the valid records of a segment through a read-only mapping and
+     * returns the end of the last one.
+     */
+    private static long scan(File file, Replay replay, long afterSequence) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel read = in.getChannel();
+            long size = read.size();
+            if (size == 0L) {
+                return 0L;
+            }
+            MappedByteBuffer mapped = read.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[256];
+            while (mapped.remaining() >= 8) {
+                int start = mapped.position();
+                int length = mapped.getInt();
+                int checksum = mapped.getInt();
+                if (length <= 0 || length > MAX_RECORD || length > mapped.remaining()) {
+                    return start;
+                }
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                mapped.get(record, 0, length);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return start;
+                }
+                if (replay != null) {
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(record, 0, length));
+                    if (data.readUTF().equals(replay.persistenceId)) {
+                        long sequence = data.readLong();
+                        if (sequence > afterSequence) {
+                            ObjectInputStream objects = new ObjectInputStream(data);
+                            try {
+                                replay.handler.apply(objects.readObject());
+                            } catch (ClassNotFoundException e) {
+                                throw new IOException("Can't replay event " + sequence + " of " + replay.persistenceId + " : " + e);
+                            }
+                            replay.last = Math.max(replay.last, sequence);
+                        }
+                    }
+                }
+            }
+            return mapped.position();
+        } finally {
+            in.close();
+        }
+    }
+
+    private List<File> segments() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT) && name.endsWith(LOG);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT, index, LOG));
+    }
+
+    private File snapshotFile(String persistenceId) {
+        try {
+            return new File(snapshots, URLEncoder.encode(persistenceId, "UTF-8") + ".snap");
+        } catch (UnsupportedEncodingException e) {
+            throw new F.ExceptionWrapper(e);
+        }
+    }
+}
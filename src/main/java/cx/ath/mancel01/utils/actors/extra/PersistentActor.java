@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors.extra;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F;
+import cx.ath.mancel01.utils.actors.Actors;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.extra.Journal.Snapshot;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event sourced behavior. Commands call persist(event), which applies the
+ * event to the state right away and completes once the journal has it on
+ * disk, so answers should wait for the returned promise. The state is
+ * rebuilt on the first message, from the latest snapshot and the events
+ * after it. Create the actor from a function returning a new instance, so
+ * that a supervisor restart recovers from the journal too.
+ *
+ * The state is ahead of the journal until the write completes. When it
+ * fails, the actor is sent a message on which it throws, so that its
+ * supervisor restarts it from what is on disk : keep the default RESTART
+ * directive for persistent actors. The events persisted in between are
+ * refused by the journal.
+ */
+public abstract class PersistentActor<S extends Serializable> implements Behavior {
+
+    public static final int DEFAULT_SNAPSHOT_EVERY = 1000;
+
+    private final String persistenceId;
+    private final Journal journal;
+    private final int snapshotEvery;
+    private S state;
+    private long sequence = 0L;
+    private long snapshotAt = 0L;
+    private boolean recovered = false;
+    private Actor self;
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    public PersistentActor(String persistenceId, S initial, Journal journal) {
+        this(persistenceId, initial, journal, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    /**
+     * A snapshot is saved every snapshotEvery events, never when it is 0.
+     */
+    public PersistentActor(String persistenceId, S initial, Journal journal, int snapshotEvery) {
+        this.persistenceId = persistenceId;
+        this.state = initial;
+        this.journal = journal;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Handles a command once the state is recovered.
+     */
+    protected abstract Effect onCommand(Object command, Context ctx);
+
+    /**
+     * Applies an event, when persisted and during recovery.
+     */
+    protected abstract S onEvent(S state, Object event);
+
+    @Override
+    public final Effect apply(Object message, Context ctx) {
+        self = ctx.me;
+        if (message instanceof WriteFailed) {
+            if (((WriteFailed) message).instance == this) {
+                throw new F.ExceptionWrapper(((WriteFailed) message).cause);
+            }
+            return Actors.CONTINUE;
+        }
+        if (!recovered) {
+            recover();
+        }
+        return onCommand(message, ctx);
+    }
+
+    /**
+     * Callbacks of the promise run on the journal writer, they should only
+     * send messages.
+     */
+    protected final Promise<Long> persist(Serializable event) {
+        state = onEvent(state, event);
+        Promise<Long> written = journal.append(persistenceId, ++sequence, event);
+        final Actor actor = self;
+        written.onFailure(new F.Action<Throwable>() {
+            @Override
+            public void apply(Throwable cause) {
+                if (failed.compareAndSet(false, true)) {
+                    actor.tell(new WriteFailed(PersistentActor.this, cause));
+                }
+            }
+        });
+        if (snapshotEvery > 0 && sequence - snapshotAt >= snapshotEvery) {
+            snapshotAt = sequence;
+            journal.saveSnapshot(persistenceId, sequence, state);
+        }
+        return written;
+    }
+
+    protected final S state() {
+        return state;
+    }
+
+    protected final long lastSequence() {
+        return sequence;
+    }
+
+    public final String persistenceId() {
+        return persistenceId;
+    }
+
+    private static final class WriteFailed {
+
+        final PersistentActor<?> instance;
+        final Throwable cause;
+
+        WriteFailed(PersistentActor<?> instance, Throwable cause) {
+            this.instance = instance;
+            this.cause = cause;
+        }
+    }
+
+    private void recover() {
+        recovered = true;
+        Snapshot snapshot = journal.loadSnapshot(persistenceId);
+        if (snapshot != null) {
+            // saved by this persistence id, from a state of type S
+            @SuppressWarnings("unchecked")
+            S saved = (S) snapshot.state;
+            state = saved;
+            sequence = snapshot.sequence;
+            snapshotAt = snapshot.sequence;
+        }
+        sequence = journal.replay(persistenceId, sequence, new F.Action<Object>() {
+            @Override
+            public void apply(Object event) {
+                state = onEvent(state, event);
+            }
+        });
+    }
+}
@@ -1,8 +1,20 @@
 package cx.ath.mancel01.utils;
 
+import cx.ath.mancel01.utils.Concurrent.Promise;
 import cx.ath.mancel01.utils.Concurrent.PromiseCountDownLatch;
 import cx.ath.mancel01.utils.F.Function;
 import cx.ath.mancel01.utils.F.Unit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import junit.framework.Assert;
 import org.junit.Test;
 
@@ -38,4 +50,194 @@ public class ConcurrentTest {
         } 
         Assert.assertEquals(EXPECTED_VALUE, value);
     }
+
+    @Test
+    public void testPromiseChain() throws Exception {
+        Promise<Integer> promise = new Promise<Integer>();
+        Promise<String> chained = promise.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer t) {
+                return t * 2;
+            }
+        }).flatMap(new Function<Integer, Promise<String>>() {
+            @Override
+            public Promise<String> apply(final Integer t) {
+                return Promise.future(new F.Callable<String>() {
+                    @Override
+                    public String apply() {
+                        return "value-" + t;
+                    }
+                });
+            }
+        });
+        Assert.assertFalse(chained.isDone());
+        promise.apply(21);
+        Assert.assertEquals("value-42", chained.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPromiseFailure() throws Exception {
+        Promise<Integer> promise = new Promise<Integer>();
+        final AtomicReference<Throwable> seen = new AtomicReference<Throwable>();
+        Promise<Integer> mapped = promise.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer t) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        mapped.onFailure(new F.Action<Throwable>() {
+            @Override
+            public void apply(Throwable t) {
+                seen.set(t);
+            }
+        });
+        Promise<Integer> recovered = mapped.recover(new Function<Throwable, Integer>() {
+            @Override
+            public Integer apply(Throwable t) {
+                return -1;
+            }
+        });
+        promise.apply(1);
+        Assert.assertTrue(mapped.isFailure());
+        Assert.assertTrue(seen.get() instanceof IllegalStateException);
+        Assert.assertEquals(Integer.valueOf(-1), recovered.get());
+        try {
+            mapped.get();
+            Assert.fail("Failed promise should throw");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("boom", e.getCause().getMessage());
+        }
+        Promise<Integer> filtered = Promise.pure(1).filter(new Function<Integer, Boolean>() {
+            @Override
+            public Boolean apply(Integer t) {
+                return t > 1;
+            }
+        });
+        Assert.assertTrue(filtered.failureOrNull() instanceof NoSuchElementException);
+    }
+
+    @Test
+    public void testFailingFuture() throws Exception {
+        F.Callable<Integer> boom = new F.Callable<Integer>() {
+            @Override
+            public Integer apply() {
+                throw new IllegalStateException("boom");
+            }
+        };
+        try {
+            Promise.future(boom).get(5, TimeUnit.SECONDS);
+            Assert.fail("Failed future should throw");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("boom", e.getCause().getMessage());
+        }
+        try {
+            Promise.futureOnce(10, TimeUnit.MILLISECONDS, boom).get(5, TimeUnit.SECONDS);
+            Assert.fail("Failed future should throw");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("boom", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testPromiseTimeoutAndExecutor() throws Exception {
+        Promise<String> promise = new Promise<String>();
+        try {
+            promise.get(50, TimeUnit.MILLISECONDS);
+            Assert.fail("Promise should time out");
+        } catch (TimeoutException e) {}
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        Promise<String> mapped = promise.map(new Function<String, String>() {
+            @Override
+            public String apply(String t) {
+                thread.set(Thread.currentThread());
+                return t;
+            }
+        }, executor);
+        promise.apply("done");
+        Assert.assertEquals("done", mapped.get(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), thread.get());
+        Assert.assertFalse(promise.cancel(true));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSequenceAndTraverse() throws Exception {
+        Promise<Integer> p1 = new Promise<Integer>();
+        Promise<Integer> p2 = new Promise<Integer>();
+        Promise<List<Integer>> all = Promise.sequence(Arrays.asList(p1, p2));
+        p2.apply(2);
+        Assert.assertFalse(all.isDone());
+        p1.apply(1);
+        Assert.assertEquals(Arrays.asList(1, 2), all.get(1, TimeUnit.SECONDS));
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        List<Integer> inputs = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            inputs.add(i);
+        }
+        Promise<List<Integer>> doubled = Promise.traverse(inputs, new Function<Integer, Promise<Integer>>() {
+            @Override
+            public Promise<Integer> apply(final Integer t) {
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+                return Promise.future(new F.Callable<Integer>() {
+                    @Override
+                    public Integer apply() {
+                        inFlight.decrementAndGet();
+                        return t * 2;
+                    }
+                });
+            }
+        }, 4);
+        List<Integer> result = doubled.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(100, result.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(Integer.valueOf(i * 2), result.get(i));
+        }
+        Assert.assertTrue(maxInFlight.get() <= 4);
+        Promise<Integer> pending = new Promise<Integer>();
+        Promise<List<Integer>> failed = Promise.sequence(Arrays.asList(pending, Promise.<Integer>failed(new IllegalStateException())));
+        Assert.assertTrue(failed.failureOrNull() instanceof IllegalStateException);
+        Assert.assertTrue(pending.isCancelled());
+    }
+
+    @Test
+    public void testZipFirstCompletedAndFold() throws Exception {
+        Promise<String> name = new Promise<String>();
+        Promise<Integer> age = new Promise<Integer>();
+        Promise<F.Tuple<String, Integer>> zipped = name.zip(age);
+        name.apply("john");
+        age.apply(42);
+        Assert.assertEquals("john", zipped.get()._1);
+        Assert.assertEquals(Integer.valueOf(42), zipped.get()._2);
+        Promise<Integer> slow = new Promise<Integer>();
+        Promise<Integer> fast = new Promise<Integer>();
+        Promise<Integer> first = Promise.firstCompletedOf(slow, fast);
+        fast.apply(1);
+        Assert.assertEquals(Integer.valueOf(1), first.get());
+        Assert.assertTrue(slow.isCancelled());
+        List<Promise<Integer>> promises = new ArrayList<Promise<Integer>>();
+        for (int i = 1; i <= 1000; i++) {
+            final int value = i;
+            promises.add(Promise.future(new F.Callable<Integer>() {
+                @Override
+                public Integer apply() {
+                    return value;
+                }
+            }));
+        }
+        Promise<Integer> sum = Promise.fold(promises, 0, new F.F2<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer a, Integer b) {
+                return a + b;
+            }
+        });
+        Assert.assertEquals(Integer.valueOf(500500), sum.get(5, TimeUnit.SECONDS));
+    }
 }
@@ -22,14 +22,17 @@ import cx.ath.mancel01.utils.F;
 import cx.ath.mancel01.utils.F.Unit;
 import cx.ath.mancel01.utils.M;
 import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
 import cx.ath.mancel01.utils.actors.Actors.Behavior;
 import cx.ath.mancel01.utils.actors.Actors.Effect;
 import cx.ath.mancel01.utils.actors.Actors.Failure;
 import cx.ath.mancel01.utils.actors.Actors.Poison;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import junit.framework.Assert;
 import org.junit.Test;
 
@@ -62,6 +65,47 @@ public class AskTest {
         testActor.tell(Poison.PILL);
     }
     
+    @Test
+    public void askTimeoutTest() throws Exception {
+        ActorContext ctx = Actors.newContext();
+        final Actor silent = ctx.create(new Behavior() {
+            @Override
+            public Effect apply(Object t, Actors.Context ctx) {
+                return Actors.CONTINUE;
+            }
+        }, "SILENT");
+        int registered = ((Actors.CreationnalContextImpl) ctx).getActors().size();
+        Promise<String> promise = silent.ask(Start.IT, 100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(registered, ((Actors.CreationnalContextImpl) ctx).getActors().size());
+        try {
+            promise.get(5, TimeUnit.SECONDS);
+            Assert.fail("Ask should have timed out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertTrue(promise.isFailure());
+        silent.tell(Poison.PILL);
+    }
+
+    @Test
+    public void askManyTest() throws Exception {
+        ActorContext ctx = Actors.newContext();
+        final Actor echo = ctx.create(new Behavior() {
+            @Override
+            public Effect apply(Object t, Actors.Context ctx) {
+                ctx.from.tell(t, ctx.me);
+                return Actors.CONTINUE;
+            }
+        }, "ECHO");
+        int registered = ((Actors.CreationnalContextImpl) ctx).getActors().size();
+        for (int i = 0; i < 10000; i++) {
+            Promise<Integer> promise = echo.ask(i, 1, TimeUnit.SECONDS);
+            Assert.assertEquals(Integer.valueOf(i), promise.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(registered, ((Actors.CreationnalContextImpl) ctx).getActors().size());
+        echo.tell(Poison.PILL);
+    }
+    
     public static final Behavior TEST = new Behavior() {
         @Override
         public Effect apply(Object t, Actors.Context ctx) {
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Broadcast;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class BalancingPoolTest {
+
+    private final static int workers = 4;
+
+    @Test
+    public void testBroadcastAndPoison() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        final Set<Behavior> seen = Collections.newSetFromMap(new ConcurrentHashMap<Behavior, Boolean>());
+        final CountDownLatch latch = new CountDownLatch(workers);
+        Actor pool = Routers.balancingPool(system, "pool", workers, new Function<Unit, Behavior>() {
+            @Override
+            public Behavior apply(Unit t) {
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        if (seen.add(this)) {
+                            latch.countDown();
+                        }
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        });
+        Assert.assertSame(pool, system.lookup("pool"));
+        pool.tell(new Broadcast("hello"));
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(workers, seen.size());
+        pool.tell(Poison.PILL);
+        while (pool.mailboxSize() > 0 || pool.buzy().get()) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(((Actors.CreationnalContextImpl) system).getActors().containsKey("pool"));
+        seen.clear();
+        pool.tell("too late");
+        Thread.sleep(50);
+        Assert.assertTrue(seen.isEmpty());
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Test
+    public void testFailingWorkerRestarts() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        final AtomicInteger created = new AtomicInteger(0);
+        Actor pool = Routers.balancingPool(system, "failing", 1, new Function<Unit, Behavior>() {
+            @Override
+            public Behavior apply(Unit t) {
+                created.incrementAndGet();
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        if ("boom".equals(message)) {
+                            throw new IllegalStateException("boom");
+                        }
+                        ctx.from.tell(message);
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        });
+        pool.tell("boom");
+        Assert.assertEquals("still there", pool.ask("still there").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, created.get());
+        SimpleLogger.enableTrace(true);
+    }
+}
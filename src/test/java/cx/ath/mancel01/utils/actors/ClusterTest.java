@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActor;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActorContext;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class ClusterTest {
+
+    private final static int nbrOfNodes = 3;
+    private final static int basePort = 8910;
+
+    @Test
+    public void testMembershipDirectoryAndRouting() throws Exception {
+        SimpleLogger.enableTrace(false);
+        RemoteActorContext[] nodes = new RemoteActorContext[nbrOfNodes];
+        try {
+            for (int i = 0; i < nbrOfNodes; i++) {
+                nodes[i] = RemoteActors.newContext("cluster-" + i, new Properties());
+                nodes[i].startRemoting("127.0.0.1", basePort + i);
+                nodes[i].create(new Echo("node-" + i), "worker");
+                nodes[i].joinCluster("127.0.0.1:" + basePort)
+                        .withGossipInterval(50, TimeUnit.MILLISECONDS)
+                        .withFailureTimeout(500, TimeUnit.MILLISECONDS);
+            }
+            nodes[2].create(new Echo("alpha"), "alpha");
+            for (RemoteActorContext node : nodes) {
+                awaitMembers(node.cluster(), nbrOfNodes);
+            }
+            awaitDirectory(nodes[0].cluster(), "alpha");
+
+            Actor alpha = nodes[0].lookup("alpha");
+            Assert.assertTrue(alpha instanceof RemoteActor);
+            Assert.assertEquals("127.0.0.1:" + (basePort + 2), nodes[0].cluster().nodeOf("alpha"));
+            Assert.assertEquals("alpha", alpha.ask("who", 5, TimeUnit.SECONDS).get());
+            Assert.assertEquals("node-0", nodes[0].lookup("worker").ask("who", 5, TimeUnit.SECONDS).get());
+
+            // every member puts a key on the same node
+            for (int k = 0; k < 100; k++) {
+                String owner = nodes[0].cluster().nodeFor("key-" + k);
+                Assert.assertEquals(owner, nodes[1].cluster().nodeFor("key-" + k));
+                Assert.assertEquals(owner, nodes[2].cluster().nodeFor("key-" + k));
+            }
+            Assert.assertNotNull(nodes[0].cluster().nodeFor(null));
+            Assert.assertEquals(nodes[0].cluster().nodeFor(null), nodes[1].cluster().nodeFor(null));
+
+            Actor router = nodes[0].create(nodes[0].cluster().router("worker"), "workers");
+            Map<String, String> owners = new HashMap<String, String>();
+            Set<String> used = new HashSet<String>();
+            for (int k = 0; k < 200; k++) {
+                String key = "key-" + k;
+                String first = (String) router.ask(key, 5, TimeUnit.SECONDS).get();
+                Assert.assertEquals(first, router.ask(key, 5, TimeUnit.SECONDS).get());
+                owners.put(key, first);
+                used.add(first);
+            }
+            Assert.assertEquals(nbrOfNodes, used.size());
+
+            // a member leaving is gone from every view, its actors with it
+            nodes[2].stopRemoting();
+            awaitMembers(nodes[0].cluster(), nbrOfNodes - 1);
+            awaitMembers(nodes[1].cluster(), nbrOfNodes - 1);
+            Assert.assertNull(nodes[0].cluster().nodeOf("alpha"));
+            // keys of the remaining nodes stay where they were
+            for (Map.Entry<String, String> owner : owners.entrySet()) {
+                if (!owner.getValue().equals("node-2")) {
+                    Assert.assertEquals(owner.getValue(), router.ask(owner.getKey(), 5, TimeUnit.SECONDS).get());
+                }
+            }
+
+            // a member that stops heartbeating is dropped after the failure timeout
+            Actor system = nodes[0].lookup(Cluster.SYSTEM_ACTOR);
+            system.tell(ghost(1L, 5L));
+            awaitMembers(nodes[0].cluster(), nbrOfNodes);
+            Assert.assertEquals("127.0.0.1:8999", nodes[0].cluster().nodeOf("boo"));
+            awaitMembers(nodes[0].cluster(), nbrOfNodes - 1);
+            Assert.assertNull(nodes[0].cluster().nodeOf("boo"));
+
+            // stale gossip can't bring it back, a restart of the same node can
+            system.tell(ghost(1L, 4L));
+            Thread.sleep(200L);
+            Assert.assertEquals(nbrOfNodes - 1, nodes[0].cluster().members().size());
+            system.tell(ghost(2L, 0L));
+            awaitMembers(nodes[0].cluster(), nbrOfNodes);
+            Assert.assertEquals("127.0.0.1:8999", nodes[0].cluster().nodeOf("boo"));
+        } finally {
+            for (RemoteActorContext node : nodes) {
+                if (node != null) {
+                    node.stopRemoting();
+                }
+            }
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    private static Cluster.Gossip ghost(long incarnation, long heartbeat) {
+        Cluster.Member ghost = new Cluster.Member("127.0.0.1", 8999, "ghost", incarnation, heartbeat, 1L, 
+                Collections.singleton("boo"), false);
+        return new Cluster.Gossip("127.0.0.1:8999", Collections.singletonList(ghost));
+    }
+
+    private static void awaitMembers(Cluster cluster, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (cluster.members().size() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(expected, cluster.members().size());
+    }
+
+    private static void awaitDirectory(Cluster cluster, String name) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (cluster.nodeOf(name) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertNotNull(cluster.nodeOf(name));
+    }
+
+    public static class Echo implements Behavior {
+
+        private final String node;
+
+        public Echo(String node) {
+            this.node = node;
+        }
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            ctx.from.tell(node, ctx.me);
+            return Actors.CONTINUE;
+        }
+    }
+}
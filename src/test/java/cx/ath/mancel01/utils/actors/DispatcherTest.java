@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import static cx.ath.mancel01.utils.M.caseStringEquals;
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import cx.ath.mancel01.utils.actors.Dispatchers.Dispatcher;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class DispatcherTest {
+
+    private static Behavior pingPong(final AtomicInteger count, final CountDownLatch latch, final String in, final String out) {
+        return new Behavior() {
+            @Override
+            public Effect apply(Object t, Context ctx) {
+                for (String s : caseStringEquals(t, in)) {
+                    latch.countDown();
+                    if (count.incrementAndGet() < 1000) {
+                        ctx.from.tell(out, ctx.me);
+                    }
+                }
+                return Actors.CONTINUE;
+            }
+        };
+    }
+
+    private static Behavior chatty(final String[] threads, final int index, final CountDownLatch latch) {
+        return new Behavior() {
+            private int count = 0;
+            @Override
+            public Effect apply(Object t, Context ctx) {
+                if (++count == 500) {
+                    threads[index] = Thread.currentThread().getName();
+                    latch.countDown();
+                }
+                if (count < 1000) {
+                    ctx.from.tell(t, ctx.me);
+                }
+                return Actors.CONTINUE;
+            }
+        };
+    }
+
+    private void runPingPong(Dispatcher dispatcher) throws Exception {
+        final AtomicInteger count = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(1000);
+        ActorContext ctx = Actors.newContext(dispatcher);
+        Actor pong = ctx.create(pingPong(count, latch, "PING", "PONG"), "pong");
+        Actor ping = ctx.create(pingPong(count, latch, "PONG", "PING"), "ping");
+        pong.tell("PING", ping);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        ping.tell(Poison.PILL);
+        pong.tell(Poison.PILL);
+    }
+
+    @Test
+    public void testForkJoin() throws Exception {
+        Dispatcher dispatcher = Dispatchers.forkJoin("test-fj", 2);
+        runPingPong(dispatcher);
+        dispatcher.shutdown();
+        Assert.assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPinned() throws Exception {
+        Dispatcher dispatcher = Dispatchers.pinned("test-pinned", 2);
+        runPingPong(dispatcher);
+        dispatcher.shutdown();
+        Assert.assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCallingThread() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger sameThread = new AtomicInteger(0);
+        Dispatcher dispatcher = Dispatchers.callingThread();
+        Actor actor = Actors.newContext(dispatcher).create(new Behavior() {
+            @Override
+            public Effect apply(Object t, Context ctx) {
+                if (Thread.currentThread() == caller) {
+                    sameThread.incrementAndGet();
+                }
+                return Actors.CONTINUE;
+            }
+        }, "calling");
+        for (int i = 0; i < 10; i++) {
+            actor.tell(i);
+        }
+        Assert.assertEquals(10, sameThread.get());
+        runPingPong(dispatcher);
+        dispatcher.shutdown();
+        try {
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {}
+            });
+            Assert.fail("Shut down dispatcher should reject tasks");
+        } catch (RejectedExecutionException e) {}
+    }
+
+    @Test
+    public void testAffinity() throws Exception {
+        Dispatcher dispatcher = Dispatchers.affinity("affinity", 4);
+        runPingPong(dispatcher);
+        ActorContext ctx = Actors.newContext(dispatcher);
+        final String[] threads = new String[2];
+        final CountDownLatch latch = new CountDownLatch(2);
+        Actor left = ctx.create(chatty(threads, 0, latch), "left");
+        Actor right = ctx.create(chatty(threads, 1, latch), "right");
+        left.tell("chat", right);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(threads[0], threads[1]);
+        ctx.clear();
+        dispatcher.shutdown();
+        Assert.assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBlockingActorsDoNotStarveOthers() throws Exception {
+        Dispatcher cpu = Dispatchers.forkJoin("cpu", 2);
+        ActorContext ctx = Actors.newContext(cpu);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(8);
+        Behavior blocking = new Behavior() {
+            @Override
+            public Effect apply(Object t, Context c) {
+                started.countDown();
+                try {
+                    blocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Actors.CONTINUE;
+            }
+        };
+        for (int i = 0; i < 8; i++) {
+            ctx.create(blocking, "jdbc-" + i, ctx.defaults().copy().withBlocking()).tell("query");
+        }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        final AtomicInteger count = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(1000);
+        Actor pong = ctx.create(pingPong(count, latch, "PING", "PONG"), "pong");
+        Actor ping = ctx.create(pingPong(count, latch, "PONG", "PING"), "ping");
+        pong.tell("PING", ping);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        blocked.countDown();
+        ctx.clear();
+        cpu.shutdown();
+    }
+
+    @Test
+    public void testBoundedAndVirtual() throws Exception {
+        Dispatcher bounded = Dispatchers.bounded("bounded", 2);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger max = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            bounded.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    while (max.get() < now && !max.compareAndSet(max.get(), now)) {}
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, max.get());
+        bounded.shutdown();
+        Dispatcher virtual = Dispatchers.virtual("virtual", 4);
+        runPingPong(virtual);
+        virtual.shutdown();
+    }
+
+    @Test
+    public void testContextsShareDefaultDispatcher() throws Exception {
+        Assert.assertSame(Actors.newContext().defaults().executor(), Actors.newContext().defaults().executor());
+        Promise<String> first = Promise.future(new F.Callable<String>() {
+            @Override
+            public String apply() {
+                return Thread.currentThread().getName();
+            }
+        });
+        Assert.assertTrue(first.get(5, TimeUnit.SECONDS).startsWith("actors-default-"));
+    }
+
+    @Test
+    public void testDefaultsOutliveShutdown() throws Exception {
+        F.Callable<String> name = new F.Callable<String>() {
+            @Override
+            public String apply() {
+                return Thread.currentThread().getName();
+            }
+        };
+        Dispatcher before = Dispatchers.defaultDispatcher();
+        Assert.assertNotNull(Promise.future(name).get(5, TimeUnit.SECONDS));
+        Actors.Props blocking = new Actors.Props().withBlocking();
+        Dispatcher blockingBefore = (Dispatcher) blocking.executor();
+        Dispatchers.shutdown();
+        Assert.assertTrue(blockingBefore.isShutdown());
+        Assert.assertFalse(((Dispatcher) blocking.copy().executor()).isShutdown());
+        Assert.assertTrue(before.isShutdown());
+        Assert.assertTrue(Promise.future(name).get(5, TimeUnit.SECONDS).startsWith("actors-default-"));
+        Assert.assertNotNull(Actors.defaultContext().scheduleOnce(10, TimeUnit.MILLISECONDS, name).get(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(before, Actors.defaultContext().defaults().executor());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.actors.HashedWheelTimer.Timeout;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+    private static final int timers = 100000;
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    @Test
+    public void testExpiration() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-expiration", 5, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        timer.newTimeout(countDown(latch), 10, TimeUnit.MILLISECONDS);
+        timer.newTimeout(countDown(latch), 100, TimeUnit.MILLISECONDS);
+        Timeout far = timer.newTimeout(countDown(latch), 250, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+        Assert.assertTrue(far.isExpired());
+        Assert.assertTrue(far.isDone());
+        timer.stop();
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-cancel", 5, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger fired = new AtomicInteger(0);
+        Timeout timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(timeout.cancel(false));
+        Assert.assertFalse(timeout.cancel(false));
+        Assert.assertTrue(timeout.isCancelled());
+        Thread.sleep(150);
+        Assert.assertEquals(0, fired.get());
+        Assert.assertEquals(0L, timer.pendingTimeouts());
+        timer.stop();
+    }
+
+    @Test
+    public void testPeriodic() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-periodic", 5, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch latch = new CountDownLatch(5);
+        ScheduledFuture<?> periodic = timer.newPeriodicTimeout(countDown(latch), 0, 20, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(periodic.isDone());
+        periodic.cancel(false);
+        Assert.assertTrue(periodic.isDone());
+        timer.stop();
+    }
+
+    @Test
+    public void testFixedDelay() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-fixed-delay", 5, TimeUnit.MILLISECONDS, 8);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        final CountDownLatch latch = new CountDownLatch(4);
+        final List<Long> starts = Collections.synchronizedList(new ArrayList<Long>());
+        ScheduledFuture<?> periodic = timer.newFixedDelayTimeout(new Runnable() {
+            @Override
+            public void run() {
+                starts.add(System.nanoTime());
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latch.countDown();
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS, executor);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        periodic.cancel(false);
+        for (int i = 1; i < 4; i++) {
+            Assert.assertTrue(starts.get(i) - starts.get(i - 1) >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        executor.shutdown();
+        timer.stop();
+    }
+
+    @Test
+    public void testStopReleasesPendingTimeouts() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-stop", 5, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Timeout once = timer.newTimeout(countDown(latch), 1, TimeUnit.HOURS);
+        Timeout periodic = timer.newPeriodicTimeout(NOOP, 1, 1, TimeUnit.HOURS);
+        timer.stop();
+        once.get(5, TimeUnit.SECONDS);
+        periodic.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(once.isExpired());
+        Assert.assertEquals(0L, latch.getCount());
+        Assert.assertTrue(periodic.isCancelled());
+        Assert.assertEquals(0L, timer.pendingTimeouts());
+    }
+
+    @Test
+    public void testCancelledTimersAreReclaimed() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-cancel");
+        for (int i = 0; i < timers; i++) {
+            timer.newTimeout(NOOP, 30 + (i % 30), TimeUnit.SECONDS).cancel(false);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (timer.pendingTimeouts() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0L, timer.pendingTimeouts());
+        timer.stop();
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
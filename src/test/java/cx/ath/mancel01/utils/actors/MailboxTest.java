@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import cx.ath.mancel01.utils.actors.Mailboxes.Envelope;
+import cx.ath.mancel01.utils.actors.Mailboxes.Mailbox;
+import cx.ath.mancel01.utils.actors.Mailboxes.OverflowPolicy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class MailboxTest {
+
+    private static final Actor SENDER = Actors.Sink.INSTANCE;
+
+    @Test
+    public void testRingBufferMultipleProducers() throws Exception {
+        final Mailbox mailbox = Mailboxes.ringBuffer(1024, OverflowPolicy.BLOCK).apply(Unit.unit());
+        final int producers = 4;
+        final int messages = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 1; i <= messages; i++) {
+                        mailbox.offer((long) i, SENDER);
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        Envelope envelope = new Envelope();
+        long sum = 0L;
+        int received = 0;
+        while (received < producers * messages) {
+            if (mailbox.poll(envelope)) {
+                sum += (Long) envelope.message;
+                received++;
+            }
+        }
+        Assert.assertEquals(producers * ((long) messages * (messages + 1) / 2), sum);
+        Assert.assertTrue(mailbox.isEmpty());
+        Assert.assertEquals(0, mailbox.size());
+    }
+
+    @Test
+    public void testRingBufferOverflow() throws Exception {
+        Mailbox mailbox = Mailboxes.ringBuffer(4, OverflowPolicy.DROP_NEWEST).apply(Unit.unit());
+        for (int i = 0; i < 6; i++) {
+            mailbox.offer(i, SENDER);
+        }
+        Assert.assertEquals(4, mailbox.size());
+        Envelope envelope = new Envelope();
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(mailbox.poll(envelope));
+            Assert.assertEquals(i, envelope.message);
+        }
+        Assert.assertFalse(mailbox.poll(envelope));
+    }
+
+    @Test
+    public void testBoundedPolicies() throws Exception {
+        Mailbox newest = Mailboxes.bounded(2, OverflowPolicy.DROP_NEWEST).apply(Unit.unit());
+        Mailbox oldest = Mailboxes.bounded(2, OverflowPolicy.DROP_OLDEST).apply(Unit.unit());
+        Mailbox dead = Mailboxes.bounded(2, OverflowPolicy.DEAD_LETTER).apply(Unit.unit());
+        for (int i = 0; i < 3; i++) {
+            newest.offer(i, SENDER);
+            oldest.offer(i, SENDER);
+            dead.offer(i, SENDER);
+        }
+        Envelope envelope = new Envelope();
+        Assert.assertEquals(2, newest.size());
+        newest.poll(envelope);
+        Assert.assertEquals(0, envelope.message);
+        Assert.assertEquals(2, oldest.size());
+        oldest.poll(envelope);
+        Assert.assertEquals(1, envelope.message);
+        Assert.assertEquals(2, dead.size());
+        dead.poll(envelope);
+        Assert.assertEquals(0, envelope.message);
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        Mailbox mailbox = Mailboxes.priority(new Function<Object, Boolean>() {
+            @Override
+            public Boolean apply(Object message) {
+                return "urgent".equals(message);
+            }
+        }).apply(Unit.unit());
+        mailbox.offer("first", SENDER);
+        mailbox.offer("second", SENDER);
+        mailbox.offer("urgent", SENDER);
+        mailbox.offer(Poison.PILL, SENDER);
+        Assert.assertEquals(4, mailbox.size());
+        Envelope envelope = new Envelope();
+        mailbox.poll(envelope);
+        Assert.assertEquals("urgent", envelope.message);
+        mailbox.poll(envelope);
+        Assert.assertEquals(Poison.PILL, envelope.message);
+        mailbox.poll(envelope);
+        Assert.assertEquals("first", envelope.message);
+        Assert.assertEquals(1, mailbox.size());
+    }
+
+    @Test
+    public void testActorWithRingBuffer() throws Exception {
+        final int messages = 100000;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong sum = new AtomicLong(0L);
+        ActorContext ctx = Actors.newContext();
+        Actor actor = ctx.create(new Behavior() {
+            private long count = 0L;
+            @Override
+            public Effect apply(Object message, Context context) {
+                sum.addAndGet((Integer) message);
+                count++;
+                if (count == messages) {
+                    latch.countDown();
+                }
+                return Actors.CONTINUE;
+            }
+        }, "ringbuffer", ctx.defaults().copy().withMailbox(Mailboxes.ringBuffer(256, OverflowPolicy.BLOCK)));
+        for (int i = 0; i < messages; i++) {
+            actor.tell(i);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals((long) messages * (messages - 1) / 2, sum.get());
+        Assert.assertEquals(0, actor.mailboxSize());
+        actor.tell(Poison.PILL);
+    }
+
+    @Test
+    public void testBlockingSelfSendIsDeadLettered() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(2);
+        ActorContext ctx = Actors.newContext();
+        Actor actor = ctx.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context context) {
+                if ("go".equals(message)) {
+                    for (int i = 0; i < 10; i++) {
+                        context.me.tell(i, context.me);
+                    }
+                    sent.countDown();
+                } else {
+                    received.countDown();
+                }
+                return Actors.CONTINUE;
+            }
+        }, "selfsend", ctx.defaults().copy().withMailbox(Mailboxes.ringBuffer(2, OverflowPolicy.BLOCK)));
+        long before = Metrics.sinkDeadLetters();
+        actor.tell("go");
+        Assert.assertTrue(sent.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(8L, Metrics.sinkDeadLetters() - before);
+        actor.tell(Poison.PILL);
+    }
+}
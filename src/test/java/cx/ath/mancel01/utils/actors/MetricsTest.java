@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import cx.ath.mancel01.utils.actors.Metrics.ActorStats;
+import cx.ath.mancel01.utils.actors.Metrics.Collector;
+import cx.ath.mancel01.utils.actors.Metrics.ContextStats;
+import cx.ath.mancel01.utils.actors.Metrics.Histogram;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100000L, histogram.count());
+        Assert.assertEquals(100000L, histogram.max());
+        Assert.assertEquals(50000.5, histogram.mean(), 0.001);
+        long p50 = histogram.percentile(50.0);
+        long p99 = histogram.percentile(99.0);
+        Assert.assertTrue("p50 " + p50, p50 >= 50000 && p50 <= 50000 * 1.13);
+        Assert.assertTrue("p99 " + p99, p99 >= 99000 && p99 <= 100000);
+        for (long value = 0; value < 1000000; value += 7) {
+            Assert.assertTrue(Histogram.highestValueAt(Histogram.indexOf(value)) >= value);
+        }
+    }
+
+    @Test
+    public void testActorMetrics() throws Exception {
+        SimpleLogger.enableTrace(false);
+        final int messages = 1000;
+        final CountDownLatch latch = new CountDownLatch(messages);
+        ActorContext context = Actors.newContext("metrics-test");
+        Collector collector = Metrics.jmx();
+        context.instrument(collector);
+        Actor worker = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                latch.countDown();
+                return Actors.CONTINUE;
+            }
+        }, "worker");
+        for (int i = 0; i < messages; i++) {
+            worker.tell(i);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        ActorStats stats = collector.actor("metrics-test", "worker");
+        Assert.assertNotNull(stats);
+        worker.tell(Poison.PILL);
+        while (worker.mailboxSize() > 0 || worker.buzy().get()) {
+            Thread.sleep(10);
+        }
+        // the first message is the actor reference used to initialize the behavior
+        Assert.assertEquals(messages + 1, stats.getProcessed());
+        Assert.assertTrue(stats.schedulingLatency().count() > 0);
+        Assert.assertTrue(stats.processingTime().percentile(99.0) > 0);
+        worker.tell("too late");
+        worker.tell("really too late");
+        Assert.assertEquals(2L, stats.getDeadLetters());
+        ContextStats ctxStats = collector.context("metrics-test");
+        Assert.assertEquals(1, ctxStats.getActors());
+        Assert.assertEquals(messages + 1, ctxStats.getProcessed());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("cx.ath.mancel01.utils.actors:type=Actor,context=\"metrics-test\",name=\"worker\"");
+        Assert.assertEquals(Long.valueOf(messages + 1), server.getAttribute(name, "Processed"));
+        Assert.assertEquals(Long.valueOf(2L), server.getAttribute(name, "DeadLetters"));
+        context.clear();
+        Assert.assertFalse(server.isRegistered(name));
+        collector.close();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Test
+    public void testMessagesAfterPoisonAreDeadLetters() throws Exception {
+        SimpleLogger.enableTrace(false);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ActorContext context = Actors.newContext("metrics-poison-test");
+        Collector collector = Metrics.jmx();
+        context.instrument(collector);
+        Actor worker = context.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                if ("block".equals(message)) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return Actors.CONTINUE;
+            }
+        }, "worker");
+        worker.tell("block");
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        // queued behind the poison, in the same batch
+        worker.tell(Poison.PILL);
+        worker.tell("too late");
+        worker.tell("really too late");
+        ActorStats stats = collector.actor("metrics-poison-test", "worker");
+        release.countDown();
+        while (worker.mailboxSize() > 0 || worker.buzy().get()) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2L, stats.getProcessed());
+        Assert.assertEquals(2L, stats.getDeadLetters());
+        context.clear();
+        collector.close();
+        SimpleLogger.enableTrace(true);
+    }
+}
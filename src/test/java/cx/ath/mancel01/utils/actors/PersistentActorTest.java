@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F;
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.extra.Journal;
+import cx.ath.mancel01.utils.actors.extra.PersistentActor;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class PersistentActorTest {
+
+    private static final int ACTORS = 10;
+    private static final int EVENTS = 100;
+
+    @Test
+    public void testRecovery() throws Exception {
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        try {
+            Journal journal = Journal.open(directory);
+            ActorContext system = Actors.newContext();
+            List<Promise<Long>> acks = new ArrayList<Promise<Long>>();
+            for (int i = 0; i < ACTORS; i++) {
+                Actor counter = counter(system, journal, i);
+                for (int j = 0; j < EVENTS; j++) {
+                    acks.add(counter.<Long>ask("inc"));
+                }
+            }
+            for (Promise<Long> ack : acks) {
+                Assert.assertTrue(ack.get(10, TimeUnit.SECONDS) > 0L);
+            }
+            Assert.assertTrue(journal.syncs() < ACTORS * EVENTS);
+            for (int i = 0; i < ACTORS; i++) {
+                Assert.assertEquals(Integer.valueOf(EVENTS), system.lookup("counter-" + i).<Integer>ask("get").get(10, TimeUnit.SECONDS));
+            }
+            system.clear();
+            journal.close();
+            Assert.assertTrue(new File(new File(directory, "snapshots"), "counter-0.snap").isFile());
+
+            File[] segments = directory.listFiles();
+            for (File segment : segments) {
+                if (segment.getName().endsWith(".log")) {
+                    RandomAccessFile torn = new RandomAccessFile(segment, "rw");
+                    torn.seek(torn.length());
+                    torn.writeInt(1000);
+                    torn.writeInt(42);
+                    torn.write(new byte[] { 1, 2, 3 });
+                    torn.close();
+                }
+            }
+
+            journal = Journal.open(directory);
+            system = Actors.newContext();
+            for (int i = 0; i < ACTORS; i++) {
+                Actor counter = counter(system, journal, i);
+                Assert.assertEquals(Integer.valueOf(EVENTS), counter.<Integer>ask("get").get(10, TimeUnit.SECONDS));
+                Assert.assertEquals(Long.valueOf(EVENTS + 1), counter.<Long>ask("inc").get(10, TimeUnit.SECONDS));
+            }
+            system.clear();
+            journal.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testFailedWriteRestarts() throws Exception {
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        try {
+            Journal journal = Journal.open(directory);
+            ActorContext system = Actors.newContext();
+            Actor counter = counter(system, journal, 0);
+            Assert.assertEquals(Long.valueOf(1L), counter.<Long>ask("inc").get(10, TimeUnit.SECONDS));
+            Assert.assertNull(counter.ask("broken").get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(Integer.valueOf(1), counter.<Integer>ask("get").get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(Long.valueOf(2L), counter.<Long>ask("inc").get(10, TimeUnit.SECONDS));
+            system.clear();
+            journal.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static Actor counter(ActorContext system, final Journal journal, final int index) {
+        return system.create(new Function<Actor, Behavior>() {
+            @Override
+            public Behavior apply(Actor me) {
+                return new Counter("counter-" + index, journal);
+            }
+        }, "counter-" + index);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Counter extends PersistentActor<Integer> {
+
+        Counter(String persistenceId, Journal journal) {
+            super(persistenceId, 0, journal, 30);
+        }
+
+        @Override
+        protected Effect onCommand(Object command, Context ctx) {
+            final Actor from = ctx.from;
+            if ("inc".equals(command) || "broken".equals(command)) {
+                persist("inc".equals(command) ? 1 : new Broken()).onRedeem(new F.Action<Promise<Long>>() {
+                    @Override
+                    public void apply(Promise<Long> written) {
+                        from.tell(written.getOrNull());
+                    }
+                });
+            } else if ("get".equals(command)) {
+                from.tell(state());
+            }
+            return Actors.CONTINUE;
+        }
+
+        @Override
+        protected Integer onEvent(Integer state, Object event) {
+            return event instanceof Integer ? state + (Integer) event : state + 1000;
+        }
+    }
+
+    private static class Broken implements Serializable {
+
+        private final Object lock = new Object();
+    }
+}
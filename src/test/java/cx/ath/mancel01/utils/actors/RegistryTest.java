@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RegistryTest {
+
+    @Test
+    public void testPaths() throws Exception {
+        ActorContext system = Actors.newContext();
+        final CountDownLatch spawned = new CountDownLatch(1);
+        Actor router = system.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                Actor worker = ctx.spawn(Counting.NOOP, "worker-3");
+                Assert.assertSame(worker, ctx.spawn(Counting.NOOP, "worker-3"));
+                Assert.assertEquals("router/worker-3", worker.id());
+                spawned.countDown();
+                return Actors.CONTINUE;
+            }
+        }, "router");
+        router.tell("spawn");
+        Assert.assertTrue(spawned.await(10, TimeUnit.SECONDS));
+        Actor worker = system.lookup("/user/router/worker-3");
+        Assert.assertSame(worker, system.lookup("router/worker-3"));
+        Assert.assertSame(router, system.lookup("/user/router"));
+        try {
+            system.lookup("router/worker-4");
+            Assert.fail();
+        } catch (RuntimeException expected) {}
+        system.clear();
+    }
+
+    @Test
+    public void testConcurrentCreation() throws Exception {
+        final ActorContext system = Actors.newContext();
+        final AtomicInteger started = new AtomicInteger(0);
+        final Function<Actor, Behavior> initial = new Function<Actor, Behavior>() {
+            @Override
+            public Behavior apply(Actor me) {
+                started.incrementAndGet();
+                return Counting.NOOP;
+            }
+        };
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final Actor[] created = new Actor[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        created[index] = system.create(initial, "contended");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (Actor actor : created) {
+            Assert.assertSame(created[0], actor);
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(1, started.get());
+        system.clear();
+    }
+
+    @Test
+    public void testShortLivedActors() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        final int count = 200000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        Behavior counting = new Counting(latch);
+        for (int i = 0; i < count; i++) {
+            Actor actor = system.create(counting, "short-" + i);
+            actor.tell(i);
+            actor.tell(Poison.PILL);
+        }
+        Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!((Actors.CreationnalContextImpl) system).getActors().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(((Actors.CreationnalContextImpl) system).getActors().isEmpty());
+        Actor old = system.create(counting, "reused");
+        old.tell(Poison.PILL);
+        Thread.sleep(100);
+        Assert.assertNotSame(old, system.create(counting, "reused"));
+        system.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    private static class Counting implements Behavior {
+
+        static final Counting NOOP = new Counting(null);
+
+        private final CountDownLatch latch;
+
+        Counting(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            if (latch != null) {
+                latch.countDown();
+            }
+            return Actors.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Metrics.Histogram;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActorContext;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteCreationnalContextImpl;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RemoteAskTest {
+
+    private final static int nbrOfAsks = 5000;
+
+    @Test
+    public void testRemoteAsk() throws Exception {
+        SimpleLogger.enableTrace(false);
+        Properties conf = new Properties();
+        conf.setProperty("echo", "remoteactor://127.0.0.1:8905/ask2/echo");
+        conf.setProperty("silent", "remoteactor://127.0.0.1:8905/ask2/silent");
+        RemoteCreationnalContextImpl host1 = (RemoteCreationnalContextImpl) RemoteActors.newContext("ask1", conf);
+        RemoteCreationnalContextImpl host2 = (RemoteCreationnalContextImpl) RemoteActors.newContext("ask2", new Properties());
+        host1.startRemoting("127.0.0.1", 8904);
+        host2.startRemoting("127.0.0.1", 8905);
+        try {
+            host2.create(ECHO, "echo");
+            host2.create(SILENT, "silent");
+            Actor echo = host1.lookup("echo");
+            Assert.assertEquals("hello", echo.<String>ask("hello").get(5, TimeUnit.SECONDS));
+
+            Promise<String> lost = host1.lookup("silent").ask("hello", 100, TimeUnit.MILLISECONDS);
+            try {
+                lost.get(5, TimeUnit.SECONDS);
+                Assert.fail("The ask should have timed out");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            Histogram latencies = new Histogram();
+            for (int i = 0; i < nbrOfAsks; i++) {
+                long start = System.nanoTime();
+                Assert.assertEquals(i, echo.<Integer>ask(i).get(5, TimeUnit.SECONDS).intValue());
+                latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+            System.out.println("Remote ask round trip : p50 " + latencies.percentile(50) + " us, p99 " 
+                    + latencies.percentile(99) + " us, max " + latencies.max() + " us");
+            // answers came back over the connection the asks went through
+            Assert.assertEquals(1, host1.connections());
+            Assert.assertEquals(1, host2.connections());
+        } finally {
+            host1.stopRemoting();
+            host2.stopRemoting();
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    @Test
+    public void testUnencodablePayload() throws Exception {
+        SimpleLogger.enableTrace(false);
+        Properties conf = new Properties();
+        conf.setProperty("echo", "remoteactor://127.0.0.1:8915/ask4/echo");
+        RemoteCreationnalContextImpl host1 = (RemoteCreationnalContextImpl) RemoteActors.newContext("ask3", conf);
+        RemoteCreationnalContextImpl host2 = (RemoteCreationnalContextImpl) RemoteActors.newContext("ask4", new Properties());
+        host1.startRemoting("127.0.0.1", 8914);
+        host2.startRemoting("127.0.0.1", 8915);
+        try {
+            host2.create(ECHO, "echo");
+            Actor echo = host1.lookup("echo");
+            Assert.assertEquals("before", echo.<String>ask("before").get(5, TimeUnit.SECONDS));
+            Promise<String> pending = echo.ask("pending");
+            echo.tell(new Object());
+            try {
+                echo.ask(new Object()).get(5, TimeUnit.SECONDS);
+                Assert.fail("An unencodable ask should fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof java.io.IOException);
+            }
+            Assert.assertEquals("pending", pending.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("after", echo.<String>ask("after").get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, host1.connections());
+        } finally {
+            host1.stopRemoting();
+            host2.stopRemoting();
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    @Test
+    public void testUnknownTarget() throws Exception {
+        SimpleLogger.enableTrace(false);
+        Properties conf = new Properties();
+        conf.setProperty("missing", "remoteactor://127.0.0.1:8917/ask6/missing");
+        RemoteActorContext host1 = RemoteActors.newContext("ask5", conf);
+        RemoteActorContext host2 = RemoteActors.newContext("ask6", new Properties());
+        host1.startRemoting("127.0.0.1", 8916);
+        host2.startRemoting("127.0.0.1", 8917);
+        try {
+            long deadLetters = Metrics.sinkDeadLetters();
+            try {
+                host1.lookup("missing").ask("hello", 30, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+                Assert.fail("An ask to an unknown actor should fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause().getMessage().contains("missing"));
+            }
+            Assert.assertTrue(Metrics.sinkDeadLetters() > deadLetters);
+        } finally {
+            host1.stopRemoting();
+            host2.stopRemoting();
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    public static final Behavior ECHO = new Behavior() {
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            ctx.from.tell(message, ctx.me);
+            return Actors.CONTINUE;
+        }
+    };
+
+    public static final Behavior SILENT = new Behavior() {
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            return Actors.CONTINUE;
+        }
+    };
+}
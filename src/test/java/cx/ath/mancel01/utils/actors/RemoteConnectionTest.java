@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteCreationnalContextImpl;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RemoteConnectionTest {
+
+    private final static int nbrOfActors = 500;
+
+    @Test
+    public void testConnectionSharing() throws Exception {
+        int[] single = connections(1);
+        Assert.assertEquals(1, single[0]);
+        Assert.assertEquals(1, single[1]);
+        int[] pooled = connections(3);
+        Assert.assertTrue(pooled[0] <= 3);
+        Assert.assertEquals(pooled[0], pooled[1]);
+    }
+
+    private int[] connections(int perNode) throws Exception {
+        SimpleLogger.enableTrace(false);
+        int port = 8896 + 2 * perNode;
+        Properties conf = new Properties();
+        String prefix = "remoteactor://127.0.0.1:" + (port + 1) + "/links2-" + port + "/";
+        for (int i = 0; i < nbrOfActors; i++) {
+            conf.setProperty("echo" + i, prefix + "echo" + i);
+        }
+        RemoteCreationnalContextImpl host1 = (RemoteCreationnalContextImpl) RemoteActors.newContext("links1-" + port, conf);
+        RemoteCreationnalContextImpl host2 = (RemoteCreationnalContextImpl) RemoteActors.newContext("links2-" + port, new Properties());
+        host1.withConnectionsPerNode(perNode);
+        host2.withConnectionsPerNode(perNode);
+        host1.startRemoting("127.0.0.1", port);
+        host2.startRemoting("127.0.0.1", port + 1);
+        try {
+            CountDownLatch replies = new CountDownLatch(nbrOfActors);
+            for (int i = 0; i < nbrOfActors; i++) {
+                host2.create(ECHO, "echo" + i);
+            }
+            Actor client = host1.create(new Client(replies), "client");
+            for (int i = 0; i < nbrOfActors; i++) {
+                host1.lookup("echo" + i).tell("ECHO", client);
+            }
+            Assert.assertTrue(replies.await(30, TimeUnit.SECONDS));
+            return new int[] { host1.connections(), host2.connections() };
+        } finally {
+            host1.stopRemoting();
+            host2.stopRemoting();
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    public static class Client implements Behavior {
+
+        private final CountDownLatch latch;
+
+        public Client(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            latch.countDown();
+            return Actors.CONTINUE;
+        }
+    }
+
+    public static final Behavior ECHO = new Behavior() {
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            ctx.from.tell(message, ctx.me);
+            return Actors.CONTINUE;
+        }
+    };
+}
@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Mailboxes.OverflowPolicy;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActor;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActorContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RemoteFlowControlTest {
+
+    private final static int nbrOfMessages = 2000;
+    // big enough for the socket buffers to fill up on loopback
+    private final static byte[] payload = new byte[16 * 1024];
+
+    @Test
+    public void testBlockingSender() throws Exception {
+        SimpleLogger.enableTrace(false);
+        RemoteActorContext[] hosts = hosts(8906, OverflowPolicy.BLOCK);
+        try {
+            SlowConsumer consumer = new SlowConsumer(nbrOfMessages);
+            hosts[1].create(consumer, "slow");
+            RemoteActor slow = (RemoteActor) hosts[0].lookup("slow");
+            // replies to an anonymous sender would be dead letters too
+            Actor replies = hosts[0].create(new Behavior() {
+                @Override
+                public Effect apply(Object message, Context ctx) {
+                    return Actors.CONTINUE;
+                }
+            }, "replies");
+            long deadLetters = Metrics.sinkDeadLetters();
+            boolean full = false;
+            long start = System.nanoTime();
+            for (int i = 0; i < nbrOfMessages; i++) {
+                full = full || !slow.hasRoom();
+                slow.tell(payload, replies);
+            }
+            long sending = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertTrue(consumer.received.await(60, TimeUnit.SECONDS));
+            System.out.println("Blocking sender : sent in " + sending + " ms, max remote mailbox " + consumer.maxDepth.get());
+            Assert.assertTrue(full);
+            Assert.assertEquals(deadLetters, Metrics.sinkDeadLetters());
+            Assert.assertTrue(consumer.maxDepth.get() < 300);
+        } finally {
+            stop(hosts);
+        }
+    }
+
+    @Test
+    public void testFailingAsks() throws Exception {
+        SimpleLogger.enableTrace(false);
+        RemoteActorContext[] hosts = hosts(8908, OverflowPolicy.DEAD_LETTER);
+        try {
+            SlowConsumer consumer = new SlowConsumer(nbrOfMessages);
+            hosts[1].create(consumer, "slow");
+            Actor slow = hosts[0].lookup("slow");
+            List<Promise<Object>> answers = new ArrayList<Promise<Object>>();
+            for (int i = 0; i < nbrOfMessages; i++) {
+                answers.add(slow.ask(payload, 60, TimeUnit.SECONDS));
+            }
+            int rejected = 0;
+            int answered = 0;
+            for (Promise<Object> answer : answers) {
+                try {
+                    answer.get(60, TimeUnit.SECONDS);
+                    answered++;
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+            System.out.println("Saturated asks : " + answered + " answered, " + rejected + " rejected, max remote mailbox " + consumer.maxDepth.get());
+            Assert.assertTrue(rejected > 0);
+            Assert.assertTrue(answered > 0);
+            Assert.assertTrue(consumer.maxDepth.get() < 300);
+        } finally {
+            stop(hosts);
+        }
+    }
+
+    @Test
+    public void testParkedActorDoesNotStallTheLink() throws Exception {
+        SimpleLogger.enableTrace(false);
+        Properties conf = new Properties();
+        conf.setProperty("blocked", "remoteactor://127.0.0.1:8921/park2/blocked");
+        conf.setProperty("echo", "remoteactor://127.0.0.1:8921/park2/echo");
+        RemoteActorContext host1 = RemoteActors.newContext("park1", conf);
+        RemoteActorContext host2 = RemoteActors.newContext("park2", new Properties());
+        host2.withInboundWatermarks(20, 10);
+        host1.startRemoting("127.0.0.1", 8920);
+        host2.startRemoting("127.0.0.1", 8921);
+        RemoteActorContext[] hosts = new RemoteActorContext[] { host1, host2 };
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch received = new CountDownLatch(30);
+            host2.create(new Behavior() {
+                @Override
+                public Effect apply(Object message, Context ctx) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    received.countDown();
+                    return Actors.CONTINUE;
+                }
+            }, "blocked");
+            host2.create(new Behavior() {
+                @Override
+                public Effect apply(Object message, Context ctx) {
+                    ctx.from.tell(message, ctx.me);
+                    return Actors.CONTINUE;
+                }
+            }, "echo");
+            Actor blocked = host1.lookup("blocked");
+            for (int i = 0; i < 30; i++) {
+                blocked.tell(i);
+            }
+            // blocked is over its high watermark, its last messages are parked
+            Assert.assertEquals("ping", host1.lookup("echo").ask("ping", 10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+            release.countDown();
+            Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+        } finally {
+            stop(hosts);
+        }
+    }
+
+    @Test
+    public void testClosedLinkDeadLettersBatchedMessages() throws Exception {
+        SimpleLogger.enableTrace(false);
+        Properties conf = new Properties();
+        conf.setProperty("sink", "remoteactor://127.0.0.1:8923/close2/sink");
+        RemoteActorContext host1 = RemoteActors.newContext("close1", conf);
+        RemoteActorContext host2 = RemoteActors.newContext("close2", new Properties());
+        // batched messages wait for the flush delay, long enough for the link to close first
+        host1.withWriteBatching(1000, 30, TimeUnit.SECONDS);
+        host1.startRemoting("127.0.0.1", 8922);
+        host2.startRemoting("127.0.0.1", 8923);
+        try {
+            final CountDownLatch first = new CountDownLatch(1);
+            host2.create(new Behavior() {
+                @Override
+                public Effect apply(Object message, Context ctx) {
+                    first.countDown();
+                    return Actors.CONTINUE;
+                }
+            }, "sink");
+            Actor sink = host1.lookup("sink");
+            // flushed as soon as the connection is up
+            sink.tell("connect");
+            Assert.assertTrue(first.await(10, TimeUnit.SECONDS));
+            long deadLetters = Metrics.sinkDeadLetters();
+            for (int i = 0; i < 10; i++) {
+                sink.tell(i);
+            }
+            host2.stopRemoting();
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (Metrics.sinkDeadLetters() - deadLetters < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            Assert.assertEquals(10L, Metrics.sinkDeadLetters() - deadLetters);
+        } finally {
+            host1.stopRemoting();
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    private static RemoteActorContext[] hosts(int port, OverflowPolicy policy) {
+        Properties conf = new Properties();
+        conf.setProperty("slow", "remoteactor://127.0.0.1:" + (port + 1) + "/flow2-" + port + "/slow");
+        RemoteActorContext host1 = RemoteActors.newContext("flow1-" + port, conf);
+        RemoteActorContext host2 = RemoteActors.newContext("flow2-" + port, new Properties());
+        host1.withFlowControl(100, policy);
+        host2.withInboundWatermarks(50, 10);
+        host1.startRemoting("127.0.0.1", port);
+        host2.startRemoting("127.0.0.1", port + 1);
+        return new RemoteActorContext[] { host1, host2 };
+    }
+
+    private static void stop(RemoteActorContext[] hosts) {
+        hosts[0].stopRemoting();
+        hosts[1].stopRemoting();
+        SimpleLogger.enableTrace(true);
+    }
+
+    public static class SlowConsumer implements Behavior {
+
+        private final CountDownLatch received;
+        private final AtomicInteger maxDepth = new AtomicInteger(0);
+
+        public SlowConsumer(int expected) {
+            this.received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            int depth = ctx.me.mailboxSize();
+            if (depth > maxDepth.get()) {
+                maxDepth.set(depth);
+            }
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.countDown();
+            ctx.from.tell("DONE", ctx.me);
+            return Actors.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActor;
+import cx.ath.mancel01.utils.actors.RemoteActors.RemoteActorContext;
+import cx.ath.mancel01.utils.actors.Wire.RemoteStats;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RemoteStatsTest {
+
+    @Test
+    public void testRemoteStats() throws Exception {
+        SimpleLogger.enableTrace(false);
+        Properties conf = new Properties();
+        conf.setProperty("slow", "remoteactor://127.0.0.1:8903/stats2/slow");
+        conf.setProperty("fast", "remoteactor://127.0.0.1:8903/stats2/fast");
+        RemoteActorContext host1 = RemoteActors.newContext("stats1", conf);
+        RemoteActorContext host2 = RemoteActors.newContext("stats2", new Properties());
+        host1.startRemoting("127.0.0.1", 8902);
+        host2.startRemoting("127.0.0.1", 8903);
+        try {
+            Actor slowActor = host2.create(SLOW, "slow");
+            Actor fastActor = host2.create(FAST, "fast");
+            RemoteActor slow = (RemoteActor) host1.lookup("slow");
+            RemoteActor fast = (RemoteActor) host1.lookup("fast");
+            Assert.assertEquals(0, slow.mailboxSize());
+            slow.tell("WORK");
+            // only what was sent is known until the first report
+            Assert.assertEquals(1, slow.mailboxSize());
+            long end = System.currentTimeMillis() + 1000L;
+            while (System.currentTimeMillis() < end) {
+                slow.tell("WORK");
+                fast.tell("WORK");
+                Thread.sleep(2L);
+            }
+            RemoteStats slowStats = awaitStats(slow);
+            RemoteStats fastStats = awaitStats(fast);
+            System.out.println(slowStats + " " + fastStats);
+            Assert.assertTrue(slowStats.depth() > 10);
+            Assert.assertTrue(slowStats.rate() < 1000);
+            Assert.assertTrue(fastStats.depth() < slowStats.depth());
+            Assert.assertTrue(slow.buzy().get());
+            Assert.assertTrue(slow.mailboxSize() > fast.mailboxSize());
+            Assert.assertSame(fast, Routers.smallestMailbox().select("WORK", Arrays.<Actor>asList(slow, fast)));
+            // no more traffic, no more reports : the cached ones expire
+            Thread.sleep(300L);
+            Assert.assertNull(fast.stats());
+            Assert.assertFalse(fast.buzy().get());
+            slowActor.tell(Poison.PILL);
+            fastActor.tell(Poison.PILL);
+        } finally {
+            host1.stopRemoting();
+            host2.stopRemoting();
+            SimpleLogger.enableTrace(true);
+        }
+    }
+
+    private static RemoteStats awaitStats(RemoteActor actor) throws Exception {
+        long deadline = System.currentTimeMillis() + 1000L;
+        RemoteStats stats = actor.stats();
+        while (stats == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+            stats = actor.stats();
+        }
+        Assert.assertNotNull(stats);
+        return stats;
+    }
+
+    public static final Behavior SLOW = new Behavior() {
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Actors.CONTINUE;
+        }
+    };
+
+    public static final Behavior FAST = new Behavior() {
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            return Actors.CONTINUE;
+        }
+    };
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Routers.ResizableRouterActor;
+import cx.ath.mancel01.utils.actors.Routers.Resizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class ResizerTest {
+
+    @Test
+    public void testDelta() {
+        Resizer resizer = new Resizer(2, 10);
+        // backlog of one message per routee
+        Assert.assertEquals(1, resizer.delta(4, 4, 0.5));
+        Assert.assertEquals(2, resizer.delta(8, 0, 0.9));
+        Assert.assertEquals(0, resizer.delta(4, 1, 0.5));
+        Assert.assertEquals(-1, resizer.delta(4, 0, 0.1));
+        // bounds
+        Assert.assertEquals(0, resizer.delta(10, 100, 1.0));
+        Assert.assertEquals(0, resizer.delta(2, 0, 0.0));
+        Assert.assertEquals(-1, resizer.delta(5, 0, 0.0));
+    }
+
+    @Test
+    public void testGrowAndShrink() throws Exception {
+        SimpleLogger.enableTrace(false);
+        final int burst = 400;
+        final int trickle = 100;
+        final CountDownLatch latch = new CountDownLatch(burst + trickle);
+        final AtomicInteger processed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        ActorContext system = Actors.newContext();
+        system.defaults().withExecutor(Dispatchers.fromExecutor("resizer", executor));
+        ResizableRouterActor router = Routers.resizable(system, "worker", new Function<Unit, Behavior>() {
+            @Override
+            public Behavior apply(Unit t) {
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        if ("slow".equals(message)) {
+                            try {
+                                Thread.sleep(5L);
+                            } catch (InterruptedException e) {}
+                        }
+                        processed.incrementAndGet();
+                        latch.countDown();
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        }, Routers.smallestMailbox(), new Resizer(1, 8).withBackoffPeriod(20, TimeUnit.MILLISECONDS));
+        Actor actor = system.create(router, "resizable");
+        Assert.assertEquals(1, router.routees().size());
+        for (int i = 0; i < burst; i++) {
+            actor.tell("slow");
+            if (i % 20 == 0) {
+                Thread.sleep(5L);
+            }
+        }
+        while (processed.get() < burst) {
+            Thread.sleep(10L);
+        }
+        int afterBurst = router.routees().size();
+        Assert.assertTrue("after burst " + afterBurst, afterBurst > 1 && afterBurst <= 8);
+        for (int i = 0; i < trickle; i++) {
+            actor.tell("fast");
+            Thread.sleep(2L);
+        }
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        int end = router.routees().size();
+        System.out.println("Resizer : " + afterBurst + " workers after the burst, " + end + " after the trickle");
+        Assert.assertTrue("end " + end, end < afterBurst);
+        Assert.assertEquals(burst + trickle, processed.get());
+        executor.shutdown();
+        SimpleLogger.enableTrace(true);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.Concurrent.Promise;
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.F.Unit;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Routers.ConsistentHashable;
+import cx.ath.mancel01.utils.actors.Routers.RoutingLogic;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RoutersTest {
+
+    @Test
+    public void testRoundRobin() {
+        List<Actor> routees = fakes(4);
+        RoutingLogic logic = Routers.roundRobin();
+        for (int i = 0; i < 20; i++) {
+            Assert.assertSame(routees.get(i % 4), logic.select("msg", routees));
+        }
+    }
+
+    @Test
+    public void testSmallestMailbox() {
+        List<Actor> routees = new ArrayList<Actor>();
+        routees.add(new Fake("a", 3));
+        routees.add(new Fake("b", 1));
+        routees.add(new Fake("c", 5));
+        RoutingLogic logic = Routers.smallestMailbox();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("b", logic.select("msg", routees).id());
+        }
+    }
+
+    @Test
+    public void testConsistentHashing() {
+        List<Actor> routees = fakes(5);
+        RoutingLogic logic = Routers.consistentHashing(new Function<Object, Object>() {
+            @Override
+            public Object apply(Object t) {
+                return ((String) t).split(":")[0];
+            }
+        });
+        Map<String, Actor> owners = new HashMap<String, Actor>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "user" + (i % 50);
+            Actor owner = logic.select(key + ":" + i, routees);
+            if (owners.containsKey(key)) {
+                Assert.assertSame(owners.get(key), owner);
+            }
+            owners.put(key, owner);
+        }
+        Assert.assertTrue(new HashSet<Actor>(owners.values()).size() > 1);
+        Actor owner = logic.select(new Keyed("user1"), routees);
+        Assert.assertSame(owners.get("user1"), owner);
+        Actor none = logic.select(new Keyed(null), routees);
+        Assert.assertNotNull(none);
+        Assert.assertSame(none, logic.select(new Keyed(null), routees));
+    }
+
+    @Test
+    public void testRouterActor() throws Exception {
+        SimpleLogger.enableTrace(false);
+        final int messages = 1000;
+        final CountDownLatch latch = new CountDownLatch(messages);
+        final Map<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+        ActorContext system = Actors.newContext();
+        Actor router = system.create(Routers.apply(system, 4, new Function<Unit, Behavior>() {
+            @Override
+            public Behavior apply(Unit t) {
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        synchronized (counts) {
+                            Integer count = counts.get(ctx.me.id());
+                            counts.put(ctx.me.id(), count == null ? 1 : count + 1);
+                        }
+                        latch.countDown();
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        }, Routers.random()), "router");
+        for (int i = 0; i < messages; i++) {
+            router.tell(i);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(4, counts.size());
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Test
+    public void testScatterGather() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        List<Actor> routees = new ArrayList<Actor>();
+        for (final long delay : new long[] { 300L, 10L, 200L }) {
+            routees.add(system.create(new Behavior() {
+                @Override
+                public Effect apply(Object message, Context ctx) {
+                    final Actor from = ctx.from;
+                    final Actor me = ctx.me;
+                    ctx.actorCtx().scheduleOnce(delay, TimeUnit.MILLISECONDS, new Runnable() {
+                        @Override
+                        public void run() {
+                            from.tell("answer in " + delay, me);
+                        }
+                    });
+                    return Actors.CONTINUE;
+                }
+            }, "slow-" + delay));
+        }
+        Actor router = system.create(new Routers.ScatterGatherActor(routees, 1, TimeUnit.SECONDS), "scatter");
+        Assert.assertEquals("answer in 10", router.ask("question").get(5, TimeUnit.SECONDS));
+        Actor silent = system.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                return Actors.CONTINUE;
+            }
+        }, "silent");
+        List<Actor> silents = new ArrayList<Actor>();
+        silents.add(silent);
+        Actor timingOut = system.create(new Routers.ScatterGatherActor(silents, 50, TimeUnit.MILLISECONDS), "timingOut");
+        Assert.assertTrue(timingOut.ask("question").get(5, TimeUnit.SECONDS) instanceof TimeoutException);
+        SimpleLogger.enableTrace(true);
+    }
+
+    private static List<Actor> fakes(int n) {
+        List<Actor> routees = new ArrayList<Actor>();
+        for (int i = 0; i < n; i++) {
+            routees.add(new Fake("fake-" + i, 0));
+        }
+        return routees;
+    }
+
+    private static class Keyed implements ConsistentHashable {
+
+        private final String key;
+
+        Keyed(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object consistentHashKey() {
+            return key;
+        }
+    }
+
+    private static class Fake implements Actor {
+
+        private final String id;
+        private final int mailboxSize;
+
+        Fake(String id, int mailboxSize) {
+            this.id = id;
+            this.mailboxSize = mailboxSize;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public Future<Boolean> buzy() {
+            throw new AssertionError("Routers must not block on buzy()");
+        }
+
+        @Override
+        public int mailboxSize() {
+            return mailboxSize;
+        }
+
+        @Override
+        public void tell(Object message) {}
+
+        @Override
+        public void tell(Object message, Actor from) {}
+
+        @Override
+        public <T> Promise<T> ask(Object message) {
+            return null;
+        }
+
+        @Override
+        public <T> Promise<T> ask(Object message, long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.F.Function;
+import cx.ath.mancel01.utils.SimpleLogger;
+import cx.ath.mancel01.utils.actors.Actors.Actor;
+import cx.ath.mancel01.utils.actors.Actors.ActorContext;
+import cx.ath.mancel01.utils.actors.Actors.Behavior;
+import cx.ath.mancel01.utils.actors.Actors.Context;
+import cx.ath.mancel01.utils.actors.Actors.Effect;
+import cx.ath.mancel01.utils.actors.Supervision.Directive;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class SupervisionTest {
+
+    @Test
+    public void testRestartKeepsMailbox() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        final AtomicInteger starts = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(999);
+        Actor actor = system.create(new Function<Actor, Behavior>() {
+            @Override
+            public Behavior apply(Actor me) {
+                starts.incrementAndGet();
+                return new Failing(latch);
+            }
+        }, "restarted");
+        for (int i = 0; i < 1000; i++) {
+            actor.tell(i == 500 ? "boom" : "ok");
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, starts.get());
+        system.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Test
+    public void testResumeAndStop() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        system.defaults().withSupervisor(Supervision.oneForOne(Supervision.always(Directive.RESUME)));
+        final CountDownLatch resumed = new CountDownLatch(2);
+        Actor actor = system.create(new Failing(resumed), "resumed");
+        actor.tell("ok");
+        actor.tell("boom");
+        actor.tell("ok");
+        Assert.assertTrue(resumed.await(10, TimeUnit.SECONDS));
+
+        system.defaults().withSupervisor(Supervision.oneForOne(2, 1, TimeUnit.MINUTES, Supervision.defaultDecider()));
+        final CountDownLatch stopped = new CountDownLatch(3);
+        actor = system.create(new Failing(stopped), "stopped");
+        for (int i = 0; i < 3; i++) {
+            actor.tell("boom");
+            actor.tell("ok");
+        }
+        actor.tell("ok");
+        Thread.sleep(200);
+        Assert.assertEquals(1, stopped.getCount());
+        system.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Test
+    public void testAllForOne() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        final AtomicInteger starts = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(2);
+        final Function<Actor, Behavior> child = new Function<Actor, Behavior>() {
+            @Override
+            public Behavior apply(Actor me) {
+                starts.incrementAndGet();
+                return new Failing(latch);
+            }
+        };
+        Actor parent = system.create(new Behavior() {
+            @Override
+            public Effect apply(Object message, Context ctx) {
+                ctx.spawn(child, "left");
+                ctx.spawn(child, "right");
+                return Actors.CONTINUE;
+            }
+        }, "parent", system.defaults().copy().withSupervisor(Supervision.allForOne(Supervision.defaultDecider())));
+        parent.tell("spawn");
+        Thread.sleep(100);
+        Assert.assertEquals(2, starts.get());
+        system.lookup("parent/left").tell("boom");
+        Thread.sleep(100);
+        Assert.assertEquals(4, starts.get());
+        system.lookup("parent/left").tell("ok");
+        system.lookup("parent/right").tell("ok");
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        system.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    @Test
+    public void testEscalate() throws Exception {
+        SimpleLogger.enableTrace(false);
+        ActorContext system = Actors.newContext();
+        final AtomicInteger parents = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(100);
+        Actor parent = system.create(new Function<Actor, Behavior>() {
+            @Override
+            public Behavior apply(Actor me) {
+                parents.incrementAndGet();
+                return new Behavior() {
+                    @Override
+                    public Effect apply(Object message, Context ctx) {
+                        ctx.spawn(new Failing(latch), "child");
+                        return Actors.CONTINUE;
+                    }
+                };
+            }
+        }, "escalating", system.defaults().copy().withSupervisor(Supervision.oneForOne(Supervision.always(Directive.ESCALATE))));
+        parent.tell("spawn");
+        Thread.sleep(100);
+        Actor child = system.lookup("escalating/child");
+        child.tell("boom");
+        for (int i = 0; i < 100; i++) {
+            child.tell("ok");
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, parents.get());
+        system.clear();
+        SimpleLogger.enableTrace(true);
+    }
+
+    private static class Failing implements Behavior {
+
+        private final CountDownLatch latch;
+
+        public Failing(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Effect apply(Object message, Context ctx) {
+            if ("boom".equals(message)) {
+                throw new IllegalStateException("boom");
+            }
+            latch.countDown();
+            return Actors.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package cx.ath.mancel01.utils.actors;
+
+import cx.ath.mancel01.utils.actors.Actors.Poison;
+import cx.ath.mancel01.utils.actors.Wire.Codec;
+import cx.ath.mancel01.utils.actors.Wire.CodecSerializer;
+import cx.ath.mancel01.utils.actors.Wire.FrameReader;
+import cx.ath.mancel01.utils.actors.Wire.FrameWriter;
+import cx.ath.mancel01.utils.actors.Wire.RemoteMessage;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.serialization.ObjectEncoder;
+import org.junit.Test;
+
+public class WireTest {
+
+    private final static int nbrOfMessages = 200000;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        CodecSerializer serializer = Wire.serializer().register(CodecSerializer.FIRST_USER_TAG, Point.class, new PointCodec());
+        FrameWriter writer = new FrameWriter(serializer, "127.0.0.1", 8888);
+        FrameReader reader = new FrameReader(serializer);
+        Object[] payloads = new Object[] { "PING", 42, -7L, 3.14, true, null, new byte[] { 1, 2, 3 },
+            Poison.PILL, new Point(1, 2), new Legacy("old") };
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        for (Object payload : payloads) {
+            writer.write(message("host2", "pong", "host1", "ping", payload), out);
+        }
+        for (int i = 0; i < Wire.MAX_INTERNED + 10; i++) {
+            writer.write(message("host2", "pong", "host1", "remote-promise/" + i, i), out);
+        }
+        int i = 0;
+        int overflow = 0;
+        while (out.readable()) {
+            ChannelBuffer frame = out.readSlice(out.readInt());
+            RemoteMessage message = (RemoteMessage) reader.read(frame);
+            Assert.assertFalse(frame.readable());
+            if (message == null) {
+                continue;
+            }
+            Assert.assertEquals("127.0.0.1", message.fromHost);
+            Assert.assertEquals(8888, message.fromPort);
+            Assert.assertEquals("pong", message.toName);
+            if (i < payloads.length) {
+                Assert.assertEquals("ping", message.fromName);
+                if (payloads[i] instanceof byte[]) {
+                    Assert.assertEquals(3, ((byte[]) message.payload).length);
+                } else {
+                    Assert.assertEquals(payloads[i], message.payload);
+                }
+            } else {
+                Assert.assertEquals("remote-promise/" + overflow, message.fromName);
+                Assert.assertEquals(overflow, message.payload);
+                overflow++;
+            }
+            i++;
+        }
+        Assert.assertEquals(Wire.MAX_INTERNED + 10, overflow);
+    }
+
+    @Test
+    public void testSizeAndThroughput() throws Exception {
+        EncoderEmbedder<ChannelBuffer> java = new EncoderEmbedder<ChannelBuffer>(new ObjectEncoder());
+        FrameWriter writer = new FrameWriter(Wire.serializer(), "127.0.0.1", 8888);
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        writer.write(message("host2", "pong", "host1", "ping", "PING"), out);
+        out.clear();
+        writer.write(message("host2", "pong", "host1", "ping", "PING"), out);
+        int binary = out.readableBytes();
+        java.offer(new JavaMessage("host2", "pong", "host1", "ping", "PING"));
+        int serialized = java.poll().readableBytes();
+        System.out.println("Bytes per message : " + binary + " (binary) vs " + serialized + " (java serialization)");
+        Assert.assertTrue(binary * 4 < serialized);
+
+        FrameReader reader = new FrameReader(Wire.serializer());
+        out = ChannelBuffers.dynamicBuffer(binary * nbrOfMessages + 1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < nbrOfMessages; i++) {
+            writer.write(message("host2", "pong", "host1", "ping", "PING"), out);
+        }
+        long encoded = System.nanoTime() - start;
+        start = System.nanoTime();
+        int decoded = 0;
+        ChannelBuffer in = ChannelBuffers.dynamicBuffer();
+        writer = new FrameWriter(Wire.serializer(), "127.0.0.1", 8888);
+        writer.write(message("host2", "pong", "host1", "ping", "PING"), in);
+        while (in.readable()) {
+            reader.read(in.readSlice(in.readInt()));
+        }
+        while (out.readable()) {
+            if (reader.read(out.readSlice(out.readInt())) != null) {
+                decoded++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Assert.assertEquals(nbrOfMessages, decoded);
+        System.out.println("Binary encode : " + perSecond(encoded) + " msg/s, decode : " + perSecond(elapsed) + " msg/s");
+
+        start = System.nanoTime();
+        for (int i = 0; i < nbrOfMessages / 10; i++) {
+            java.offer(new JavaMessage("host2", "pong", "host1", "ping", "PING"));
+            java.poll();
+        }
+        System.out.println("Java serialization encode : " + perSecond((System.nanoTime() - start) * 10) + " msg/s");
+    }
+
+    private static long perSecond(long elapsed) {
+        return nbrOfMessages * TimeUnit.SECONDS.toNanos(1) / Math.max(1L, elapsed);
+    }
+
+    private static RemoteMessage message(String toCtx, String toName, String fromCtx, String fromName, Object payload) {
+        RemoteMessage message = new RemoteMessage();
+        message.toCtx = toCtx;
+        message.toName = toName;
+        message.fromCtx = fromCtx;
+        message.fromName = fromName;
+        message.payload = payload;
+        return message;
+    }
+
+    // same shape as the message previously sent with ObjectEncoder
+    private static class JavaMessage implements Serializable {
+        String toName;
+        String toCtx;
+        String remoteFrom;
+        String remoteCtx;
+        String remoteHost = "127.0.0.1";
+        String remotePort = "8888";
+        Object toMsg;
+
+        JavaMessage(String toCtx, String toName, String remoteCtx, String remoteFrom, Object toMsg) {
+            this.toCtx = toCtx;
+            this.toName = toName;
+            this.remoteCtx = remoteCtx;
+            this.remoteFrom = remoteFrom;
+            this.toMsg = toMsg;
+        }
+    }
+
+    public static class Point {
+        final int x;
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    public static class PointCodec implements Codec<Point> {
+
+        @Override
+        public void encode(Point value, ChannelBuffer out) {
+            out.writeInt(value.x);
+            out.writeInt(value.y);
+        }
+
+        @Override
+        public Point decode(ChannelBuffer in) {
+            return new Point(in.readInt(), in.readInt());
+        }
+    }
+
+    public static class Legacy implements Serializable {
+        final String value;
+
+        Legacy(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Legacy && ((Legacy) o).value.equals(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+}